@@ -0,0 +1,105 @@
+package org.akvo.mapexperiments;
+
+import android.graphics.Typeface;
+import android.os.Bundle;
+import androidx.appcompat.app.AppCompatActivity;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Percentiles of the startup phases over the launches in the {@link StartupLog}, cold and warm
+ * apart, followed by the launches themselves. Only in debug builds.
+ */
+public class StartupStatsActivity extends AppCompatActivity {
+
+    private static final double[] PERCENTILES = { 50, 90, 99 };
+
+    private TextView statsView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        statsView = new TextView(this);
+        statsView.setTypeface(Typeface.MONOSPACE);
+        statsView.setPadding(padding, padding, padding, padding);
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(statsView);
+        setContentView(scrollView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        final StartupLog log = StartupLog.getInstance(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String text = describe(log.readAll());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        statsView.setText(text);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private String describe(List<StartupLog.Launch> launches) {
+        if (launches.isEmpty()) {
+            return getString(R.string.startup_stats_empty);
+        }
+        StringBuilder text = new StringBuilder();
+        appendPercentiles(text, launches, true);
+        appendPercentiles(text, launches, false);
+        text.append("Recent launches\n");
+        DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                DateFormat.MEDIUM);
+        for (int i = launches.size() - 1; i >= 0; i--) {
+            StartupLog.Launch launch = launches.get(i);
+            text.append(dateFormat.format(new Date(launch.wallTime))).append('\n')
+                    .append("  ").append(StartupTracer.describe(launch)).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder text, List<StartupLog.Launch> launches,
+            boolean cold) {
+        int count = 0;
+        for (StartupLog.Launch launch : launches) {
+            if (launch.cold == cold) {
+                count++;
+            }
+        }
+        text.append(String.format(Locale.US, "%s starts (%d)\n", cold ? "Cold" : "Warm", count));
+        if (count == 0) {
+            text.append('\n');
+            return;
+        }
+        text.append(String.format(Locale.US, "%-16s%8s%8s%8s\n", "ms", "p50", "p90", "p99"));
+        for (StartupTracer.Phase phase : StartupTracer.Phase.values()) {
+            int[] values = new int[count];
+            int i = 0;
+            for (StartupLog.Launch launch : launches) {
+                if (launch.cold == cold) {
+                    values[i++] = launch.getMillis(phase);
+                }
+            }
+            text.append(String.format(Locale.US, "%-16s",
+                    phase.name().toLowerCase(Locale.US)));
+            for (double percent : PERCENTILES) {
+                int millis = StartupLog.percentile(values, percent);
+                text.append(String.format(Locale.US, "%8s",
+                        millis < 0 ? "-" : String.valueOf(millis)));
+            }
+            text.append('\n');
+        }
+        text.append('\n');
+    }
+}
@@ -0,0 +1,37 @@
+package org.akvo.mapexperiments;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Drops fixes without an accuracy or whose accuracy radius is larger than a limit.
+ */
+class AccuracyFilter implements LocationFilter {
+
+    private final float maxAccuracyMeters;
+
+    AccuracyFilter(float maxAccuracyMeters) {
+        this.maxAccuracyMeters = maxAccuracyMeters;
+    }
+
+    @Nullable
+    @Override
+    public Location filter(@NonNull Location location) {
+        return accepts(location.hasAccuracy(), location.getAccuracy()) ? location : null;
+    }
+
+    boolean accepts(boolean hasAccuracy, float accuracy) {
+        return hasAccuracy && accuracy <= maxAccuracyMeters;
+    }
+
+    @Override
+    public void reset() {
+        // stateless
+    }
+
+    @Override
+    public String toString() {
+        return "accuracy";
+    }
+}
@@ -0,0 +1,161 @@
+package org.akvo.mapexperiments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.plugins.annotation.Fill;
+import com.mapbox.mapboxsdk.plugins.annotation.FillManager;
+import com.mapbox.mapboxsdk.plugins.annotation.FillOptions;
+import com.mapbox.mapboxsdk.plugins.annotation.Line;
+import com.mapbox.mapboxsdk.plugins.annotation.LineManager;
+import com.mapbox.mapboxsdk.plugins.annotation.LineOptions;
+import com.mapbox.mapboxsdk.plugins.annotation.Symbol;
+import com.mapbox.mapboxsdk.plugins.annotation.SymbolManager;
+import com.mapbox.mapboxsdk.plugins.annotation.SymbolOptions;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.akvo.mapexperiments.geometry.TrackSimplifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Draws a recorded track with the annotation plugin, keeping a single line and fill whose
+ * geometry is updated in place and only adding or removing the markers of vertices that changed.
+ * Only {@link #rebuild} deletes and recreates every annotation.
+ * <p/>
+ * Markers are symbols referencing the images that {@link BitmapGenerator#addSpritesTo} put in
+ * the style, so no vertex carries a raster of its own.
+ */
+class AnnotationTrackRenderer implements TrackRenderer {
+
+    private static final String TRACK_COLOR = "#736357";
+    private static final float FILL_OPACITY = 0.5f;
+
+    private final SymbolManager symbolManager;
+    private final LineManager lineManager;
+    private final FillManager fillManager;
+
+    /**
+     * SDK copies of the drawn vertices, needed to update the line and fill geometries.
+     */
+    private final List<LatLng> points = new ArrayList<>();
+    private final List<Symbol> symbols = new ArrayList<>();
+
+    @Nullable
+    private Line line;
+
+    @Nullable
+    private Fill fill;
+
+    AnnotationTrackRenderer(SymbolManager symbolManager, LineManager lineManager,
+            FillManager fillManager) {
+        this.symbolManager = symbolManager;
+        // every vertex is drawn, like the circles of the other renderers
+        symbolManager.setIconAllowOverlap(true);
+        symbolManager.setIconIgnorePlacement(true);
+        this.lineManager = lineManager;
+        this.fillManager = fillManager;
+    }
+
+    /**
+     * Replaces the markers of the changed vertices, and the geometry of the existing line and
+     * fill.
+     */
+    @Override
+    public void append(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level,
+            int fromPosition) {
+        removeFrom(fromPosition);
+        addVertices(track, level);
+        updateShape();
+    }
+
+    /**
+     * Discards every annotation and draws the level from scratch. Meant for loading, clearing,
+     * closing a shape or changing zoom level, not for per fix updates.
+     */
+    @Override
+    public void rebuild(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level) {
+        clear();
+        addVertices(track, level);
+        if (!points.isEmpty()) {
+            updateShape();
+        }
+    }
+
+    @Override
+    public void clear() {
+        points.clear();
+        symbols.clear();
+        symbolManager.deleteAll();
+        lineManager.deleteAll();
+        fillManager.deleteAll();
+        line = null;
+        fill = null;
+    }
+
+    private void removeFrom(int position) {
+        if (position < symbols.size()) {
+            List<Symbol> removed = symbols.subList(position, symbols.size());
+            symbolManager.delete(new ArrayList<>(removed));
+            removed.clear();
+        }
+        if (position < points.size()) {
+            points.subList(position, points.size()).clear();
+        }
+    }
+
+    private void addVertices(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level) {
+        int start = points.size();
+        int count = level.size() - start;
+        if (count <= 0) {
+            return;
+        }
+        List<SymbolOptions> symbolOptions = new ArrayList<>(count);
+        for (int position = start; position < level.size(); position++) {
+            int index = level.get(position);
+            LatLng latLng = LAT_LNG_FACTORY.create(track.getLatitude(index),
+                    track.getLongitude(index), track.getAccuracy(index));
+            points.add(latLng);
+            symbolOptions.add(createSymbolOptions(latLng,
+                    BitmapGenerator.Marker.forAccuracy(track.getAccuracy(index))));
+        }
+        // a single batch create updates the symbol source once instead of once per point
+        symbols.addAll(symbolManager.create(symbolOptions));
+    }
+
+    private void updateShape() {
+        if (fill == null) {
+            fill = fillManager.create(new FillOptions()
+                    .withLatLngs(Collections.singletonList(points))
+                    .withFillColor(TRACK_COLOR)
+                    .withFillOpacity(FILL_OPACITY)
+                    .withDraggable(false));
+        } else {
+            fill.setLatLngs(Collections.singletonList(points));
+            fillManager.update(fill);
+        }
+
+        if (line == null) {
+            line = lineManager.create(new LineOptions()
+                    .withLineColor(TRACK_COLOR)
+                    .withLineWidth((float) MapOptions.LINE_WIDTH)
+                    .withDraggable(false)
+                    .withLatLngs(points));
+        } else {
+            line.setLatLngs(points);
+            lineManager.update(line);
+        }
+    }
+
+    @NonNull
+    private SymbolOptions createSymbolOptions(@NonNull LatLng latLng,
+            @NonNull BitmapGenerator.Marker marker) {
+        return new SymbolOptions()
+                .withLatLng(latLng)
+                .withIconImage(marker.imageId)
+                .withDraggable(false);
+    }
+}
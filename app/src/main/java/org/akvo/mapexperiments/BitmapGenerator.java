@@ -3,33 +3,137 @@ package org.akvo.mapexperiments;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.util.LruCache;
 import androidx.annotation.NonNull;
 
+import com.mapbox.mapboxsdk.maps.Style;
+
+import java.util.HashMap;
+
+/**
+ * Draws the vertex markers, sized for the screen density and cached by size and colors, so that
+ * a marker style is rasterized once per process however many markers and activities use it.
+ * Main thread only.
+ */
 class BitmapGenerator {
 
     private static final int POINT_COLOR_FILL = 0x55FFFFFF;
     private static final int SOLID_COLOR = 0xFF00A79D;
-    private static final int BITMAP_SIZE = 20;
+    private static final int SELECTED_COLOR = 0xFF027A73;
+    private static final int SELECTED_COLOR_FILL = 0x8800A79D;
+    private static final int LOW_ACCURACY_COLOR = 0xFFF2C94C;
+
+    /**
+     * Less accurate fixes are drawn with {@link Marker#LOW_ACCURACY}.
+     */
+    static final float LOW_ACCURACY_METERS = 20f;
+
+    /**
+     * Markers are small: the cache holds every variant at a few densities many times over.
+     */
+    private static final int CACHE_BYTES = 256 * 1024;
+
+    /**
+     * The variants of the sprite atlas, each registered in a map style under its image id.
+     */
+    enum Marker {
+        NORMAL("marker-normal", 20, SOLID_COLOR, POINT_COLOR_FILL),
+        SELECTED("marker-selected", 28, SELECTED_COLOR, SELECTED_COLOR_FILL),
+        LOW_ACCURACY("marker-low-accuracy", 20, LOW_ACCURACY_COLOR, POINT_COLOR_FILL);
+
+        final String imageId;
+        final int sizeDp;
+        final int solidColor;
+        final int fillColor;
+
+        Marker(String imageId, int sizeDp, int solidColor, int fillColor) {
+            this.imageId = imageId;
+            this.sizeDp = sizeDp;
+            this.solidColor = solidColor;
+            this.fillColor = fillColor;
+        }
+
+        static Marker forAccuracy(float accuracy) {
+            return accuracy > LOW_ACCURACY_METERS ? LOW_ACCURACY : NORMAL;
+        }
+    }
+
+    private static BitmapGenerator instance;
+
+    private final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    };
+    private final Paint solid = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint fill = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    static BitmapGenerator getInstance() {
+        if (instance == null) {
+            instance = new BitmapGenerator();
+        }
+        return instance;
+    }
 
-    BitmapGenerator() {
+    private BitmapGenerator() {
     }
 
     @NonNull
-    Bitmap getBitmap() {
-        Bitmap bmp = Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bmp);
+    Bitmap getBitmap(@NonNull Marker marker, float density) {
+        return getBitmap(Math.round(marker.sizeDp * density), marker.solidColor,
+                marker.fillColor);
+    }
+
+    /**
+     * A ring of {@code solidColor} filled with {@code fillColor} around a {@code solidColor} dot.
+     * The returned bitmap is shared and must not be modified or recycled.
+     */
+    @NonNull
+    Bitmap getBitmap(int sizePx, int solidColor, int fillColor) {
+        String key = sizePx + ":" + Integer.toHexString(solidColor) + ":"
+                + Integer.toHexString(fillColor);
+        Bitmap bitmap = cache.get(key);
+        if (bitmap == null) {
+            bitmap = draw(sizePx, solidColor, fillColor);
+            cache.put(key, bitmap);
+        }
+        return bitmap;
+    }
 
-        Paint solid = new Paint();
-        solid.setColor(SOLID_COLOR);
-        solid.setAntiAlias(true);
-        Paint fill = new Paint();
-        fill.setAntiAlias(true);
-        fill.setColor(POINT_COLOR_FILL);
+    @NonNull
+    private Bitmap draw(int sizePx, int solidColor, int fillColor) {
+        Bitmap bmp = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bmp);
+        solid.setColor(solidColor);
+        fill.setColor(fillColor);
 
-        final float center = BITMAP_SIZE / 2f;
+        final float center = sizePx / 2f;
         canvas.drawCircle(center, center, center, solid); // Outer circle
         canvas.drawCircle(center, center, center * 0.9f, fill); // Fill circle
         canvas.drawCircle(center, center, center * 0.25f, solid); // Inner circle
         return bmp;
     }
-}
\ No newline at end of file
+
+    /**
+     * Every {@link Marker} variant by image id.
+     */
+    @NonNull
+    HashMap<String, Bitmap> getSprites(float density) {
+        HashMap<String, Bitmap> sprites = new HashMap<>();
+        for (Marker marker : Marker.values()) {
+            sprites.put(marker.imageId, getBitmap(marker, density));
+        }
+        return sprites;
+    }
+
+    /**
+     * Registers the sprite atlas in a freshly loaded style, once, so symbols only reference the
+     * images by id.
+     */
+    void addSpritesTo(@NonNull Style style, float density) {
+        if (style.getImage(Marker.NORMAL.imageId) == null) {
+            style.addImages(getSprites(density));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.akvo.mapexperiments;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+
+import com.mapbox.geojson.MultiPolygon;
+import com.mapbox.geojson.Point;
+import com.mapbox.mapboxsdk.offline.OfflineGeometryRegionDefinition;
+import com.mapbox.mapboxsdk.offline.OfflineManager;
+import com.mapbox.mapboxsdk.offline.OfflineRegion;
+
+import org.akvo.mapexperiments.geometry.Corridor;
+import org.akvo.mapexperiments.geometry.GeoDistance;
+import org.akvo.mapexperiments.geometry.TileCover;
+import org.akvo.mapexperiments.geometry.TileSizeModel;
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Downloads the map around a track while it is being recorded, so the basemap is still there when
+ * the connection drops in the middle of a plot. The first fix gets a square of
+ * {@link #LOOKAHEAD_METERS} around it; then, every time the walk gets {@link #EXTEND_METERS} away
+ * from the covered stretch, the new stretch is buffered into a {@link Corridor} and downloaded as
+ * its own offline region, with {@link #LOOKAHEAD_METERS} more in the direction of travel. Already
+ * covered stretches are never requested again, and regions are created at most every
+ * {@link #MIN_INTERVAL_MILLIS}. The downloads go through the {@link OfflineDownloadService}.
+ * <p/>
+ * Every corridor is sized like the regions the user downloads: room is made for it in the
+ * {@link RegionStorageManager} budget, and prefetching stops once it would take the last tiles
+ * below the Mapbox tile count limit, which the user's own downloads need. Main thread only.
+ */
+class CorridorPrefetcher {
+
+    private static final String TAG = "CorridorPrefetcher";
+
+    static final double HALF_WIDTH_METERS = 150;
+    static final double LOOKAHEAD_METERS = 500;
+    static final double EXTEND_METERS = 200;
+    static final long MIN_INTERVAL_MILLIS = 60 * 1000;
+    /**
+     * The direction of travel is taken over at least this distance, fixes jitter over shorter
+     * ones.
+     */
+    private static final double HEADING_METERS = 30;
+    /**
+     * Enough detail to find the way; deeper zooms are drawn from the deepest vector tiles.
+     */
+    private static final double MIN_ZOOM = 13;
+    private static final double MAX_ZOOM = 16;
+
+    private final Context context;
+    private final OfflineManager offlineManager;
+    private final String styleUrl;
+    private final float pixelRatio;
+
+    /**
+     * Last point of the track the downloaded corridors cover, -1 before the first one.
+     */
+    private int coveredIndex = -1;
+    private boolean requested;
+    private long lastRequestMillis;
+    private boolean creating;
+    private boolean active;
+
+    CorridorPrefetcher(@NonNull Context context, @NonNull String styleUrl) {
+        this.context = context.getApplicationContext();
+        this.offlineManager = OfflineManager.getInstance(context);
+        this.styleUrl = styleUrl;
+        this.pixelRatio = context.getResources().getDisplayMetrics().density;
+    }
+
+    /**
+     * Starts covering a new recording, or a recovered one from its last point.
+     *
+     * @param nowMillis elapsed realtime
+     */
+    void start(@NonNull TrackBuffer track, long nowMillis) {
+        active = true;
+        coveredIndex = -1;
+        requested = false;
+        if (!track.isEmpty()) {
+            prefetchAround(track, track.size() - 1, nowMillis);
+        }
+    }
+
+    void stop() {
+        active = false;
+    }
+
+    /**
+     * Called after fixes were appended to the track.
+     *
+     * @param nowMillis elapsed realtime
+     */
+    void onTrackExtended(@NonNull TrackBuffer track, long nowMillis) {
+        if (!active || creating || track.isEmpty()) {
+            return;
+        }
+        // also spaces the retries when a request failed
+        if (requested && nowMillis - lastRequestMillis < MIN_INTERVAL_MILLIS) {
+            return;
+        }
+        int last = track.size() - 1;
+        if (coveredIndex < 0) {
+            prefetchAround(track, last, nowMillis);
+            return;
+        }
+        double walked = GeoDistance.equirectangular(track.getLatitude(coveredIndex),
+                track.getLongitude(coveredIndex), track.getLatitude(last),
+                track.getLongitude(last));
+        if (walked < EXTEND_METERS) {
+            return;
+        }
+        List<double[]> rings = Corridor.buffer(track, coveredIndex, last, HALF_WIDTH_METERS);
+        int from = findHeadingStart(track, last);
+        if (from >= 0) {
+            rings.add(Corridor.ahead(track.getLatitude(from), track.getLongitude(from),
+                    track.getLatitude(last), track.getLongitude(last), LOOKAHEAD_METERS,
+                    HALF_WIDTH_METERS));
+        }
+        request(rings, last, nowMillis);
+    }
+
+    private void prefetchAround(TrackBuffer track, int index, long nowMillis) {
+        List<double[]> rings = new ArrayList<>();
+        rings.add(Corridor.square(track.getLatitude(index), track.getLongitude(index),
+                LOOKAHEAD_METERS));
+        request(rings, index, nowMillis);
+    }
+
+    /**
+     * @return the last point at least {@link #HEADING_METERS} before {@code last}, or -1.
+     */
+    private int findHeadingStart(TrackBuffer track, int last) {
+        for (int i = last - 1; i >= 0; i--) {
+            if (GeoDistance.equirectangular(track.getLatitude(i), track.getLongitude(i),
+                    track.getLatitude(last), track.getLongitude(last)) >= HEADING_METERS) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void request(List<double[]> rings, final int coveredTo, long nowMillis) {
+        List<List<List<Point>>> polygons = new ArrayList<>(rings.size());
+        double south = 90;
+        double west = 180;
+        double north = -90;
+        double east = -180;
+        for (double[] ring : rings) {
+            List<Point> points = new ArrayList<>(ring.length / 2);
+            for (int i = 0; i < ring.length; i += 2) {
+                points.add(Point.fromLngLat(ring[i], ring[i + 1]));
+                west = Math.min(west, ring[i]);
+                east = Math.max(east, ring[i]);
+                south = Math.min(south, ring[i + 1]);
+                north = Math.max(north, ring[i + 1]);
+            }
+            List<List<Point>> polygon = new ArrayList<>(1);
+            polygon.add(points);
+            polygons.add(polygon);
+        }
+        final OfflineGeometryRegionDefinition definition = new OfflineGeometryRegionDefinition(
+                styleUrl, MultiPolygon.fromLngLats(polygons), MIN_ZOOM, MAX_ZOOM, pixelRatio);
+        // the bounds of the rings hold more tiles than the rings: an upper bound
+        final TileCover.Estimate estimate = TileCover.estimate(south, west, north, east,
+                MIN_ZOOM, MAX_ZOOM, TileSizeModel.forStyle(styleUrl), pixelRatio);
+
+        creating = true;
+        requested = true;
+        lastRequestMillis = nowMillis;
+        RegionStorageManager.getInstance(context).countTiles(
+                new RegionStorageManager.TileCountCallback() {
+                    @Override
+                    public void onTilesCounted(long tiles) {
+                        if (!active) {
+                            creating = false;
+                        } else if (tiles + estimate.tiles > TileCover.MAPBOX_TILE_COUNT_LIMIT) {
+                            creating = false;
+                            active = false;
+                            Log.w(TAG, "Stopped prefetching, " + tiles
+                                    + " tiles already stored");
+                        } else {
+                            makeRoom(definition, estimate, coveredTo);
+                        }
+                    }
+                });
+    }
+
+    private void makeRoom(final OfflineGeometryRegionDefinition definition,
+            final TileCover.Estimate estimate, final int coveredTo) {
+        RegionStorageManager.getInstance(context).enforceBudget(estimate.bytes,
+                new RegionStorageManager.Callback() {
+                    @Override
+                    public void onEvicted(int regionCount, long bytesReclaimed) {
+                        create(definition, estimate, coveredTo);
+                    }
+                });
+    }
+
+    private void create(OfflineGeometryRegionDefinition definition, TileCover.Estimate estimate,
+            final int coveredTo) {
+        long now = System.currentTimeMillis();
+        final String name = context.getString(R.string.corridor_region_name,
+                DateFormat.getTimeInstance(DateFormat.SHORT).format(new Date(now)));
+        final RegionMetadata metadata = new RegionMetadata(name, now, now, estimate.bytes,
+                estimate.tiles);
+        offlineManager.createOfflineRegion(definition, metadata.encode(),
+                new OfflineManager.CreateOfflineRegionCallback() {
+                    @Override
+                    public void onCreate(OfflineRegion offlineRegion) {
+                        creating = false;
+                        coveredIndex = coveredTo;
+                        RegionMapper.put(offlineRegion.getID(), metadata);
+                        OfflineDownloadService.enqueue(context, offlineRegion.getID(), name);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        // tried again once the interval is over
+                        creating = false;
+                        Log.e(TAG, "Could not create corridor region: " + error);
+                    }
+                });
+    }
+}
@@ -0,0 +1,107 @@
+package org.akvo.mapexperiments;
+
+/**
+ * Throughput of the offline downloads, measured over a moving window of samples taken at most
+ * every {@link #SAMPLE_INTERVAL_MILLIS}.
+ * <p/>
+ * Mapbox reports the status of a region after every resource, thousands of times a second on a
+ * fast connection. The reports only add up to the counters here, which costs nothing; the
+ * {@link OfflineDownloadService} takes a sample, and tells the screens and the notification, when
+ * {@link #getSampleDelayMillis} says it is time.
+ */
+class DownloadProgress {
+
+    static final long SAMPLE_INTERVAL_MILLIS = 500;
+    static final long WINDOW_MILLIS = 10000;
+
+    private static final int CAPACITY = (int) (WINDOW_MILLIS / SAMPLE_INTERVAL_MILLIS) + 1;
+
+    // downloaded since the service started, over all regions
+    private long totalResources;
+    private long totalBytes;
+
+    // ring of samples, oldest at head
+    private final long[] times = new long[CAPACITY];
+    private final long[] resources = new long[CAPACITY];
+    private final long[] bytes = new long[CAPACITY];
+    private int head;
+    private int count;
+
+    /**
+     * Counts resources and bytes downloaded since the last report of a region.
+     */
+    void record(long resourceCount, long byteCount) {
+        totalResources += Math.max(resourceCount, 0);
+        totalBytes += Math.max(byteCount, 0);
+    }
+
+    /**
+     * @return how long to wait before the next sample, 0 if it is due.
+     */
+    long getSampleDelayMillis(long nowMillis) {
+        if (count == 0) {
+            return 0;
+        }
+        return Math.max(0, times[index(count - 1)] + SAMPLE_INTERVAL_MILLIS - nowMillis);
+    }
+
+    /**
+     * Samples the counters, forgetting samples older than the window.
+     */
+    void sample(long nowMillis) {
+        while (count > 0 && nowMillis - times[head] > WINDOW_MILLIS) {
+            head = (head + 1) % CAPACITY;
+            count--;
+        }
+        if (count == CAPACITY) {
+            head = (head + 1) % CAPACITY;
+            count--;
+        }
+        int last = index(count);
+        times[last] = nowMillis;
+        resources[last] = totalResources;
+        bytes[last] = totalBytes;
+        count++;
+    }
+
+    /**
+     * Forgets the samples, when nothing is downloading.
+     */
+    void reset() {
+        count = 0;
+    }
+
+    double getBytesPerSecond() {
+        return rate(bytes);
+    }
+
+    double getResourcesPerSecond() {
+        return rate(resources);
+    }
+
+    /**
+     * @param remainingResources resources the active regions still need
+     * @return the milliseconds to download them at the current rate, -1 if unknown.
+     */
+    long getEtaMillis(long remainingResources) {
+        double rate = getResourcesPerSecond();
+        if (rate <= 0 || remainingResources < 0) {
+            return -1;
+        }
+        return Math.round(remainingResources / rate * 1000);
+    }
+
+    private double rate(long[] values) {
+        if (count < 2) {
+            return 0;
+        }
+        int first = head;
+        int last = index(count - 1);
+        long millis = times[last] - times[first];
+        return millis <= 0 ? 0 : (values[last] - values[first]) * 1000.0 / millis;
+    }
+
+    private int index(int i) {
+        return (head + i) % CAPACITY;
+    }
+}
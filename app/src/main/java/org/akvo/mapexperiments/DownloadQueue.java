@@ -0,0 +1,197 @@
+package org.akvo.mapexperiments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Offline regions waiting for, going through or done with their download, in the order they were
+ * queued. Only the regions' Mapbox ids, names and states are kept, and saved as JSON by the
+ * {@link OfflineDownloadService}: the region definitions and tiles are in the Mapbox database.
+ */
+class DownloadQueue {
+
+    enum State {
+        QUEUED,
+        ACTIVE,
+        PAUSED,
+        COMPLETE,
+        FAILED
+    }
+
+    static class Entry {
+
+        final long regionId;
+        final String name;
+        State state;
+
+        // progress is reported again by Mapbox when a download resumes, it is not saved
+        transient long completedResources;
+        transient long requiredResources;
+        transient long completedBytes;
+
+        Entry(long regionId, String name) {
+            this.regionId = regionId;
+            this.name = name;
+            this.state = State.QUEUED;
+        }
+
+        boolean isPending() {
+            return state == State.QUEUED || state == State.ACTIVE;
+        }
+    }
+
+    private static final Gson GSON = new Gson();
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    @NonNull
+    static DownloadQueue fromJson(@Nullable String json) {
+        DownloadQueue queue = new DownloadQueue();
+        if (json == null) {
+            return queue;
+        }
+        try {
+            Entry[] saved = GSON.fromJson(json, Entry[].class);
+            if (saved != null) {
+                for (Entry entry : saved) {
+                    if (entry != null && entry.state != null) {
+                        queue.entries.add(entry);
+                    }
+                }
+            }
+        } catch (JsonParseException e) {
+            // a damaged queue is dropped, the regions stay in the Mapbox database
+        }
+        return queue;
+    }
+
+    @NonNull
+    String toJson() {
+        return GSON.toJson(entries.toArray(new Entry[0]));
+    }
+
+    @NonNull
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Nullable
+    Entry get(long regionId) {
+        for (Entry entry : entries) {
+            if (entry.regionId == regionId) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a region, or queues it again if it failed or was paused.
+     */
+    @NonNull
+    Entry add(long regionId, @NonNull String name) {
+        Entry entry = get(regionId);
+        if (entry == null) {
+            entry = new Entry(regionId, name);
+            entries.add(entry);
+        } else if (!entry.isPending() && entry.state != State.COMPLETE) {
+            entry.state = State.QUEUED;
+        }
+        return entry;
+    }
+
+    void remove(long regionId) {
+        Entry entry = get(regionId);
+        if (entry != null) {
+            entries.remove(entry);
+        }
+    }
+
+    void removeComplete() {
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().state == State.COMPLETE) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the entries that were pending and are now paused.
+     */
+    @NonNull
+    List<Entry> pause(@Nullable Long regionId) {
+        List<Entry> paused = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.isPending() && (regionId == null || entry.regionId == regionId)) {
+                entry.state = State.PAUSED;
+                paused.add(entry);
+            }
+        }
+        return paused;
+    }
+
+    /**
+     * Puts paused entries back in the queue; they become active in their original order.
+     */
+    void resume(@Nullable Long regionId) {
+        for (Entry entry : entries) {
+            if (entry.state == State.PAUSED
+                    && (regionId == null || entry.regionId == regionId)) {
+                entry.state = State.QUEUED;
+            }
+        }
+    }
+
+    /**
+     * Makes queued entries active, oldest first, until {@code maxActive} are.
+     *
+     * @return the entries that just became active.
+     */
+    @NonNull
+    List<Entry> activate(int maxActive) {
+        int active = count(State.ACTIVE);
+        List<Entry> activated = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (active >= maxActive) {
+                break;
+            }
+            if (entry.state == State.QUEUED) {
+                entry.state = State.ACTIVE;
+                activated.add(entry);
+                active++;
+            }
+        }
+        return activated;
+    }
+
+    int count(@NonNull State state) {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry.state == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    boolean hasPendingWork() {
+        for (Entry entry : entries) {
+            if (entry.isPending()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasPaused() {
+        return count(State.PAUSED) > 0;
+    }
+}
@@ -0,0 +1,216 @@
+package org.akvo.mapexperiments;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonObject;
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+import com.mapbox.mapboxsdk.maps.Style;
+import com.mapbox.mapboxsdk.style.layers.CircleLayer;
+import com.mapbox.mapboxsdk.style.layers.FillLayer;
+import com.mapbox.mapboxsdk.style.layers.LineLayer;
+import com.mapbox.mapboxsdk.style.sources.GeoJsonSource;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.akvo.mapexperiments.geometry.TrackSimplifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.mapbox.mapboxsdk.style.expressions.Expression.color;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.eq;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.geometryType;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.get;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.interpolate;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.linear;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.stop;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.circleColor;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.circleRadius;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.circleStrokeColor;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.circleStrokeWidth;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.fillColor;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.fillOpacity;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.lineColor;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.lineWidth;
+
+/**
+ * Draws the track from a single {@link GeoJsonSource} and three style layers instead of one
+ * annotation per vertex, so that very long tracks stay cheap to pan and zoom. The feature
+ * collection is built on a worker thread and handed to the source in one call; appends that
+ * arrive while a build is running are coalesced into the next one.
+ */
+class GeoJsonTrackRenderer implements TrackRenderer {
+
+    static final String PROPERTY_ACCURACY = "accuracy";
+
+    private static final String SOURCE_ID = "track-source";
+    private static final String FILL_LAYER_ID = "track-fill";
+    private static final String LINE_LAYER_ID = "track-line";
+    private static final String CIRCLE_LAYER_ID = "track-circles";
+
+    private static final int TRACK_COLOR = 0xFF736357;
+    private static final int CIRCLE_STROKE_COLOR = 0xFF027A73;
+    private static final int GOOD_ACCURACY_COLOR = 0xFF00A79D;
+    private static final int FAIR_ACCURACY_COLOR = 0xFFF2C94C;
+    private static final int POOR_ACCURACY_COLOR = 0xFFD0021B;
+    private static final float GOOD_ACCURACY_METERS = 5f;
+    private static final float FAIR_ACCURACY_METERS = 20f;
+    private static final float POOR_ACCURACY_METERS = 50f;
+
+    private final GeoJsonSource source;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private TrackBuffer track;
+    private TrackSimplifier.Level level;
+
+    private boolean buildRunning;
+    private boolean buildRequested;
+    private boolean released;
+
+    GeoJsonTrackRenderer(@NonNull Style style) {
+        source = new GeoJsonSource(SOURCE_ID);
+        style.addSource(source);
+        style.addLayer(new FillLayer(FILL_LAYER_ID, SOURCE_ID)
+                .withFilter(eq(geometryType(), "Polygon"))
+                .withProperties(
+                        fillColor(TRACK_COLOR),
+                        fillOpacity(0.5f)));
+        style.addLayer(new LineLayer(LINE_LAYER_ID, SOURCE_ID)
+                .withFilter(eq(geometryType(), "LineString"))
+                .withProperties(
+                        lineColor(TRACK_COLOR),
+                        lineWidth((float) MapOptions.LINE_WIDTH)));
+        style.addLayer(new CircleLayer(CIRCLE_LAYER_ID, SOURCE_ID)
+                .withFilter(eq(geometryType(), "Point"))
+                .withProperties(
+                        circleRadius(8f),
+                        circleStrokeWidth(1f),
+                        circleStrokeColor(CIRCLE_STROKE_COLOR),
+                        circleColor(interpolate(linear(), get(PROPERTY_ACCURACY),
+                                stop(GOOD_ACCURACY_METERS, color(GOOD_ACCURACY_COLOR)),
+                                stop(FAIR_ACCURACY_METERS, color(FAIR_ACCURACY_COLOR)),
+                                stop(POOR_ACCURACY_METERS, color(POOR_ACCURACY_COLOR))))));
+    }
+
+    @Override
+    public void append(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level,
+            int fromPosition) {
+        rebuild(track, level);
+    }
+
+    @Override
+    public void rebuild(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level) {
+        this.track = track;
+        this.level = level;
+        requestBuild();
+    }
+
+    @Override
+    public void clear() {
+        track = null;
+        level = null;
+        requestBuild();
+    }
+
+    /**
+     * Stops the worker thread. The layers stay in the style until it is reloaded.
+     */
+    void release() {
+        released = true;
+        mainHandler.removeCallbacksAndMessages(null);
+        executor.shutdownNow();
+    }
+
+    private void requestBuild() {
+        if (buildRunning) {
+            buildRequested = true;
+        } else {
+            startBuild();
+        }
+    }
+
+    private void startBuild() {
+        if (released) {
+            return;
+        }
+        buildRunning = true;
+        buildRequested = false;
+        // only the primitive columns are copied here, the features are created on the worker
+        final TrackBuffer snapshot = copyVertices();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FeatureCollection featureCollection = buildFeatureCollection(snapshot);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBuildFinished(featureCollection);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onBuildFinished(FeatureCollection featureCollection) {
+        buildRunning = false;
+        if (released) {
+            return;
+        }
+        // builds run one at a time, so this is always newer than what is shown
+        source.setGeoJson(featureCollection);
+        if (buildRequested) {
+            startBuild();
+        }
+    }
+
+    @NonNull
+    private TrackBuffer copyVertices() {
+        if (track == null || level == null) {
+            return new TrackBuffer(1);
+        }
+        int size = level.size();
+        TrackBuffer vertices = new TrackBuffer(size);
+        for (int position = 0; position < size; position++) {
+            int index = level.get(position);
+            vertices.add(track.getLatitude(index), track.getLongitude(index),
+                    track.getAccuracy(index), track.getTime(index));
+        }
+        return vertices;
+    }
+
+    @NonNull
+    private static FeatureCollection buildFeatureCollection(@NonNull TrackBuffer track) {
+        int size = track.size();
+        List<Feature> features = new ArrayList<>(size + 2);
+        if (size == 0) {
+            return FeatureCollection.fromFeatures(features);
+        }
+        List<Point> coordinates = new ArrayList<>(size + 1);
+        for (int i = 0; i < size; i++) {
+            Point point = Point.fromLngLat(track.getLongitude(i), track.getLatitude(i));
+            coordinates.add(point);
+            JsonObject properties = new JsonObject();
+            properties.addProperty(PROPERTY_ACCURACY, track.getAccuracy(i));
+            features.add(Feature.fromGeometry(point, properties));
+        }
+        if (size > 2) {
+            List<Point> ring = new ArrayList<>(coordinates);
+            ring.add(coordinates.get(0));
+            features.add(0, Feature.fromGeometry(
+                    Polygon.fromLngLats(Collections.singletonList(ring))));
+        }
+        if (size > 1) {
+            features.add(0, Feature.fromGeometry(LineString.fromLngLats(coordinates)));
+        }
+        return FeatureCollection.fromFeatures(features);
+    }
+}
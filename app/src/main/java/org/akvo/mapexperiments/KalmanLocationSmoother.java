@@ -0,0 +1,97 @@
+package org.akvo.mapexperiments;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Scalar Kalman filter over latitude and longitude with the fix accuracy as measurement noise and
+ * a constant process noise expressed as an expected speed. It never drops a fix, it returns a copy
+ * moved towards the estimate with the estimated accuracy.
+ */
+class KalmanLocationSmoother implements LocationFilter {
+
+    private static final float MIN_ACCURACY_METERS = 1f;
+
+    private final float processNoiseMetersPerSecond;
+
+    private boolean initialized;
+    private double latitude;
+    private double longitude;
+    private long time;
+    /**
+     * Estimate variance in square meters.
+     */
+    private double variance;
+
+    KalmanLocationSmoother(float processNoiseMetersPerSecond) {
+        this.processNoiseMetersPerSecond = processNoiseMetersPerSecond;
+    }
+
+    @Nullable
+    @Override
+    public Location filter(@NonNull Location location) {
+        boolean first = !initialized;
+        update(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getTime());
+        if (first) {
+            return location;
+        }
+        Location smoothed = new Location(location);
+        smoothed.setLatitude(latitude);
+        smoothed.setLongitude(longitude);
+        smoothed.setAccuracy(getAccuracy());
+        return smoothed;
+    }
+
+    /**
+     * Moves the estimate towards a new measurement.
+     */
+    void update(double measuredLatitude, double measuredLongitude, float measuredAccuracy,
+            long measuredTime) {
+        float accuracy = Math.max(measuredAccuracy, MIN_ACCURACY_METERS);
+        if (!initialized) {
+            initialized = true;
+            latitude = measuredLatitude;
+            longitude = measuredLongitude;
+            time = measuredTime;
+            variance = accuracy * accuracy;
+            return;
+        }
+        long elapsedMillis = measuredTime - time;
+        if (elapsedMillis > 0) {
+            variance += elapsedMillis * processNoiseMetersPerSecond * processNoiseMetersPerSecond
+                    / 1000.0;
+            time = measuredTime;
+        }
+        double gain = variance / (variance + accuracy * accuracy);
+        latitude += gain * (measuredLatitude - latitude);
+        longitude += gain * (measuredLongitude - longitude);
+        variance = (1 - gain) * variance;
+    }
+
+    double getLatitude() {
+        return latitude;
+    }
+
+    double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * @return the standard deviation of the estimate in meters.
+     */
+    float getAccuracy() {
+        return (float) Math.sqrt(variance);
+    }
+
+    @Override
+    public void reset() {
+        initialized = false;
+    }
+
+    @Override
+    public String toString() {
+        return "kalman";
+    }
+}
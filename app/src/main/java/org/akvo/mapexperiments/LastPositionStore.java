@@ -0,0 +1,244 @@
+package org.akvo.mapexperiments;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Where the map was looking and where the user was when a map screen was last left, so the next
+ * one opens there instead of at the default camera and tiles start loading while GPS is still
+ * acquiring. The file is small enough to be read synchronously in {@code onCreate}; writes go to
+ * a worker thread and replace the file atomically.
+ * <p/>
+ * Layout: magic and version (ints), flags (int), camera latitude, longitude, zoom, bearing and
+ * tilt (doubles), fix latitude and longitude (doubles), accuracy (float), time (long) and a CRC32
+ * of everything before it (int).
+ */
+class LastPositionStore {
+
+    private static final String TAG = "LastPositionStore";
+
+    private static final String FILE_NAME = "last_position.bin";
+    private static final int MAGIC = 0x4D45504C;
+    private static final int VERSION = 1;
+    private static final int FLAG_CAMERA = 1;
+    private static final int FLAG_FIX = 2;
+    private static final int PAYLOAD_SIZE = 4 * 3 + 8 * 7 + 4 + 8;
+    static final int FILE_SIZE = PAYLOAD_SIZE + 4;
+
+    private static LastPositionStore instance;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Only touched from the main thread
+    private Snapshot current;
+    private boolean loaded;
+
+    static synchronized LastPositionStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new LastPositionStore(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+
+    LastPositionStore(@NonNull File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    static class Snapshot {
+
+        final boolean hasCamera;
+        final double cameraLatitude;
+        final double cameraLongitude;
+        final double zoom;
+        final double bearing;
+        final double tilt;
+
+        final boolean hasFix;
+        final double fixLatitude;
+        final double fixLongitude;
+        final float fixAccuracy;
+        final long fixTime;
+
+        Snapshot(boolean hasCamera, double cameraLatitude, double cameraLongitude, double zoom,
+                double bearing, double tilt, boolean hasFix, double fixLatitude,
+                double fixLongitude, float fixAccuracy, long fixTime) {
+            this.hasCamera = hasCamera;
+            this.cameraLatitude = cameraLatitude;
+            this.cameraLongitude = cameraLongitude;
+            this.zoom = zoom;
+            this.bearing = bearing;
+            this.tilt = tilt;
+            this.hasFix = hasFix;
+            this.fixLatitude = fixLatitude;
+            this.fixLongitude = fixLongitude;
+            this.fixAccuracy = fixAccuracy;
+            this.fixTime = fixTime;
+        }
+
+        Snapshot withCamera(double latitude, double longitude, double zoom, double bearing,
+                double tilt) {
+            return new Snapshot(true, latitude, longitude, zoom, bearing, tilt, hasFix,
+                    fixLatitude, fixLongitude, fixAccuracy, fixTime);
+        }
+
+        Snapshot withFix(double latitude, double longitude, float accuracy, long time) {
+            return new Snapshot(hasCamera, cameraLatitude, cameraLongitude, zoom, bearing, tilt,
+                    true, latitude, longitude, accuracy, time);
+        }
+
+        static final Snapshot EMPTY = new Snapshot(false, 0, 0, 0, 0, 0, false, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return what was saved last, read from the file on first use, or null if nothing was.
+     */
+    @Nullable
+    Snapshot read() {
+        if (!loaded) {
+            current = readFile();
+            loaded = true;
+        }
+        return current;
+    }
+
+    /**
+     * Saves the camera, and with it the last fix given to {@link #setFix}.
+     */
+    void saveCamera(double latitude, double longitude, double zoom, double bearing,
+            double tilt) {
+        Snapshot base = read();
+        current = (base == null ? Snapshot.EMPTY : base).withCamera(latitude, longitude, zoom,
+                bearing, tilt);
+        final byte[] bytes = encode(current);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(bytes);
+            }
+        });
+    }
+
+    /**
+     * Remembers the fix in memory only: fixes arrive every few seconds, it is written with the
+     * next {@link #saveCamera}.
+     */
+    void setFix(@NonNull Location location) {
+        Snapshot base = read();
+        current = (base == null ? Snapshot.EMPTY : base).withFix(location.getLatitude(),
+                location.getLongitude(), location.getAccuracy(), location.getTime());
+    }
+
+    @NonNull
+    static byte[] encode(@NonNull Snapshot snapshot) {
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        int flags = (snapshot.hasCamera ? FLAG_CAMERA : 0) | (snapshot.hasFix ? FLAG_FIX : 0);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(flags);
+        buffer.putDouble(snapshot.cameraLatitude).putDouble(snapshot.cameraLongitude)
+                .putDouble(snapshot.zoom).putDouble(snapshot.bearing).putDouble(snapshot.tilt);
+        buffer.putDouble(snapshot.fixLatitude).putDouble(snapshot.fixLongitude)
+                .putFloat(snapshot.fixAccuracy).putLong(snapshot.fixTime);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, PAYLOAD_SIZE);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * @return the snapshot, or null if the bytes are from another version, cut short or corrupt.
+     */
+    @Nullable
+    static Snapshot decode(@NonNull byte[] bytes) {
+        if (bytes.length != FILE_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, PAYLOAD_SIZE);
+        if (buffer.getInt(PAYLOAD_SIZE) != (int) crc.getValue()) {
+            return null;
+        }
+        int flags = buffer.getInt();
+        return new Snapshot((flags & FLAG_CAMERA) != 0, buffer.getDouble(), buffer.getDouble(),
+                buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                (flags & FLAG_FIX) != 0, buffer.getDouble(), buffer.getDouble(),
+                buffer.getFloat(), buffer.getLong());
+    }
+
+    @Nullable
+    private Snapshot readFile() {
+        if (file.length() != FILE_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            byte[] bytes = new byte[FILE_SIZE];
+            raf.readFully(bytes);
+            Snapshot snapshot = decode(bytes);
+            if (snapshot == null) {
+                Log.w(TAG, "Ignoring corrupt or outdated last position");
+            }
+            return snapshot;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read last position: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Writes a temporary file and renames it over the previous one, so a kill half way leaves
+     * either the old or the new position.
+     */
+    private void writeFile(byte[] bytes) {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temporary);
+            output.write(bytes);
+            output.getFD().sync();
+            output.close();
+            output = null;
+            if (!temporary.renameTo(file)) {
+                Log.e(TAG, "Could not replace last position");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write last position: " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
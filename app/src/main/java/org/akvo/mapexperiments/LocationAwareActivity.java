@@ -7,60 +7,59 @@ import android.content.IntentSender;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.os.Bundle;
-import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Lifecycle;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.ResolvableApiException;
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationResult;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.LocationSettingsRequest;
-import com.google.android.gms.location.LocationSettingsResponse;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
-import com.google.android.gms.location.SettingsClient;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class LocationAwareActivity extends AppCompatActivity {
-    /**
-     * The desired interval for location updates. Inexact. Updates may be more or less frequent.
-     */
-    static final long UPDATE_INTERVAL_IN_MILLISECONDS = 5000;
-    /**
-     * The fastest rate for active location updates. Exact. Updates will never be more frequent
-     * than this value.
-     */
-    static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS =
-            UPDATE_INTERVAL_IN_MILLISECONDS / 2;
 
     private static final String TAG = "LocationAwareActivity";
 
-    protected final BitmapGenerator bitmapGenerator = new BitmapGenerator();
+    /**
+     * In batched mode the fused provider may hold back up to this many intervals worth of fixes
+     * and deliver them in one go.
+     */
+    static final int MAX_BATCH_INTERVALS = 6;
 
     private boolean activityJustCreated;
-    private FusedLocationProviderClient mFusedLocationClient;
-    private SettingsClient mSettingsClient;
+    private SharedLocationEngine locationEngine;
     private LocationRequest mLocationRequest;
-    private LocationCallback mLocationCallback;
-    private LocationSettingsRequest mLocationSettingsRequest;
+    private SharedLocationEngine.Subscriber locationSubscriber;
+    private LocationFilterPipeline locationFilters;
+    private final LocationScheduler locationScheduler = new LocationScheduler();
+    private boolean requestingUpdates;
+    private boolean batched;
+    /**
+     * Between onStart() and onStop(). The lifecycle state only reaches STARTED after onStart().
+     */
+    private boolean started;
+    /**
+     * Settings result that arrived before the activity was started, applied in {@link #onStart}.
+     */
+    @Nullable
+    private Runnable pendingSettingsResult;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         activityJustCreated = true;
-        mFusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
-        mSettingsClient = LocationServices.getSettingsClient(this);
+        locationEngine = SharedLocationEngine.get(this);
+        locationFilters = createLocationFilters();
 
-        createLocationCallback();
+        createLocationSubscriber();
         createLocationRequest();
-        buildLocationSettingsRequest();
     }
 
     /**
@@ -69,46 +68,138 @@ public abstract class LocationAwareActivity extends AppCompatActivity {
      * accurate to within a few feet.
      * <p/>
      * These settings are appropriate for mapping applications that show real-time location
-     * updates.
+     * updates. The {@link LocationScheduler} relaxes them while the user stands still.
      */
     private void createLocationRequest() {
         mLocationRequest = new LocationRequest();
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-        mLocationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
-        mLocationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
+        applyPolicy(locationScheduler.getPolicy());
+    }
+
+    private void applyPolicy(LocationScheduler.Policy policy) {
+        mLocationRequest.setPriority(policy.priority);
+        mLocationRequest.setInterval(policy.intervalMillis);
+        mLocationRequest.setFastestInterval(policy.getFastestIntervalMillis());
+        mLocationRequest.setMaxWaitTime(batched ? policy.intervalMillis * MAX_BATCH_INTERVALS : 0);
     }
 
     /**
-     * Creates a callback for receiving location events.
+     * Tells the engine about the new request after the scheduler changed its policy. Subscribing
+     * again replaces the previous request.
      */
-    private void createLocationCallback() {
-        mLocationCallback = new LocationCallback() {
-            @Override
-            public void onLocationResult(LocationResult locationResult) {
-                super.onLocationResult(locationResult);
+    private void onPolicyChanged() {
+        LocationScheduler.Policy policy = locationScheduler.getPolicy();
+        Log.i(TAG, "Location policy: " + policy + (batched ? ", batched" : ""));
+        applyPolicy(policy);
+        if (requestingUpdates) {
+            locationEngine.subscribe(locationSubscriber, mLocationRequest);
+        }
+    }
 
-                Location currentLocation = locationResult.getLastLocation();
-                updateNewLocation(currentLocation);
+    /**
+     * Creates the subscriber receiving location events from the {@link SharedLocationEngine}.
+     */
+    private void createLocationSubscriber() {
+        locationSubscriber = new SharedLocationEngine.Subscriber() {
+            @Override
+            public void onLocations(@NonNull List<Location> batch) {
+                LocationAwareActivity.this.onLocations(batch);
             }
         };
     }
 
-    protected abstract void updateNewLocation(@Nullable Location currentLocation);
+    /**
+     * Runs every fix of a result through the scheduler and the filters, then hands the accepted
+     * ones over in a single call. A batched result may hold several intervals worth of fixes.
+     */
+    private void onLocations(List<Location> batch) {
+        long now = SystemClock.elapsedRealtime();
+        boolean policyChanged = false;
+        List<Location> accepted = new ArrayList<>(batch.size());
+        for (Location location : batch) {
+            policyChanged |= locationScheduler.onFix(location.getLatitude(),
+                    location.getLongitude(), location.getAccuracy(),
+                    location.hasSpeed() ? location.getSpeed() : -1, location.getTime(), now);
+            Location filtered = locationFilters.filter(location);
+            if (filtered != null) {
+                accepted.add(filtered);
+            }
+        }
+        if (policyChanged) {
+            onPolicyChanged();
+        }
+        if (!accepted.isEmpty()) {
+            updateNewLocations(accepted);
+        }
+    }
+
+    /**
+     * Called with the filtered fixes of one delivery, oldest first. Subclasses that can draw a
+     * whole batch at once should override this rather than rely on
+     * {@link #updateNewLocation(Location)} being called for each fix.
+     */
+    protected void updateNewLocations(@NonNull List<Location> batch) {
+        for (Location location : batch) {
+            updateNewLocation(location);
+        }
+    }
+
+    /**
+     * Whether location updates should continue while the activity is paused, for instance while
+     * recording a track with the screen off. They are then delivered in batches.
+     */
+    protected boolean keepsUpdatesWhilePaused() {
+        return false;
+    }
+
+    private void setBatched(boolean enabled) {
+        if (batched != enabled) {
+            batched = enabled;
+            onPolicyChanged();
+        }
+    }
+
+    /**
+     * The stages every fix goes through before {@link #updateNewLocation(Location)}.
+     */
+    LocationFilterPipeline createLocationFilters() {
+        return LocationFilterPipeline.createDefault();
+    }
 
     /**
-     * Uses a {@link com.google.android.gms.location.LocationSettingsRequest.Builder} to build
-     * a {@link com.google.android.gms.location.LocationSettingsRequest} that is used for checking
-     * if a device has the needed location settings.
+     * Makes the filters forget the fixes seen so far, for instance when a new track starts: the
+     * first fix is then accepted wherever the user stands.
      */
-    private void buildLocationSettingsRequest() {
-        LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
-        builder.addLocationRequest(mLocationRequest);
-        mLocationSettingsRequest = builder.build();
+    protected void resetLocationFilters() {
+        locationFilters.reset();
+    }
+
+    /**
+     * Asks for fixes as often and as precisely as possible again, whatever the user was doing
+     * before, for instance when a new track starts.
+     */
+    protected void resetLocationScheduler() {
+        if (locationScheduler.reset(SystemClock.elapsedRealtime())) {
+            onPolicyChanged();
+        }
+    }
+
+    protected abstract void updateNewLocation(@Nullable Location currentLocation);
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        started = true;
+        if (pendingSettingsResult != null) {
+            Runnable result = pendingSettingsResult;
+            pendingSettingsResult = null;
+            result.run();
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        setBatched(false);
         if (!activityJustCreated) {
             checkLocation();
         }
@@ -118,8 +209,35 @@ public abstract class LocationAwareActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        if (mFusedLocationClient != null && mLocationCallback != null) {
-            mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+        if (requestingUpdates && keepsUpdatesWhilePaused()) {
+            // no one is looking: let the provider batch fixes and wake us up less often
+            setBatched(true);
+            return;
+        }
+        stopLocationUpdates();
+        Log.d(TAG, "Location filters: " + locationFilters);
+        Log.i(TAG, "Location scheduler: "
+                + locationScheduler.describeSavings(SystemClock.elapsedRealtime()));
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        started = false;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // still subscribed if running in batched mode
+        stopLocationUpdates();
+    }
+
+    private void stopLocationUpdates() {
+        if (requestingUpdates) {
+            locationEngine.unsubscribe(locationSubscriber);
+            requestingUpdates = false;
+            locationScheduler.stop(SystemClock.elapsedRealtime());
         }
     }
 
@@ -135,25 +253,44 @@ public abstract class LocationAwareActivity extends AppCompatActivity {
     protected abstract void enableMapLocation();
 
     /**
-     * Requests location updates from the FusedLocationApi. Note: we don't call this unless location
+     * Subscribes to the shared location engine. Note: we don't call this unless location
      * runtime permission has been granted.
      */
-    @SuppressLint("MissingPermission")
     private void startLocationUpdates() {
-        // Begin by checking if the device has the necessary location settings.
-        mSettingsClient.checkLocationSettings(mLocationSettingsRequest)
-                .addOnSuccessListener(this, new OnSuccessListener<LocationSettingsResponse>() {
+        // Begin by checking if the device has the necessary location settings, the engine
+        // remembers if it already did. A remembered success is answered synchronously, while
+        // onCreate() is still running: the result is then kept until onStart(), as onResume()
+        // does not check again right after the creation.
+        locationEngine.checkSettings(mLocationRequest,
+                new SharedLocationEngine.SettingsCallback() {
 
                     @Override
-                    public void onSuccess(LocationSettingsResponse locationSettingsResponse) {
-                        Log.i(TAG, "All location settings are satisfied.");
-                        mFusedLocationClient.requestLocationUpdates(mLocationRequest,
-                                mLocationCallback, Looper.myLooper());
+                    public void onSettingsSatisfied() {
+                        if (deferUntilStarted(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSettingsSatisfied();
+                            }
+                        })) {
+                            return;
+                        }
+                        locationEngine.subscribe(locationSubscriber, mLocationRequest);
+                        if (!requestingUpdates) {
+                            requestingUpdates = true;
+                            locationScheduler.start(SystemClock.elapsedRealtime());
+                        }
                     }
-                })
-                .addOnFailureListener(this, new OnFailureListener() {
+
                     @Override
-                    public void onFailure(@NonNull Exception e) {
+                    public void onSettingsFailure(@NonNull final Exception e) {
+                        if (deferUntilStarted(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSettingsFailure(e);
+                            }
+                        })) {
+                            return;
+                        }
                         int statusCode = ((ApiException) e).getStatusCode();
                         switch (statusCode) {
                             case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
@@ -183,6 +320,20 @@ public abstract class LocationAwareActivity extends AppCompatActivity {
                 });
     }
 
+    /**
+     * @return true if the activity is not started and {@code result} was kept for
+     * {@link #onStart}, or dropped if the activity is destroyed.
+     */
+    private boolean deferUntilStarted(Runnable result) {
+        if (started) {
+            return false;
+        }
+        if (getLifecycle().getCurrentState() != Lifecycle.State.DESTROYED) {
+            pendingSettingsResult = result;
+        }
+        return true;
+    }
+
     private void toast(String errorMessage) {
         Toast.makeText(LocationAwareActivity.this, errorMessage, Toast.LENGTH_LONG).show();
     }
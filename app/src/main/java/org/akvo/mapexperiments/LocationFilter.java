@@ -0,0 +1,23 @@
+package org.akvo.mapexperiments;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * One stage of a {@link LocationFilterPipeline}.
+ */
+interface LocationFilter {
+
+    /**
+     * @return the fix to hand to the next stage, which may be a corrected copy of
+     * {@code location}, or null to drop it.
+     */
+    @Nullable
+    Location filter(@NonNull Location location);
+
+    /**
+     * Forgets any state kept from previous fixes.
+     */
+    void reset();
+}
@@ -0,0 +1,95 @@
+package org.akvo.mapexperiments;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Runs each fix through a chain of {@link LocationFilter}s before it reaches the map, counting
+ * for every stage how many fixes it accepted and rejected.
+ */
+class LocationFilterPipeline {
+
+    /**
+     * Fixes with a worse accuracy than this are not worth drawing.
+     */
+    static final float MAX_ACCURACY_METERS = 30f;
+    /**
+     * Faster than anyone walking or cycling between plots.
+     */
+    static final float MAX_SPEED_METERS_PER_SECOND = 15f;
+    static final float PROCESS_NOISE_METERS_PER_SECOND = 3f;
+    /**
+     * Past positions say nothing about the next fix after such a gap in the updates, e.g. the
+     * app was in the background: the stages start over.
+     */
+    static final long RESET_GAP_MILLIS = 2 * 60 * 1000;
+
+    private final LocationFilter[] stages;
+    private final int[] accepted;
+    private final int[] rejected;
+    private long lastTime = -1;
+
+    LocationFilterPipeline(@NonNull LocationFilter... stages) {
+        this.stages = stages;
+        this.accepted = new int[stages.length];
+        this.rejected = new int[stages.length];
+    }
+
+    /**
+     * Accuracy gate, speed jump rejection, stationary jitter suppression and smoothing, in that
+     * order.
+     */
+    @NonNull
+    static LocationFilterPipeline createDefault() {
+        return new LocationFilterPipeline(
+                new AccuracyFilter(MAX_ACCURACY_METERS),
+                new SpeedJumpFilter(MAX_SPEED_METERS_PER_SECOND),
+                new StationaryFilter(),
+                new KalmanLocationSmoother(PROCESS_NOISE_METERS_PER_SECOND));
+    }
+
+    /**
+     * @return the fix after all stages, or null if one of them dropped it.
+     */
+    @Nullable
+    Location filter(@NonNull Location location) {
+        if (lastTime != -1 && Math.abs(location.getTime() - lastTime) > RESET_GAP_MILLIS) {
+            reset();
+        }
+        lastTime = location.getTime();
+        Location current = location;
+        for (int i = 0; i < stages.length; i++) {
+            current = stages[i].filter(current);
+            if (current == null) {
+                rejected[i]++;
+                return null;
+            }
+            accepted[i]++;
+        }
+        return current;
+    }
+
+    /**
+     * Forgets the state of all stages, the counters are kept.
+     */
+    void reset() {
+        lastTime = -1;
+        for (LocationFilter stage : stages) {
+            stage.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < stages.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(stages[i]).append(": ").append(accepted[i]).append(" accepted/")
+                    .append(rejected[i]).append(" rejected");
+        }
+        return builder.toString();
+    }
+}
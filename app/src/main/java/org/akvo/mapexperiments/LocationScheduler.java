@@ -0,0 +1,216 @@
+package org.akvo.mapexperiments;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.akvo.mapexperiments.geometry.GeoDistance;
+
+import java.util.Locale;
+
+/**
+ * Picks how often and how precisely to ask for fixes from what the last fixes tell about the
+ * user: walking, moving slowly or standing still. A more demanding policy is adopted on the first
+ * fix that asks for it, a less demanding one only after a few fixes agree, so the request is not
+ * re-issued on every bit of noise.
+ * <p/>
+ * It also keeps how long each policy was in effect, to estimate the GPS time saved compared to
+ * requesting {@link Policy#MOVING} all the time.
+ */
+class LocationScheduler {
+
+    /**
+     * Beyond this distance from where the user stopped, they are moving again.
+     */
+    static final float STILL_RADIUS_METERS = 15f;
+    /**
+     * How long the user has to stay within {@link #STILL_RADIUS_METERS} to be stationary.
+     */
+    static final long STILL_DELAY_MILLIS = 60000;
+    /**
+     * Fixes must be at least this good to trust that the user is still.
+     */
+    static final float GOOD_ACCURACY_METERS = 20f;
+    /**
+     * Below this speed the user is looking around a plot rather than walking to the next one.
+     */
+    static final float SLOW_SPEED_METERS_PER_SECOND = 0.7f;
+    static final int DOWNGRADE_CONFIRMATIONS = 3;
+
+    enum Policy {
+        MOVING(LocationRequest.PRIORITY_HIGH_ACCURACY, 5000, true),
+        SLOW(LocationRequest.PRIORITY_HIGH_ACCURACY, 10000, true),
+        STATIONARY(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, 30000, false);
+
+        final int priority;
+        final long intervalMillis;
+        final boolean usesGps;
+
+        Policy(int priority, long intervalMillis, boolean usesGps) {
+            this.priority = priority;
+            this.intervalMillis = intervalMillis;
+            this.usesGps = usesGps;
+        }
+
+        long getFastestIntervalMillis() {
+            return intervalMillis / 2;
+        }
+    }
+
+    private Policy policy = Policy.MOVING;
+    private Policy pendingPolicy;
+    private int pendingCount;
+
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private long anchorTime;
+
+    private boolean hasPrevious;
+    private double previousLatitude;
+    private double previousLongitude;
+    private long previousTime;
+
+    private final long[] policyMillis = new long[Policy.values().length];
+    private long accountedUntil = -1;
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Starts or resumes counting time for the current policy, when updates are requested.
+     */
+    void start(long nowMillis) {
+        accountedUntil = nowMillis;
+    }
+
+    /**
+     * Stops counting time, when updates are removed.
+     */
+    void stop(long nowMillis) {
+        account(nowMillis);
+        accountedUntil = -1;
+    }
+
+    /**
+     * Goes back to {@link Policy#MOVING} and forgets the fixes seen so far, for instance when a
+     * new track starts: its first stretch must not be recorded with GPS off.
+     *
+     * @return true if the policy changed and the location request must be issued again.
+     */
+    boolean reset(long nowMillis) {
+        hasAnchor = false;
+        hasPrevious = false;
+        pendingPolicy = null;
+        pendingCount = 0;
+        if (policy == Policy.MOVING) {
+            return false;
+        }
+        account(nowMillis);
+        policy = Policy.MOVING;
+        return true;
+    }
+
+    /**
+     * @param speed reported speed in m/s, or a negative value if the fix has none.
+     * @return true if the policy changed and the location request must be issued again.
+     */
+    boolean onFix(double latitude, double longitude, float accuracy, float speed,
+            long fixTimeMillis, long nowMillis) {
+        if (speed < 0 && hasPrevious && fixTimeMillis > previousTime) {
+            speed = (float) (GeoDistance.haversine(previousLatitude, previousLongitude, latitude,
+                    longitude) * 1000 / (fixTimeMillis - previousTime));
+        }
+        hasPrevious = true;
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+        previousTime = fixTimeMillis;
+
+        float radius = Math.max(STILL_RADIUS_METERS, accuracy);
+        boolean moved = !hasAnchor || !GeoDistance.isWithin(anchorLatitude, anchorLongitude,
+                latitude, longitude, radius);
+        if (moved) {
+            hasAnchor = true;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            anchorTime = fixTimeMillis;
+        }
+        boolean fast = speed > SLOW_SPEED_METERS_PER_SECOND;
+
+        Policy target;
+        if (policy == Policy.STATIONARY && !moved) {
+            // coarse, jumpy fixes are expected once GPS is off: only leaving the accuracy radius
+            // wakes it up again
+            target = Policy.STATIONARY;
+        } else if (fast) {
+            target = Policy.MOVING;
+        } else if (fixTimeMillis - anchorTime >= STILL_DELAY_MILLIS
+                && accuracy <= GOOD_ACCURACY_METERS) {
+            target = Policy.STATIONARY;
+        } else {
+            target = Policy.SLOW;
+        }
+        return apply(target, nowMillis);
+    }
+
+    private boolean apply(Policy target, long nowMillis) {
+        if (target == policy) {
+            pendingPolicy = null;
+            pendingCount = 0;
+            return false;
+        }
+        if (target.ordinal() > policy.ordinal()) {
+            if (target != pendingPolicy) {
+                pendingPolicy = target;
+                pendingCount = 0;
+            }
+            if (++pendingCount < DOWNGRADE_CONFIRMATIONS) {
+                return false;
+            }
+        }
+        account(nowMillis);
+        policy = target;
+        pendingPolicy = null;
+        pendingCount = 0;
+        return true;
+    }
+
+    private void account(long nowMillis) {
+        if (accountedUntil >= 0 && nowMillis > accountedUntil) {
+            policyMillis[policy.ordinal()] += nowMillis - accountedUntil;
+            accountedUntil = nowMillis;
+        }
+    }
+
+    /**
+     * @return the time GPS was not needed, in milliseconds.
+     */
+    private long getGpsOffMillis(long nowMillis) {
+        account(nowMillis);
+        long off = 0;
+        for (Policy p : Policy.values()) {
+            if (!p.usesGps) {
+                off += policyMillis[p.ordinal()];
+            }
+        }
+        return off;
+    }
+
+    /**
+     * Summary of the savings against requesting {@link Policy#MOVING} all the time.
+     */
+    String describeSavings(long nowMillis) {
+        account(nowMillis);
+        long total = 0;
+        double fixes = 0;
+        for (Policy p : Policy.values()) {
+            long millis = policyMillis[p.ordinal()];
+            total += millis;
+            fixes += (double) millis / p.intervalMillis;
+        }
+        double baselineFixes = (double) total / Policy.MOVING.intervalMillis;
+        long gpsOff = getGpsOffMillis(nowMillis);
+        return String.format(Locale.US, "GPS off %d of %d s (%.0f%%), %.0f fixes instead of %.0f",
+                gpsOff / 1000, total / 1000, total == 0 ? 0.0 : gpsOff * 100.0 / total, fixes,
+                baselineFixes);
+    }
+}
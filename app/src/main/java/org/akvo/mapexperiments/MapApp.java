@@ -6,11 +6,27 @@ import com.mapbox.mapboxsdk.Mapbox;
 
 public class MapApp extends Application {
 
+    private SharedLocationEngine locationEngine;
+
     @Override
     public void onCreate() {
+        StartupTracer.install(this);
+        StartupTracer.beginSection(StartupTracer.Phase.APP_CREATE);
         super.onCreate();
         // Mapbox access token is configured here. This needs to be called either in your application
         // object or in the same activity which contains the mapview.
         Mapbox.getInstance(this, getString(R.string.access_token));
+        StartupTracer.endSection(StartupTracer.Phase.APP_CREATE);
+    }
+
+    /**
+     * Created on first use, it lives as long as the process so that the location subscription
+     * outlives the screens using it.
+     */
+    SharedLocationEngine getLocationEngine() {
+        if (locationEngine == null) {
+            locationEngine = new SharedLocationEngine(this);
+        }
+        return locationEngine;
     }
 }
@@ -1,11 +1,9 @@
 package org.akvo.mapexperiments
 
-import android.content.Context
 import android.content.Intent
-import android.content.SharedPreferences
 import android.location.Location
 import android.os.Bundle
-import android.text.TextUtils
+import android.os.SystemClock
 import android.view.Menu
 import android.view.MenuItem
 import android.view.View
@@ -13,8 +11,7 @@ import android.widget.Button
 import android.widget.TextView
 import android.widget.Toast
 import androidx.appcompat.widget.Toolbar
-import com.google.gson.Gson
-import com.google.gson.reflect.TypeToken
+import com.google.android.material.snackbar.Snackbar
 import com.mapbox.mapboxsdk.camera.CameraPosition
 import com.mapbox.mapboxsdk.camera.CameraUpdateFactory
 import com.mapbox.mapboxsdk.geometry.LatLng
@@ -22,140 +19,318 @@ import com.mapbox.mapboxsdk.maps.MapView
 import com.mapbox.mapboxsdk.maps.MapboxMap
 import com.mapbox.mapboxsdk.maps.Style
 import com.mapbox.mapboxsdk.offline.OfflineRegion
-import com.mapbox.mapboxsdk.offline.OfflineTilePyramidRegionDefinition
-import com.mapbox.mapboxsdk.plugins.annotation.CircleManager
-import com.mapbox.mapboxsdk.plugins.annotation.CircleOptions
 import com.mapbox.mapboxsdk.plugins.annotation.FillManager
-import com.mapbox.mapboxsdk.plugins.annotation.FillOptions
 import com.mapbox.mapboxsdk.plugins.annotation.LineManager
-import com.mapbox.mapboxsdk.plugins.annotation.LineOptions
+import com.mapbox.mapboxsdk.plugins.annotation.SymbolManager
 import org.akvo.mapexperiments.RegionsListDialogFragment.RegionsSelectionListener
-import java.util.ArrayList
-
-class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
-    private val locations: MutableList<LatLng> = ArrayList()
-    private val gson = Gson()
+import org.akvo.mapexperiments.ShapeLibraryDialogFragment.ShapeSelectionListener
+import org.akvo.mapexperiments.geometry.GeoDistance
+import org.akvo.mapexperiments.geometry.TrackBuffer
+import org.akvo.mapexperiments.geometry.TrackSimplifier
+import java.text.DateFormat
+import java.util.Date
+import java.util.concurrent.atomic.AtomicLong
+
+class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener, ShapeSelectionListener {
+    private val locations = TrackBuffer()
+    private val simplifier = TrackSimplifier(locations, MAPBOX_WORLD_SIZE)
+    private var renderedLevel: TrackSimplifier.Level? = null
     private lateinit var mapboxMap: MapboxMap
     private lateinit var mapView: MapView
-    private var sharedPreferences: SharedPreferences? = null
+    private var lastLocation: Location? = null
     private var manualAreaSelected = false
     private var enableTracking = false
 
-    private lateinit var circleManager: CircleManager
-    private lateinit var lineManager: LineManager
-    private lateinit var fillManager: FillManager
+    private var largeTrackMode = false
+    // set once the user picks a mode from the menu, which then stays as picked
+    private var largeTrackModeChosen = false
+
+    private lateinit var trackRenderer: TrackRenderer
+    private lateinit var annotationRenderer: AnnotationTrackRenderer
+    private var geoJsonRenderer: GeoJsonTrackRenderer? = null
+    private var shapeLoader: ShapeLoader? = null
+    private var loadingSnackbar: Snackbar? = null
+    private lateinit var journal: RecordingJournal
+    private lateinit var shapeStore: ShapeStore
+    private lateinit var lastPositionStore: LastPositionStore
+    private lateinit var corridorPrefetcher: CorridorPrefetcher
+    // library row of the track on screen once saved, replaced by a new holder for a new track
+    private var savedShapeId = AtomicLong(-1)
 
     override fun onCreate(savedInstanceState: Bundle?) {
+        StartupTracer.beginSection(StartupTracer.Phase.ACTIVITY_CREATE)
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_mapbox)
         val toolbar =
             findViewById<Toolbar>(R.id.toolbar)
         setSupportActionBar(toolbar)
-        sharedPreferences = getSharedPreferences(
-            PREFERENCE_NAME,
-            Context.MODE_PRIVATE
-        )
+        shapeStore = ShapeStore.getInstance(this)
+        lastPositionStore = LastPositionStore.getInstance(this)
+        corridorPrefetcher = CorridorPrefetcher(this, Style.LIGHT)
+        // read before the map exists, so the first frame is already where the user left off
+        val lastCamera = lastCameraPosition(savedInstanceState)
         mapView = findViewById(R.id.mapView)
         mapView.onCreate(savedInstanceState)
         mapView.getMapAsync { mapboxMap ->
+            if (lastCamera != null) {
+                mapboxMap.cameraPosition = lastCamera
+            }
             onMapReady(mapboxMap)
         }
         findViewById<Button>(R.id.button2).setOnClickListener { v -> onButtonClick(v as Button) }
+        journal = RecordingJournal(filesDir)
+        if (journal.hasPendingRecording()) {
+            journal.recover { track -> onRecordingRecovered(track) }
+        }
+        // permission, settings check and GPS warm-up run while the map and its style load;
+        // fixes arriving before the renderer exists are kept in the track until it does
+        checkLocation()
+        StartupTracer.endSection(StartupTracer.Phase.ACTIVITY_CREATE)
+    }
+
+    /**
+     * The camera saved when a map screen was last left or, failing that, the last fix. None when
+     * the map view restores its own state.
+     */
+    private fun lastCameraPosition(savedInstanceState: Bundle?): CameraPosition? {
+        if (savedInstanceState != null) {
+            return null
+        }
+        val last = lastPositionStore.read() ?: return null
+        return when {
+            last.hasCamera -> CameraPosition.Builder()
+                .target(LatLng(last.cameraLatitude, last.cameraLongitude))
+                .zoom(last.zoom)
+                .bearing(last.bearing)
+                .tilt(last.tilt)
+                .build()
+            last.hasFix -> CameraPosition.Builder()
+                .target(LatLng(last.fixLatitude, last.fixLongitude))
+                .zoom(ZOOM_LEVEL)
+                .build()
+            else -> null
+        }
+    }
+
+    /**
+     * The previous recording was interrupted before it could be saved: continue it.
+     */
+    private fun onRecordingRecovered(track: TrackBuffer) {
+        if (track.isEmpty() || enableTracking) {
+            return
+        }
+        locations.clear()
+        simplifier.reset()
+        savedShapeId = AtomicLong(-1)
+        locations.addAll(track)
+        journal.resume()
+        resetLocationFilters()
+        resetLocationScheduler()
+        enableTracking = true
+        corridorPrefetcher.start(locations, SystemClock.elapsedRealtime())
+        findViewById<Button>(R.id.button2).setText(R.string.stop_recording)
+        toast(getString(R.string.recording_recovered, track.size()))
+        if (::trackRenderer.isInitialized) {
+            renderTrack()
+        }
     }
 
     private fun onButtonClick(v: Button) {
         if (enableTracking) {
             v.setText(R.string.start_recording)
             enableTracking = false
+            corridorPrefetcher.stop()
             saveLocations()
             findViewById<TextView>(R.id.textView2).text = ""
         } else {
-            locations.clear()
-            redrawMap()
+            cancelShapeLoading()
+            clearTrack()
+            journal.start()
+            resetLocationFilters()
+            resetLocationScheduler()
             enableTracking = true
+            corridorPrefetcher.start(locations, SystemClock.elapsedRealtime())
             v.setText(R.string.stop_recording)
         }
     }
 
     private fun onMapReady(mapboxMap: MapboxMap) {
+        StartupTracer.mark(StartupTracer.Phase.MAP_READY)
         this@MapBoxActivity.mapboxMap = mapboxMap
+        mapboxMap.addOnCameraIdleListener { onCameraIdle() }
         mapboxMap.setStyle(Style.LIGHT) { style ->
-            lineManager = LineManager(mapView, mapboxMap, style)
-            circleManager = CircleManager(mapView, mapboxMap, style)
-            fillManager = FillManager(mapView, mapboxMap, style)
-            checkLocation()
+            StartupTracer.mark(StartupTracer.Phase.STYLE_LOADED)
+            val lineManager = LineManager(mapView, mapboxMap, style)
+            BitmapGenerator.getInstance().addSpritesTo(style, resources.displayMetrics.density)
+            val symbolManager = SymbolManager(mapView, mapboxMap, style)
+            val fillManager = FillManager(mapView, mapboxMap, style)
+            annotationRenderer = AnnotationTrackRenderer(symbolManager, lineManager, fillManager)
+            trackRenderer = annotationRenderer
+            onRenderingReady()
         }
+    }
 
+    /**
+     * Draws what was recorded or recovered while the style was loading.
+     */
+    private fun onRenderingReady() {
+        if (locations.isEmpty()) {
+            return
+        }
+        renderTrack()
+        if (!manualAreaSelected) {
+            val last = locations.size() - 1
+            mapboxMap.moveCamera(
+                CameraUpdateFactory.newLatLngZoom(
+                    LatLng(locations.getLatitude(last), locations.getLongitude(last)),
+                    ZOOM_LEVEL
+                )
+            )
+        }
     }
 
     override fun updateNewLocation(location: Location?) {
-        if (enableTracking) {
-            if (location == null) {
-                return
-            }
-            val latestLatLng = LatLngAcc(location)
-            findViewById<TextView>(R.id.textView2).text = getString(R.string.last_location, latestLatLng.title)
-            val lastLatLong =
-                if (locations.size == 0) null else locations[locations.size - 1]
+        if (location != null) {
+            updateNewLocations(listOf(location))
+        }
+    }
+
+    /**
+     * Appends every fix of the batch that is far enough from the previous point, then moves the
+     * camera and renders once for the whole batch.
+     */
+    override fun updateNewLocations(batch: List<Location>) {
+        StartupTracer.mark(StartupTracer.Phase.FIRST_FIX)
+        val newest = batch[batch.size - 1]
+        lastLocation = newest
+        if (!enableTracking) {
+            return
+        }
+        findViewById<TextView>(R.id.textView2).text =
+            getString(R.string.last_location, formatLocation(newest))
+        val firstLocation = locations.isEmpty()
+        val sizeBefore = locations.size()
+        for (location in batch) {
             //5 meters minimum distance for the point to be added
-            if (lastLatLong == null
-                || latestLatLng.distanceTo(lastLatLong) > MapOptions.MINIMUM_DISTANCE
-            ) {
-                if (!manualAreaSelected) {
-                    var zoom =
-                        if (lastLatLong == null) ZOOM_LEVEL else mapboxMap.cameraPosition.zoom
-                    if (zoom == 0.0) {
-                        zoom = ZOOM_LEVEL
-                    }
-                    mapboxMap.animateCamera(
-                        CameraUpdateFactory.newLatLngZoom(
-                            LatLng(location.latitude, location.longitude),
-                            zoom
-                        )
-                    )
-                }
-                locations.add(latestLatLng)
-                redrawMap()
+            if (locations.isEmpty() || !isNearLast(location)) {
+                locations.add(location.latitude, location.longitude, location.accuracy, location.time)
+                journal.append(location.latitude, location.longitude, location.accuracy, location.time)
             }
         }
+        if (locations.size() == sizeBefore) {
+            return
+        }
+        corridorPrefetcher.onTrackExtended(locations, SystemClock.elapsedRealtime())
+        if (!::trackRenderer.isInitialized) {
+            // still loading the style: onRenderingReady() draws the buffered points
+            return
+        }
+        if (!manualAreaSelected) {
+            var zoom =
+                if (firstLocation) ZOOM_LEVEL else mapboxMap.cameraPosition.zoom
+            if (zoom == 0.0) {
+                zoom = ZOOM_LEVEL
+            }
+            val last = locations.size() - 1
+            mapboxMap.animateCamera(
+                CameraUpdateFactory.newLatLngZoom(
+                    LatLng(locations.getLatitude(last), locations.getLongitude(last)),
+                    zoom
+                )
+            )
+        }
+        renderAppended()
     }
 
-    override fun enableMapLocation() {
-        //Ignore
+    /**
+     * Recording continues with the screen off, with fixes delivered in batches.
+     */
+    override fun keepsUpdatesWhilePaused() = enableTracking
+
+    private fun clearTrack() {
+        locations.clear()
+        simplifier.reset()
+        savedShapeId = AtomicLong(-1)
+        renderedLevel = null
+        if (::trackRenderer.isInitialized) {
+            trackRenderer.clear()
+        }
     }
 
-    private fun redrawMap() {
-        circleManager.deleteAll()
-        lineManager.deleteAll()
-        fillManager.deleteAll()
+    /**
+     * Draws the whole track with the level of detail matching the current zoom.
+     */
+    private fun renderTrack() {
+        simplifier.update()
+        val level = simplifier.levelFor(mapboxMap.cameraPosition.zoom)
+        level.takeChangedFrom()
+        renderedLevel = level
+        trackRenderer.rebuild(locations, level)
+    }
 
-        fillManager.create(
-            FillOptions()
-                .withLatLngs(arrayListOf(locations))
-                .withFillColor("#736357")
-                .withFillOpacity(0.5f)
-                .withDraggable(false)
-        )
+    /**
+     * Draws points added at the end of the track, only touching the vertices that changed in the
+     * simplified geometry.
+     */
+    private fun renderAppended() {
+        if (!largeTrackModeChosen && !largeTrackMode
+            && locations.size() > LARGE_TRACK_THRESHOLD && setLargeTrackMode(true)
+        ) {
+            return
+        }
+        simplifier.update()
+        val level = simplifier.levelFor(mapboxMap.cameraPosition.zoom)
+        if (level !== renderedLevel) {
+            renderTrack()
+        } else {
+            trackRenderer.append(locations, level, level.takeChangedFrom())
+        }
+    }
 
-        lineManager.create(
-            LineOptions()
-                .withLineColor("#736357")
-                .withLineWidth(4f)
-                .withDraggable(false)
-                .withLatLngs(locations)
+    private fun onCameraIdle() {
+        if (::trackRenderer.isInitialized
+            && simplifier.levelFor(mapboxMap.cameraPosition.zoom) !== renderedLevel
+        ) {
+            renderTrack()
+        }
+    }
+
+    private fun isNearLast(location: Location): Boolean {
+        val last = locations.size() - 1
+        return GeoDistance.isWithin(
+            locations.getLatitude(last), locations.getLongitude(last),
+            location.latitude, location.longitude, MapOptions.MINIMUM_DISTANCE.toDouble()
         )
+    }
 
-        for (latLng in locations) {
-            circleManager.create(
-                CircleOptions()
-                    .withLatLng(latLng)
-                    .withCircleColor("#00a79d")
-                    .withCircleRadius(8f)
-                    .withCircleStrokeColor("#027a73")
-                    .withDraggable(false)
-                    .withCircleStrokeWidth(1f)
-            )
+    private fun formatLocation(location: Location) =
+        "Loc: " + location.latitude + ", " + location.longitude + ", acc: " + location.accuracy
+
+    override fun enableMapLocation() {
+        //Ignore
+    }
+
+    /**
+     * Switches between one annotation per vertex and a single GeoJSON source with data-driven
+     * layers. The latter is meant for tracks of thousands of points.
+     *
+     * @return false if the map is not ready yet and nothing changed
+     */
+    private fun setLargeTrackMode(enabled: Boolean): Boolean {
+        if (!::mapboxMap.isInitialized || !::trackRenderer.isInitialized) {
+            return false
         }
+        val style = mapboxMap.style ?: return false
+        largeTrackMode = enabled
+        trackRenderer.clear()
+        trackRenderer = if (enabled) {
+            geoJsonRenderer ?: GeoJsonTrackRenderer(style).also { geoJsonRenderer = it }
+        } else {
+            annotationRenderer
+        }
+        renderTrack()
+        invalidateOptionsMenu()
+        return true
     }
 
     override fun onStart() {
@@ -171,11 +346,20 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
     override fun onPause() {
         super.onPause()
         mapView.onPause()
+        if (::mapboxMap.isInitialized) {
+            val camera = mapboxMap.cameraPosition
+            camera.target?.let {
+                lastPositionStore.saveCamera(it.latitude, it.longitude, camera.zoom,
+                    camera.bearing, camera.tilt)
+            }
+        }
     }
 
     override fun onStop() {
         super.onStop()
         mapView.onStop()
+        // left before the first fix: log what was reached
+        StartupTracer.finish()
     }
 
     override fun onSaveInstanceState(outState: Bundle) {
@@ -185,6 +369,9 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
 
     override fun onDestroy() {
         super.onDestroy()
+        cancelShapeLoading()
+        geoJsonRenderer?.release()
+        journal.close()
         mapView.onDestroy()
     }
 
@@ -198,6 +385,11 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
         return super.onCreateOptionsMenu(menu)
     }
 
+    override fun onPrepareOptionsMenu(menu: Menu): Boolean {
+        menu.findItem(R.id.large_track_mode).isChecked = largeTrackMode
+        return super.onPrepareOptionsMenu(menu)
+    }
+
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
         return when (item.itemId) {
             R.id.save -> {
@@ -205,21 +397,27 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
                 true
             }
             R.id.load -> {
-                val savedLocationsString =
-                    sharedPreferences!!.getString(PREF_SHAPE, null)
-                if (!TextUtils.isEmpty(savedLocationsString)) {
-                    toast("Loading shape")
-                    val type =
-                        object : TypeToken<List<LatLngAcc?>?>() {}.type
-                    val locationsPref =
-                        gson.fromJson<List<LatLngAcc>>(
-                            savedLocationsString,
-                            type
-                        )
-                    locations.clear()
-                    locations.addAll(locationsPref)
-                    //TODO: center map on last location item.
-                    redrawMap()
+                ShapeLibraryDialogFragment.newInstance()
+                    .show(supportFragmentManager, ShapeLibraryDialogFragment.TAG)
+                true
+            }
+            R.id.shapes_in_view -> {
+                val bounds = mapboxMap.projection.visibleRegion.latLngBounds
+                ShapeLibraryDialogFragment.newInstanceInBounds(
+                    bounds.latSouth, bounds.lonWest, bounds.latNorth, bounds.lonEast
+                ).show(supportFragmentManager, ShapeLibraryDialogFragment.TAG)
+                true
+            }
+            R.id.shapes_near_me -> {
+                val center = lastLocation?.let { LatLng(it.latitude, it.longitude) }
+                    ?: mapboxMap.cameraPosition.target
+                ShapeLibraryDialogFragment.newInstanceNear(center.latitude, center.longitude)
+                    .show(supportFragmentManager, ShapeLibraryDialogFragment.TAG)
+                true
+            }
+            R.id.large_track_mode -> {
+                if (setLargeTrackMode(!largeTrackMode)) {
+                    largeTrackModeChosen = true
                 }
                 true
             }
@@ -232,21 +430,87 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
         }
     }
 
+    /**
+     * Streams the vertices of a library shape on a worker thread and draws them chunk by chunk.
+     * The user can cancel it from the snackbar.
+     */
+    override fun onShapeSelected(shapeId: Long) {
+        if (enableTracking) {
+            return
+        }
+        cancelShapeLoading()
+        clearTrack()
+        val loader = ShapeLoader(object : ShapeLoader.Listener {
+            override fun onChunk(chunk: TrackBuffer) {
+                locations.addAll(chunk)
+                renderAppended()
+            }
+
+            override fun onFinished(pointCount: Int) {
+                //TODO: center map on last location item.
+                onShapeLoadingDone()
+            }
+
+            override fun onError(message: String) {
+                onShapeLoadingDone()
+                toast(message)
+            }
+        })
+        shapeLoader = loader
+        loadingSnackbar = Snackbar.make(mapView, R.string.loading_shape, Snackbar.LENGTH_INDEFINITE)
+            .setAction(R.string.dialog_negative_button) { cancelShapeLoading() }
+            .also { it.show() }
+        loader.load(ShapeStore.VertexSource(shapeStore, shapeId))
+    }
+
+    private fun cancelShapeLoading() {
+        shapeLoader?.cancel()
+        onShapeLoadingDone()
+    }
+
+    private fun onShapeLoadingDone() {
+        shapeLoader = null
+        loadingSnackbar?.dismiss()
+        loadingSnackbar = null
+    }
+
     private fun saveLocations() {
-        val size = locations.size
-        if (size > 0) {
-            if (size > 2) {
-                locations.add(locations[0])
+        if (!locations.isEmpty()) {
+            // closing the live track would add the start point to the recording at every save
+            val shape = locations.copy()
+            shape.closeRing()
+            val name = getString(
+                R.string.shape_default_name,
+                DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(Date())
+            )
+            val shapeId = savedShapeId
+            if (enableTracking) {
+                shapeStore.execute { saveShape(shapeId, name, shape) }
+            } else {
+                // The recording is over: the journal can go once the shape is on disk
+                journal.compact { saveShape(shapeId, name, shape) }
             }
-            val toJson = gson.toJson(locations)
-            sharedPreferences!!.edit()
-                .putString(PREF_SHAPE, toJson)
-                .apply()
-            toast("Shape saved")
-            redrawMap()
         }
     }
 
+    /**
+     * Saves again into the row of the first save of the same track, on a worker thread.
+     */
+    private fun saveShape(shapeId: AtomicLong, name: String, shape: TrackBuffer): Boolean {
+        val saved = synchronized(shapeId) {
+            val id = shapeStore.save(shapeId.get(), name, shape)
+            if (id != -1L) {
+                shapeId.set(id)
+            }
+            id != -1L
+        }
+        runOnUiThread {
+            val message = if (saved) R.string.toast_shape_saved else R.string.toast_shape_not_saved
+            toast(getString(message))
+        }
+        return saved
+    }
+
     private fun toast(text: String) {
         Toast.makeText(this, text, Toast.LENGTH_LONG).show()
     }
@@ -259,8 +523,8 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
         val definition = region.definition
         val bounds = definition
             .bounds
-        val regionZoom = (definition as OfflineTilePyramidRegionDefinition)
-            .minZoom
+        // tile pyramids and track corridors alike
+        val regionZoom = definition.minZoom
 
         // Create new camera position
         val cameraPosition =
@@ -275,24 +539,17 @@ class MapBoxActivity : LocationAwareActivity(), RegionsSelectionListener {
                 .newCameraPosition(cameraPosition)
         )
         manualAreaSelected = true
-    }
-
-    class LatLngAcc internal constructor(location: Location) :
-        LatLng(location) {
-        var accuracy = 0.0f
-
-        val title: String
-            get() = ("Loc: " + latitude + ", " + longitude
-                    + ", acc: " + accuracy)
-
-        init {
-            accuracy = location.accuracy
-        }
+        RegionMapper.markUsed(region)
     }
 
     companion object {
         const val PREFERENCE_NAME = "Prefs"
+        /**
+         * Single shape slot of older versions, imported into the [ShapeStore].
+         */
         const val PREF_SHAPE = "shape"
         const val ZOOM_LEVEL = 16.0
+        const val LARGE_TRACK_THRESHOLD = 2000
+        const val MAPBOX_WORLD_SIZE = 512.0
     }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package org.akvo.mapexperiments;
 import android.annotation.SuppressLint;
 import android.location.Location;
 import android.os.Bundle;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
@@ -12,26 +13,59 @@ import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
+import org.akvo.mapexperiments.geometry.GeoDistance;
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.akvo.mapexperiments.geometry.TrackSimplifier;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 
 public class MapsActivity extends LocationAwareActivity implements OnMapReadyCallback {
 
     private static final float ZOOM_LEVEL = 15.0F;
 
+    /**
+     * Shared by every instance: one descriptor per marker variant, for the density they were
+     * made for.
+     */
+    private static final EnumMap<BitmapGenerator.Marker, BitmapDescriptor> MARKER_ICONS =
+            new EnumMap<>(BitmapGenerator.Marker.class);
+    private static float markerIconsDensity;
+
+    private static final TrackBuffer.PointFactory<LatLng> LAT_LNG_FACTORY =
+            new TrackBuffer.PointFactory<LatLng>() {
+                @Override
+                public LatLng create(double latitude, double longitude, float accuracy) {
+                    return new LatLng(latitude, longitude);
+                }
+            };
+
     private GoogleMap map;
 
-    private final List<LatLng> locations = new ArrayList<>();
-    private BitmapDescriptor bitmapDescriptor;
+    /**
+     * Google Maps world size in pixels at zoom 0.
+     */
+    private static final double WORLD_SIZE = 256.0;
+
+    private final TrackBuffer locations = new TrackBuffer();
+    private final TrackSimplifier simplifier = new TrackSimplifier(locations, WORLD_SIZE);
+    private final List<Marker> markers = new ArrayList<>();
+    @Nullable
+    private Marker selectedMarker;
+    private Polyline polyline;
+    private TrackSimplifier.Level renderedLevel;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_maps);
-        bitmapDescriptor = BitmapDescriptorFactory.fromBitmap(bitmapGenerator.getBitmap());
         initLocationFragment();
     }
 
@@ -44,6 +78,25 @@ public class MapsActivity extends LocationAwareActivity implements OnMapReadyCal
     @Override
     public void onMapReady(GoogleMap googleMap) {
         map = googleMap;
+        map.setOnMarkerClickListener(new GoogleMap.OnMarkerClickListener() {
+            @Override
+            public boolean onMarkerClick(Marker marker) {
+                // Titles are only needed once the info window is shown
+                if (marker.getTitle() == null) {
+                    marker.setTitle(marker.getPosition().toString());
+                }
+                select(marker);
+                return false;
+            }
+        });
+        map.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
+            @Override
+            public void onCameraIdle() {
+                if (simplifier.levelFor(map.getCameraPosition().zoom) != renderedLevel) {
+                    redrawTrack();
+                }
+            }
+        });
         checkLocation();
     }
 
@@ -55,41 +108,136 @@ public class MapsActivity extends LocationAwareActivity implements OnMapReadyCal
     //TODO: unify code with MapBoxActivity
     @Override
     protected void updateNewLocation(@Nullable Location location) {
-        if (location != null && map != null) {
-            LatLng lastLatLong = locations.size() == 0 ? null : locations.get(locations.size() - 1);
-            Location lastSavedLocation = null;
-            if (lastLatLong != null) {
-                lastSavedLocation = new Location("gps");
-                lastSavedLocation.setLatitude(lastLatLong.latitude);
-                lastSavedLocation.setLongitude(lastLatLong.longitude);
+        if (location != null) {
+            updateNewLocations(Collections.singletonList(location));
+        }
+    }
+
+    /**
+     * Appends every fix of the batch far enough from the previous point, then moves the camera and
+     * draws once.
+     */
+    @Override
+    protected void updateNewLocations(@NonNull List<Location> batch) {
+        if (map == null) {
+            return;
+        }
+        boolean firstLocation = locations.isEmpty();
+        int sizeBefore = locations.size();
+        for (Location location : batch) {
+            //5 meters minimum distance for the point to be added
+            if (locations.isEmpty() || !isNearLast(location)) {
+                locations.add(location.getLatitude(), location.getLongitude(),
+                        location.getAccuracy(), location.getTime());
             }
-            //1 meters minimum distance for the point to be added
-            float distanceTo =
-                    lastSavedLocation == null ? 0 : location.distanceTo(lastSavedLocation);
-            if (lastSavedLocation == null || distanceTo > MapOptions.MINIMUM_DISTANCE) {
-                LatLng latLng = new LatLng(location.getLatitude(), location.getLongitude());
-                locations.add(latLng);
-                float zoom = lastSavedLocation == null ? ZOOM_LEVEL : map.getCameraPosition().zoom;
-                if (zoom == 0) {
-                    zoom = ZOOM_LEVEL;
-                }
-                map.clear();
-                map.moveCamera(CameraUpdateFactory.newLatLngZoom(latLng, zoom));
-
-                PolylineOptions polylineOptions =
-                        new PolylineOptions().addAll(locations)
-                                .width(MapOptions.LINE_WIDTH).color(MapOptions.LINE_COLOR);
-                map.addPolyline(polylineOptions);
-
-                for (LatLng l : locations) {
-                    MarkerOptions markerOptions = new MarkerOptions().icon(bitmapDescriptor)
-                            .position(l)
-                            .anchor(MapOptions.MARKER_ANCHOR, MapOptions.MARKER_ANCHOR)
-                            .title(l.toString());
-                    map.addMarker(markerOptions);
-                }
+        }
+        if (locations.size() == sizeBefore) {
+            return;
+        }
+        int last = locations.size() - 1;
+        LatLng latLng = new LatLng(locations.getLatitude(last), locations.getLongitude(last));
+        float zoom = firstLocation ? ZOOM_LEVEL : map.getCameraPosition().zoom;
+        if (zoom == 0) {
+            zoom = ZOOM_LEVEL;
+        }
+        map.moveCamera(CameraUpdateFactory.newLatLngZoom(latLng, zoom));
+        appendToMap();
+    }
+
+    private boolean isNearLast(Location location) {
+        int last = locations.size() - 1;
+        return GeoDistance.isWithin(locations.getLatitude(last), locations.getLongitude(last),
+                location.getLatitude(), location.getLongitude(), MapOptions.MINIMUM_DISTANCE);
+    }
+
+    /**
+     * Updates the existing polyline with the simplified track and only replaces the markers of the
+     * vertices that changed, so the cost of a fix does not grow with the number of markers already
+     * on the map.
+     */
+    private void appendToMap() {
+        simplifier.update();
+        TrackSimplifier.Level level = simplifier.levelFor(map.getCameraPosition().zoom);
+        if (level != renderedLevel) {
+            redrawTrack();
+            return;
+        }
+        int fromPosition = level.takeChangedFrom();
+        polyline.setPoints(level.view(LAT_LNG_FACTORY));
+        removeMarkersFrom(fromPosition);
+        addMarkers(level);
+    }
+
+    /**
+     * Draws the whole track with the level of detail matching the current zoom.
+     */
+    private void redrawTrack() {
+        simplifier.update();
+        TrackSimplifier.Level level = simplifier.levelFor(map.getCameraPosition().zoom);
+        level.takeChangedFrom();
+        renderedLevel = level;
+        if (polyline == null) {
+            polyline = map.addPolyline(new PolylineOptions()
+                    .addAll(level.view(LAT_LNG_FACTORY))
+                    .width(MapOptions.LINE_WIDTH).color(MapOptions.LINE_COLOR));
+        } else {
+            polyline.setPoints(level.view(LAT_LNG_FACTORY));
+        }
+        removeMarkersFrom(0);
+        addMarkers(level);
+    }
+
+    private void removeMarkersFrom(int position) {
+        for (int i = markers.size() - 1; i >= position; i--) {
+            Marker marker = markers.remove(i);
+            if (marker.equals(selectedMarker)) {
+                selectedMarker = null;
             }
+            marker.remove();
         }
     }
 
+    private void addMarkers(TrackSimplifier.Level level) {
+        for (int position = markers.size(); position < level.size(); position++) {
+            int index = level.get(position);
+            LatLng latLng = new LatLng(locations.getLatitude(index), locations.getLongitude(index));
+            BitmapGenerator.Marker variant =
+                    BitmapGenerator.Marker.forAccuracy(locations.getAccuracy(index));
+            Marker marker = map.addMarker(new MarkerOptions().icon(getMarkerIcon(variant))
+                    .position(latLng)
+                    .anchor(MapOptions.MARKER_ANCHOR, MapOptions.MARKER_ANCHOR));
+            marker.setTag(variant);
+            markers.add(marker);
+        }
+    }
+
+    /**
+     * Highlights the marker, and gives the previously selected one its own icon back.
+     */
+    private void select(@NonNull Marker marker) {
+        if (selectedMarker != null && !selectedMarker.equals(marker)) {
+            selectedMarker.setIcon(getMarkerIcon((BitmapGenerator.Marker) selectedMarker.getTag()));
+        }
+        marker.setIcon(getMarkerIcon(BitmapGenerator.Marker.SELECTED));
+        selectedMarker = marker;
+    }
+
+    /**
+     * Icons are only created once the map is ready, the descriptor factory needs it.
+     */
+    @NonNull
+    private BitmapDescriptor getMarkerIcon(@NonNull BitmapGenerator.Marker variant) {
+        float density = getResources().getDisplayMetrics().density;
+        if (density != markerIconsDensity) {
+            MARKER_ICONS.clear();
+            markerIconsDensity = density;
+        }
+        BitmapDescriptor icon = MARKER_ICONS.get(variant);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.fromBitmap(
+                    BitmapGenerator.getInstance().getBitmap(variant, density));
+            MARKER_ICONS.put(variant, icon);
+        }
+        return icon;
+    }
 }
@@ -0,0 +1,548 @@
+package org.akvo.mapexperiments;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+
+import com.mapbox.mapboxsdk.offline.OfflineManager;
+import com.mapbox.mapboxsdk.offline.OfflineRegion;
+import com.mapbox.mapboxsdk.offline.OfflineRegionError;
+import com.mapbox.mapboxsdk.offline.OfflineRegionStatus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads the regions of the {@link DownloadQueue} in the foreground, independently of the
+ * screen they were queued from, at most {@link #MAX_ACTIVE_REGIONS} at a time. The queue is saved
+ * on every change and the service is sticky, so when the process is killed the downloads go on
+ * where they were once the system restarts it.
+ * <p/>
+ * Commands are sent with {@link #enqueue}, {@link #pause} and {@link #resume}; screens showing
+ * the progress bind to it and register a {@link Listener}, which hears about progress at most
+ * every {@link DownloadProgress#SAMPLE_INTERVAL_MILLIS}. The service stops once nothing is left
+ * to download, paused regions included: {@link #readSavedQueue} tells about those while it does
+ * not run. Everything runs on the main thread.
+ */
+public class OfflineDownloadService extends Service {
+
+    private static final String TAG = "OfflineDownloadService";
+
+    /**
+     * Mapbox downloads the resources of a region in parallel already, more regions at once only
+     * split the bandwidth.
+     */
+    static final int MAX_ACTIVE_REGIONS = 2;
+
+    private static final String ACTION_ENQUEUE = "org.akvo.mapexperiments.action.ENQUEUE";
+    private static final String ACTION_PAUSE = "org.akvo.mapexperiments.action.PAUSE";
+    private static final String ACTION_RESUME = "org.akvo.mapexperiments.action.RESUME";
+    private static final String EXTRA_REGION_ID = "region_id";
+    private static final String EXTRA_REGION_NAME = "region_name";
+
+    /**
+     * The wake lock is taken again on every progress report, a download stalled for longer lets
+     * the device sleep.
+     */
+    private static final long WAKE_LOCK_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static final String CHANNEL_ID = "offline_downloads";
+    private static final int NOTIFICATION_ID = 1;
+    private static final String FILE_NAME = "download_queue.json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ExecutorService SAVED_QUEUE_READER = Executors.newSingleThreadExecutor();
+
+    interface Listener {
+
+        /**
+         * Called when an entry changed state, and at a bounded rate while the downloads progress.
+         */
+        void onQueueChanged(@NonNull DownloadQueue queue);
+    }
+
+    class LocalBinder extends Binder {
+
+        OfflineDownloadService getService() {
+            return OfflineDownloadService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final List<Listener> listeners = new ArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final DownloadProgress progress = new DownloadProgress();
+    private final Runnable publishProgress = new Runnable() {
+        @Override
+        public void run() {
+            progressPending = false;
+            progress.sample(SystemClock.elapsedRealtime());
+            if (BuildConfig.DEBUG) {
+                logProgress();
+            }
+            onQueueChanged();
+        }
+    };
+    private boolean progressPending;
+
+    private DownloadQueue queue;
+    private File file;
+    private OfflineManager offlineManager;
+    private PowerManager.WakeLock wakeLock;
+
+    private final Map<Long, OfflineRegion> regions = new HashMap<>();
+    private final Set<Long> downloading = new HashSet<>();
+    /**
+     * Regions that reported since they started: the first report of a resumed download counts
+     * what was there before.
+     */
+    private final Set<Long> reporting = new HashSet<>();
+    private boolean regionsLoaded;
+    private boolean loadingRegions;
+
+    static void enqueue(@NonNull Context context, long regionId, @NonNull String name) {
+        start(context, new Intent(context, OfflineDownloadService.class)
+                .setAction(ACTION_ENQUEUE)
+                .putExtra(EXTRA_REGION_ID, regionId)
+                .putExtra(EXTRA_REGION_NAME, name));
+    }
+
+    /**
+     * @param regionId the region to pause, or null for all of them.
+     */
+    static void pause(@NonNull Context context, @Nullable Long regionId) {
+        start(context, regionIntent(context, ACTION_PAUSE, regionId));
+    }
+
+    /**
+     * @param regionId the region to resume, or null for all of them.
+     */
+    static void resume(@NonNull Context context, @Nullable Long regionId) {
+        start(context, regionIntent(context, ACTION_RESUME, regionId));
+    }
+
+    private static Intent regionIntent(Context context, String action, @Nullable Long regionId) {
+        Intent intent = new Intent(context, OfflineDownloadService.class).setAction(action);
+        if (regionId != null) {
+            intent.putExtra(EXTRA_REGION_ID, regionId.longValue());
+        }
+        return intent;
+    }
+
+    private static void start(Context context, Intent intent) {
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    /**
+     * Reads the queue as last saved on a worker thread, and hands it to {@code listener} on the
+     * main thread. It is the queue of the service when it does not run, e.g. after everything
+     * was paused.
+     */
+    static void readSavedQueue(@NonNull Context context, @NonNull final Listener listener) {
+        final File file = new File(context.getFilesDir(), FILE_NAME);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        SAVED_QUEUE_READER.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DownloadQueue saved = DownloadQueue.fromJson(readFile(file));
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onQueueChanged(saved);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        file = new File(getFilesDir(), FILE_NAME);
+        queue = DownloadQueue.fromJson(readFile(file));
+        queue.removeComplete();
+        offlineManager = OfflineManager.getInstance(this);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.setReferenceCounted(false);
+        createNotificationChannel();
+    }
+
+    @Override
+    public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        // a null intent means the process was killed and the service restarted: the saved queue
+        // tells what to resume
+        if (intent != null && intent.getAction() != null) {
+            handle(intent);
+        }
+        schedule();
+        return START_STICKY;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mainHandler.removeCallbacks(publishProgress);
+        for (Long regionId : new ArrayList<>(downloading)) {
+            stopDownload(regionId);
+        }
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        executor.shutdown();
+    }
+
+    void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+        listener.onQueueChanged(queue);
+    }
+
+    void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @NonNull
+    DownloadQueue getQueue() {
+        return queue;
+    }
+
+    private void handle(Intent intent) {
+        long regionId = intent.getLongExtra(EXTRA_REGION_ID, -1);
+        Long target = regionId == -1 ? null : regionId;
+        switch (intent.getAction()) {
+            case ACTION_ENQUEUE:
+                String name = intent.getStringExtra(EXTRA_REGION_NAME);
+                queue.add(regionId, name == null ? "" : name);
+                if (!regions.containsKey(regionId)) {
+                    // created after the regions were listed
+                    regionsLoaded = false;
+                }
+                break;
+            case ACTION_PAUSE:
+                for (DownloadQueue.Entry entry : queue.pause(target)) {
+                    stopDownload(entry.regionId);
+                }
+                break;
+            case ACTION_RESUME:
+                queue.resume(target);
+                break;
+            default:
+                Log.w(TAG, "Unknown action " + intent.getAction());
+        }
+    }
+
+    /**
+     * Starts queued entries while there is room for them, and stops the service when nothing is
+     * left to download.
+     */
+    private void schedule() {
+        if (!regionsLoaded) {
+            loadRegions();
+            return;
+        }
+        queue.activate(MAX_ACTIVE_REGIONS);
+        for (DownloadQueue.Entry entry : queue.getEntries()) {
+            if (entry.state == DownloadQueue.State.ACTIVE
+                    && !downloading.contains(entry.regionId)) {
+                startDownload(entry);
+            }
+        }
+        onQueueChanged();
+        if (!queue.hasPendingWork()) {
+            // listeners have seen them complete, only the paused and failed ones are kept
+            queue.removeComplete();
+        }
+        save();
+        if (!queue.hasPendingWork()) {
+            progress.reset();
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    private void loadRegions() {
+        if (loadingRegions) {
+            return;
+        }
+        loadingRegions = true;
+        offlineManager.listOfflineRegions(new OfflineManager.ListOfflineRegionsCallback() {
+            @Override
+            public void onList(OfflineRegion[] offlineRegions) {
+                loadingRegions = false;
+                // the regions being downloaded keep their instance, it holds the observer
+                Map<Long, OfflineRegion> listed = new HashMap<>();
+                if (offlineRegions != null) {
+                    for (OfflineRegion region : offlineRegions) {
+                        listed.put(region.getID(), region);
+                    }
+                }
+                regions.keySet().retainAll(listed.keySet());
+                for (Map.Entry<Long, OfflineRegion> region : listed.entrySet()) {
+                    if (!regions.containsKey(region.getKey())) {
+                        regions.put(region.getKey(), region.getValue());
+                    }
+                }
+                // regions deleted in the meantime
+                for (DownloadQueue.Entry entry : new ArrayList<>(queue.getEntries())) {
+                    if (!regions.containsKey(entry.regionId)) {
+                        queue.remove(entry.regionId);
+                    }
+                }
+                regionsLoaded = true;
+                schedule();
+            }
+
+            @Override
+            public void onError(String error) {
+                loadingRegions = false;
+                Log.e(TAG, "Could not list offline regions: " + error);
+                stopForeground(true);
+                stopSelf();
+            }
+        });
+    }
+
+    private void startDownload(final DownloadQueue.Entry entry) {
+        OfflineRegion region = regions.get(entry.regionId);
+        if (region == null) {
+            entry.state = DownloadQueue.State.FAILED;
+            return;
+        }
+        downloading.add(entry.regionId);
+        region.setObserver(new OfflineRegion.OfflineRegionObserver() {
+            @Override
+            public void onStatusChanged(OfflineRegionStatus status) {
+                onDownloadStatus(entry, status);
+            }
+
+            @Override
+            public void onError(OfflineRegionError error) {
+                // Mapbox retries on its own, typically after a connection loss
+                Log.e(TAG, entry.name + ": " + error.getReason() + ", " + error.getMessage());
+            }
+
+            @Override
+            public void mapboxTileCountLimitExceeded(long limit) {
+                Log.e(TAG, entry.name + ": Mapbox tile count limit exceeded: " + limit);
+                entry.state = DownloadQueue.State.FAILED;
+                stopDownload(entry.regionId);
+                schedule();
+            }
+        });
+        region.setDownloadState(OfflineRegion.STATE_ACTIVE);
+        Log.d(TAG, "Downloading " + entry.name);
+    }
+
+    private void stopDownload(long regionId) {
+        OfflineRegion region = regions.get(regionId);
+        if (region != null && downloading.remove(regionId)) {
+            region.setDownloadState(OfflineRegion.STATE_INACTIVE);
+            region.setObserver(null);
+        }
+        reporting.remove(regionId);
+    }
+
+    /**
+     * Called for every resource: only counts it, unless the region is complete.
+     */
+    private void onDownloadStatus(DownloadQueue.Entry entry, OfflineRegionStatus status) {
+        long completedResources = status.getCompletedResourceCount();
+        long completedBytes = status.getCompletedResourceSize();
+        if (!reporting.add(entry.regionId)) {
+            progress.record(completedResources - entry.completedResources,
+                    completedBytes - entry.completedBytes);
+        }
+        entry.completedResources = completedResources;
+        entry.requiredResources = status.isRequiredResourceCountPrecise()
+                ? status.getRequiredResourceCount() : 0;
+        entry.completedBytes = completedBytes;
+        if (status.isComplete() && entry.state == DownloadQueue.State.ACTIVE) {
+            Log.d(TAG, "Downloaded " + entry.name + ", " + entry.completedBytes + " bytes");
+            entry.state = DownloadQueue.State.COMPLETE;
+            stopDownload(entry.regionId);
+            schedule();
+        } else if (!progressPending) {
+            progressPending = true;
+            mainHandler.postDelayed(publishProgress,
+                    progress.getSampleDelayMillis(SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Resources the active regions still need, -1 while one of them does not know yet.
+     */
+    private long getRemainingResources() {
+        long remaining = 0;
+        for (DownloadQueue.Entry entry : queue.getEntries()) {
+            if (entry.state == DownloadQueue.State.ACTIVE) {
+                if (entry.requiredResources == 0) {
+                    return -1;
+                }
+                remaining += Math.max(entry.requiredResources - entry.completedResources, 0);
+            }
+        }
+        return remaining;
+    }
+
+    private void logProgress() {
+        long etaMillis = progress.getEtaMillis(getRemainingResources());
+        Log.d(TAG, String.format(Locale.US, "%.0f B/s, %.1f resources/s, eta %d s",
+                progress.getBytesPerSecond(), progress.getResourcesPerSecond(),
+                etaMillis < 0 ? -1 : etaMillis / 1000));
+    }
+
+    private void onQueueChanged() {
+        for (Listener listener : new ArrayList<>(listeners)) {
+            listener.onQueueChanged(queue);
+        }
+        if (queue.hasPendingWork()) {
+            // keeps the CPU up for downloads running overnight with the screen off
+            wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+            NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, buildNotification());
+        }
+    }
+
+    private void createNotificationChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.download_channel_name), NotificationManager.IMPORTANCE_LOW);
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(channel);
+        }
+    }
+
+    private Notification buildNotification() {
+        int active = queue.count(DownloadQueue.State.ACTIVE);
+        int queued = queue.count(DownloadQueue.State.QUEUED);
+        long completed = 0;
+        long required = 0;
+        for (DownloadQueue.Entry entry : queue.getEntries()) {
+            if (entry.state == DownloadQueue.State.ACTIVE) {
+                completed += entry.completedResources;
+                required += entry.requiredResources;
+            }
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, OfflineManagerActivity.class), 0);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID);
+        long etaMillis = progress.getEtaMillis(getRemainingResources());
+        if (etaMillis >= 0) {
+            builder.setSubText(getString(R.string.download_notification_rate,
+                    Formatter.formatShortFileSize(this, (long) progress.getBytesPerSecond()),
+                    DateUtils.formatElapsedTime(etaMillis / 1000)));
+        }
+        return builder
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(getString(R.string.download_notification_title))
+                .setContentText(getString(R.string.download_notification_text, active, queued))
+                .setProgress(100, required == 0 ? 0 : (int) (100 * completed / required),
+                        required == 0)
+                .setContentIntent(contentIntent)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true)
+                .build();
+    }
+
+    @Nullable
+    private static String readFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return new String(bytes, UTF_8);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read download queue: " + e.getMessage());
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queue on the worker thread, through a temporary file so a kill half way leaves
+     * the previous queue.
+     */
+    private void save() {
+        final byte[] bytes = queue.toJson().getBytes(UTF_8);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temporary = new File(file.getPath() + ".tmp");
+                FileOutputStream output = null;
+                try {
+                    output = new FileOutputStream(temporary);
+                    output.write(bytes);
+                    output.getFD().sync();
+                    output.close();
+                    output = null;
+                    if (!temporary.renameTo(file)) {
+                        Log.e(TAG, "Could not replace download queue");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not save download queue: " + e.getMessage());
+                } finally {
+                    if (output != null) {
+                        try {
+                            output.close();
+                        } catch (IOException e) {
+                            // ignored
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
@@ -1,36 +1,36 @@
 package org.akvo.mapexperiments;
 
-import android.annotation.SuppressLint;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.IntentSender;
+import android.content.ServiceConnection;
 import android.location.Location;
 import android.os.Bundle;
-import android.os.Looper;
+import android.os.IBinder;
+import android.text.Editable;
+import android.text.InputType;
+import android.text.TextWatcher;
+import android.text.format.Formatter;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.ResolvableApiException;
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationResult;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.LocationSettingsRequest;
-import com.google.android.gms.location.LocationSettingsResponse;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
-import com.google.android.gms.location.SettingsClient;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
+import com.mapbox.mapboxsdk.camera.CameraPosition;
 import com.mapbox.mapboxsdk.camera.CameraUpdateFactory;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.geometry.LatLngBounds;
@@ -39,11 +39,12 @@ import com.mapbox.mapboxsdk.maps.MapboxMap;
 import com.mapbox.mapboxsdk.maps.OnMapReadyCallback;
 import com.mapbox.mapboxsdk.offline.OfflineManager;
 import com.mapbox.mapboxsdk.offline.OfflineRegion;
-import com.mapbox.mapboxsdk.offline.OfflineRegionError;
-import com.mapbox.mapboxsdk.offline.OfflineRegionStatus;
 import com.mapbox.mapboxsdk.offline.OfflineTilePyramidRegionDefinition;
 
-import org.json.JSONObject;
+import org.akvo.mapexperiments.geometry.TileCover;
+import org.akvo.mapexperiments.geometry.TileSizeModel;
+
+import java.util.List;
 
 /**
  * Download, view, navigate to, and delete an offline region.
@@ -52,10 +53,16 @@ public class OfflineManagerActivity extends AppCompatActivity {
 
     private static final String TAG = "OffManActivity";
 
-    // JSON encoding/decoding
-    public static final String JSON_CHARSET = "UTF-8";
+    // Region name in the JSON metadata of older versions, see RegionMetadata
     public static final String JSON_FIELD_REGION_NAME = "FIELD_REGION_NAME";
 
+    /**
+     * Size limit of a new region, remembered from the last download.
+     */
+    private static final String PREF_BUDGET_MB = "offline_budget_mb";
+    private static final long DEFAULT_BUDGET_MB = 50;
+    private static final long MAX_BUDGET_MB = 1024 * 1024;
+
     /**
      * The desired interval for location updates. Inexact. Updates may be more or less frequent.
      */
@@ -74,18 +81,62 @@ public class OfflineManagerActivity extends AppCompatActivity {
     private ProgressBar progressBar;
     private Button downloadButton;
 
-    private boolean isEndNotified;
+    private Button pauseButton;
+    /**
+     * Completed downloads when the queue was last shown, -1 before that.
+     */
+    private int lastCompleteCount = -1;
 
     // Offline objects
     private OfflineManager offlineManager;
-    private OfflineRegion offlineRegion;
+    @Nullable
+    private OfflineDownloadService downloadService;
+    /**
+     * The queue of the service, or as it saved it while it does not run.
+     */
+    @Nullable
+    private DownloadQueue shownQueue;
+    private boolean started;
+
+    private final OfflineDownloadService.Listener downloadListener =
+            new OfflineDownloadService.Listener() {
+                @Override
+                public void onQueueChanged(@NonNull DownloadQueue queue) {
+                    showDownloads(queue);
+                }
+            };
+
+    private final OfflineDownloadService.Listener savedQueueListener =
+            new OfflineDownloadService.Listener() {
+                @Override
+                public void onQueueChanged(@NonNull DownloadQueue queue) {
+                    if (started && downloadService == null) {
+                        showDownloads(queue);
+                        // completions are only told by the service
+                        lastCompleteCount = -1;
+                    }
+                }
+            };
+
+    private final ServiceConnection downloadConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            downloadService = ((OfflineDownloadService.LocalBinder) service).getService();
+            downloadService.addListener(downloadListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            downloadService = null;
+        }
+    };
 
     private boolean permissionDenied = false;
-    private FusedLocationProviderClient fusedLocationClient;
-    private SettingsClient settingsClient;
+    private SharedLocationEngine locationEngine;
     private LocationRequest locationRequest;
-    private LocationCallback locationCallback;
-    private LocationSettingsRequest locationSettingsRequest;
+    private SharedLocationEngine.Subscriber locationSubscriber;
+    private boolean subscribed;
+    private LastPositionStore lastPositionStore;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -93,13 +144,15 @@ public class OfflineManagerActivity extends AppCompatActivity {
 
         // This contains the MapView in XML and needs to be called after the access token is configured.
         setContentView(R.layout.activity_offline_manager);
-        fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        locationEngine = SharedLocationEngine.get(this);
 
-        settingsClient = LocationServices.getSettingsClient(this);
-
-        createLocationCallback();
+        createLocationSubscriber();
         createLocationRequest();
-        buildLocationSettingsRequest();
+
+        // Read before the map exists, so it starts loading tiles where the user left off while
+        // the location is being acquired
+        lastPositionStore = LastPositionStore.getInstance(this);
+        final CameraPosition lastCamera = savedInstanceState == null ? lastCameraPosition() : null;
 
         // Set up the MapView
         mapView = findViewById(R.id.mapView);
@@ -108,6 +161,9 @@ public class OfflineManagerActivity extends AppCompatActivity {
             @Override
             public void onMapReady(MapboxMap mapboxMap) {
                 map = mapboxMap;
+                if (lastCamera != null) {
+                    map.setCameraPosition(lastCamera);
+                }
                 enableMyLocation();
             }
         });
@@ -122,11 +178,42 @@ public class OfflineManagerActivity extends AppCompatActivity {
         downloadButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                downloadRegionDialog();
+                // the Mapbox tile count limit holds for all the regions together
+                RegionStorageManager.getInstance(OfflineManagerActivity.this).countTiles(
+                        new RegionStorageManager.TileCountCallback() {
+                            @Override
+                            public void onTilesCounted(long tiles) {
+                                if (!isFinishing()) {
+                                    downloadRegionDialog(Math.max(0,
+                                            TileCover.MAPBOX_TILE_COUNT_LIMIT - tiles));
+                                }
+                            }
+                        });
+            }
+        });
+        pauseButton = findViewById(R.id.pause_button);
+        pauseButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                onPauseButtonClick();
             }
         });
     }
 
+    @Nullable
+    private CameraPosition lastCameraPosition() {
+        LastPositionStore.Snapshot last = lastPositionStore.read();
+        if (last == null || !last.hasCamera) {
+            return null;
+        }
+        return new CameraPosition.Builder()
+                .target(new LatLng(last.cameraLatitude, last.cameraLongitude))
+                .zoom(last.zoom)
+                .bearing(last.bearing)
+                .tilt(last.tilt)
+                .build();
+    }
+
     /**
      * Enables the My Location layer if the fine location permission has been granted.
      */
@@ -142,35 +229,27 @@ public class OfflineManagerActivity extends AppCompatActivity {
     }
 
     /**
-     * Uses a {@link com.google.android.gms.location.LocationSettingsRequest.Builder} to build
-     * a {@link com.google.android.gms.location.LocationSettingsRequest} that is used for checking
-     * if a device has the needed location settings.
-     */
-    private void buildLocationSettingsRequest() {
-        LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
-        builder.addLocationRequest(locationRequest);
-        locationSettingsRequest = builder.build();
-    }
-
-    /**
-     * Requests location updates from the FusedLocationApi. Note: we don't call this unless location
+     * Subscribes to the shared location engine. Note: we don't call this unless location
      * runtime permission has been granted.
      */
     private void startLocationUpdates() {
-        // Begin by checking if the device has the necessary location settings.
-        settingsClient.checkLocationSettings(locationSettingsRequest)
-                .addOnSuccessListener(this, new OnSuccessListener<LocationSettingsResponse>() {
-                    @SuppressLint("MissingPermission")
+        // Begin by checking if the device has the necessary location settings, the engine
+        // remembers if it already did.
+        locationEngine.checkSettings(locationRequest,
+                new SharedLocationEngine.SettingsCallback() {
                     @Override
-                    public void onSuccess(LocationSettingsResponse locationSettingsResponse) {
-                        Log.i(TAG, "All location settings are satisfied.");
-                        fusedLocationClient.requestLocationUpdates(locationRequest,
-                                locationCallback, Looper.myLooper());
+                    public void onSettingsSatisfied() {
+                        if (!isFinishing()) {
+                            locationEngine.subscribe(locationSubscriber, locationRequest);
+                            subscribed = true;
+                        }
                     }
-                })
-                .addOnFailureListener(this, new OnFailureListener() {
+
                     @Override
-                    public void onFailure(@NonNull Exception e) {
+                    public void onSettingsFailure(@NonNull Exception e) {
+                        if (isFinishing()) {
+                            return;
+                        }
                         int statusCode = ((ApiException) e).getStatusCode();
                         switch (statusCode) {
                             case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
@@ -200,23 +279,26 @@ public class OfflineManagerActivity extends AppCompatActivity {
                 });
     }
 
+    /**
+     * A single fix is enough to center the map on the area to download, and it does not need
+     * GPS precision. If another screen keeps a more precise subscription alive, that one is used.
+     */
     private void createLocationRequest() {
         locationRequest = new LocationRequest();
         locationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
         locationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
-        locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        locationRequest.setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
     }
 
-    private void createLocationCallback() {
-        locationCallback = new LocationCallback() {
+    /**
+     * Unsubscribes after the first fix, which may be the engine's cached one.
+     */
+    private void createLocationSubscriber() {
+        locationSubscriber = new SharedLocationEngine.Subscriber() {
             @Override
-            public void onLocationResult(LocationResult locationResult) {
-                super.onLocationResult(locationResult);
-                Location lastLocation = locationResult.getLastLocation();
-                if (lastLocation != null){
-                    setCameraPosition(lastLocation);
-                    stopLocationUpdates();
-                }
+            public void onLocations(@NonNull List<Location> batch) {
+                setCameraPosition(batch.get(batch.size() - 1));
+                stopLocationUpdates();
             }
         };
     }
@@ -241,36 +323,30 @@ public class OfflineManagerActivity extends AppCompatActivity {
     }
 
     private void getDeviceLastLocation() {
-        try {
-            if (!permissionDenied) {
-                Task<Location> locationResult = fusedLocationClient.getLastLocation();
-                locationResult.addOnCompleteListener(this, new OnCompleteListener<Location>() {
-                    @Override
-                    public void onComplete(@NonNull Task<Location> task) {
-                        if (task.isSuccessful()) {
-                            // Set the map's camera position to the current location of the device.
-                            Location mLastKnownLocation = task.getResult();
-                            if (mLastKnownLocation != null){
-                                setCameraPosition(mLastKnownLocation);
-                            }
-                        } else {
-                            Log.d(TAG, "Current location is null. Using defaults.");
-                            Log.e(TAG, "Exception: %s", task.getException());
-                        }
+        if (!permissionDenied && locationEngine.getRecentLocation() == null) {
+            // no recent fix to be delivered on subscription: start from the last known one
+            locationEngine.getLastLocation(new OnSuccessListener<Location>() {
+                @Override
+                public void onSuccess(Location lastKnownLocation) {
+                    // Set the map's camera position to the current location of the device.
+                    if (lastKnownLocation != null && map != null && !isFinishing()) {
+                        setCameraPosition(lastKnownLocation);
+                    } else {
+                        Log.d(TAG, "Current location is null. Using defaults.");
                     }
-                });
-            }
-        } catch (SecurityException e) {
-            Log.e("Exception: %s", e.getMessage());
+                }
+            });
         }
     }
 
     /**
-     * Removes location updates from the FusedLocationApi.
+     * Leaves the shared location engine, which keeps its subscription a little while for the
+     * next screen.
      */
     private void stopLocationUpdates() {
-        if (fusedLocationClient != null && locationCallback != null) {
-            fusedLocationClient.removeLocationUpdates(locationCallback);
+        if (subscribed) {
+            locationEngine.unsubscribe(locationSubscriber);
+            subscribed = false;
         }
     }
 
@@ -285,18 +361,34 @@ public class OfflineManagerActivity extends AppCompatActivity {
     protected void onStart() {
         super.onStart();
         mapView.onStart();
+        started = true;
+        // no flag to create it: the connection is made whenever the service runs
+        bindService(new Intent(this, OfflineDownloadService.class), downloadConnection, 0);
+        // paused downloads while it does not
+        OfflineDownloadService.readSavedQueue(this, savedQueueListener);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         mapView.onStop();
+        started = false;
+        if (downloadService != null) {
+            downloadService.removeListener(downloadListener);
+            downloadService = null;
+        }
+        unbindService(downloadConnection);
     }
 
     @Override
     public void onPause() {
         super.onPause();
         mapView.onPause();
+        if (map != null && map.getCameraPosition().target != null) {
+            CameraPosition camera = map.getCameraPosition();
+            lastPositionStore.saveCamera(camera.target.getLatitude(),
+                    camera.target.getLongitude(), camera.zoom, camera.bearing, camera.tilt);
+        }
         stopLocationUpdates();
     }
 
@@ -310,6 +402,7 @@ public class OfflineManagerActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         mapView.onDestroy();
+        stopLocationUpdates();
     }
 
     @Override
@@ -318,24 +411,69 @@ public class OfflineManagerActivity extends AppCompatActivity {
         mapView.onLowMemory();
     }
 
-    private void downloadRegionDialog() {
+    /**
+     * @param tileHeadroom tiles left below the Mapbox tile count limit.
+     */
+    private void downloadRegionDialog(final long tileHeadroom) {
         // Set up download interaction. Display a dialog
         // when the user clicks download button and require
         // a user-provided region name
         AlertDialog.Builder builder = new AlertDialog.Builder(OfflineManagerActivity.this);
 
+        // The region is the visible area from the current zoom down, as deep as the size
+        // limit allows
+        final String styleUrl = map.getStyle().getUrl();
+        final LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+        final double minZoom = map.getCameraPosition().zoom;
+
         final EditText regionNameEdit = new EditText(OfflineManagerActivity.this);
         regionNameEdit.setHint(getString(R.string.set_region_name_hint));
+        final EditText budgetEdit = new EditText(OfflineManagerActivity.this);
+        budgetEdit.setHint(getString(R.string.download_budget_hint));
+        budgetEdit.setInputType(InputType.TYPE_CLASS_NUMBER);
+        budgetEdit.setText(String.valueOf(
+                getPreferences(MODE_PRIVATE).getLong(PREF_BUDGET_MB, DEFAULT_BUDGET_MB)));
+        final TextView estimateView = new TextView(OfflineManagerActivity.this);
+        budgetEdit.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                // not needed
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                // not needed
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                showEstimate(estimateView, estimateRegion(styleUrl, bounds, minZoom,
+                        parseBudget(budgetEdit), tileHeadroom), tileHeadroom);
+            }
+        });
+        showEstimate(estimateView, estimateRegion(styleUrl, bounds, minZoom,
+                parseBudget(budgetEdit), tileHeadroom), tileHeadroom);
+
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        LinearLayout dialogView = new LinearLayout(OfflineManagerActivity.this);
+        dialogView.setOrientation(LinearLayout.VERTICAL);
+        dialogView.setPadding(padding, 0, padding, 0);
+        dialogView.addView(regionNameEdit);
+        dialogView.addView(budgetEdit);
+        dialogView.addView(estimateView);
 
         // Build the dialog box
         builder.setTitle(getString(R.string.dialog_title))
-                .setView(regionNameEdit)
+                .setView(dialogView)
                 .setMessage(getString(R.string.dialog_message))
                 .setPositiveButton(getString(R.string.dialog_positive_button),
                         new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
                                 String regionName = regionNameEdit.getText().toString();
+                                long budgetMb = parseBudget(budgetEdit);
+                                TileCover.Estimate estimate = estimateRegion(styleUrl, bounds,
+                                        minZoom, budgetMb, tileHeadroom);
                                 // Require a region name to begin the download.
                                 // If the user-provided string is empty, display
                                 // a toast message and do not begin download.
@@ -343,9 +481,19 @@ public class OfflineManagerActivity extends AppCompatActivity {
                                     Toast.makeText(OfflineManagerActivity.this,
                                             getString(R.string.dialog_toast), Toast.LENGTH_SHORT)
                                             .show();
+                                } else if (estimate == null) {
+                                    // Fail now rather than at the Mapbox tile limit, after a
+                                    // partial download
+                                    Toast.makeText(OfflineManagerActivity.this,
+                                            getString(R.string.download_too_large,
+                                                    tileHeadroom,
+                                                    TileCover.MAPBOX_TILE_COUNT_LIMIT),
+                                            Toast.LENGTH_LONG).show();
                                 } else {
+                                    getPreferences(MODE_PRIVATE).edit()
+                                            .putLong(PREF_BUDGET_MB, budgetMb).apply();
                                     // Begin download process
-                                    downloadRegion(regionName);
+                                    downloadRegion(regionName, styleUrl, bounds, estimate);
                                 }
                             }
                         })
@@ -361,45 +509,91 @@ public class OfflineManagerActivity extends AppCompatActivity {
         builder.show();
     }
 
-    private void downloadRegion(final String regionName) {
+    private long parseBudget(EditText budgetEdit) {
+        try {
+            return Math.min(Long.parseLong(budgetEdit.getText().toString()), MAX_BUDGET_MB);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Finds the deepest max zoom whose tiles fit both the size limit and what is left of the
+     * Mapbox tile limit.
+     *
+     * @return null if the visible area does not fit even at the current zoom alone.
+     */
+    @Nullable
+    private TileCover.Estimate estimateRegion(String styleUrl, LatLngBounds bounds,
+            double minZoom, long budgetMb, long tileHeadroom) {
+        return TileCover.fit(bounds.getLatSouth(), bounds.getLonWest(), bounds.getLatNorth(),
+                bounds.getLonEast(), minZoom, map.getMaxZoomLevel(),
+                TileSizeModel.forStyle(styleUrl), getResources().getDisplayMetrics().density,
+                budgetMb * 1024 * 1024, tileHeadroom);
+    }
+
+    private void showEstimate(TextView estimateView, @Nullable TileCover.Estimate estimate,
+            long tileHeadroom) {
+        if (estimate == null) {
+            estimateView.setText(getString(R.string.download_too_large, tileHeadroom,
+                    TileCover.MAPBOX_TILE_COUNT_LIMIT));
+        } else {
+            estimateView.setText(getString(R.string.download_estimate, estimate.tiles,
+                    Formatter.formatShortFileSize(this, estimate.bytes),
+                    (int) Math.floor(estimate.maxZoom), tileHeadroom,
+                    TileCover.MAPBOX_TILE_COUNT_LIMIT));
+        }
+    }
+
+    private void downloadRegion(final String regionName, String styleUrl, LatLngBounds bounds,
+            TileCover.Estimate estimate) {
         // Define offline region parameters, including bounds,
         // min/max zoom, and metadata
 
-        // Start the progressBar
-        startProgress();
-
         // Create offline definition using the current
-        // style and boundaries of visible map area
-        String styleUrl = map.getStyle().getUrl();
-        LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
-        double minZoom = map.getCameraPosition().zoom;
-        double maxZoom = map.getMaxZoomLevel();
+        // style and boundaries of visible map area, down to the zoom that was estimated
+        // to fit
         float pixelRatio = this.getResources().getDisplayMetrics().density;
-        OfflineTilePyramidRegionDefinition definition = new OfflineTilePyramidRegionDefinition(
-                styleUrl, bounds, minZoom, maxZoom, pixelRatio);
-
-        // Build a JSONObject using the user-defined offline region title,
-        // convert it into string, and use it to create a metadata variable.
-        // The metadata variable will later be passed to createOfflineRegion()
-        byte[] metadata;
-        try {
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put(JSON_FIELD_REGION_NAME, regionName);
-            String json = jsonObject.toString();
-            metadata = json.getBytes(JSON_CHARSET);
-        } catch (Exception exception) {
-            Log.e(TAG, "Failed to encode metadata: " + exception.getMessage());
-            metadata = null;
-        }
+        final OfflineTilePyramidRegionDefinition definition =
+                new OfflineTilePyramidRegionDefinition(styleUrl, bounds, estimate.minZoom,
+                        estimate.maxZoom, pixelRatio);
+
+        // The metadata is passed to createOfflineRegion() and decoded when the regions are listed
+        long now = System.currentTimeMillis();
+        final RegionMetadata metadata = new RegionMetadata(regionName, now, now,
+                estimate.bytes, estimate.tiles);
+
+        // Make room for the new region in the offline storage budget first
+        RegionStorageManager.getInstance(this).enforceBudget(estimate.bytes,
+                new RegionStorageManager.Callback() {
+                    @Override
+                    public void onEvicted(int regionCount, long bytesReclaimed) {
+                        if (regionCount > 0) {
+                            Toast.makeText(OfflineManagerActivity.this,
+                                    getString(R.string.toast_regions_evicted, regionCount,
+                                            Formatter.formatShortFileSize(
+                                                    OfflineManagerActivity.this, bytesReclaimed)),
+                                    Toast.LENGTH_LONG).show();
+                        }
+                        createRegion(regionName, definition, metadata);
+                    }
+                });
+    }
 
-        // Create the offline region and launch the download
-        offlineManager.createOfflineRegion(definition, metadata,
+    private void createRegion(final String regionName,
+            OfflineTilePyramidRegionDefinition definition, final RegionMetadata metadata) {
+        // Create the offline region and queue its download, which goes on in the background
+        offlineManager.createOfflineRegion(definition, metadata.encode(),
                 new OfflineManager.CreateOfflineRegionCallback() {
                     @Override
                     public void onCreate(OfflineRegion offlineRegion) {
                         Log.d(TAG, "Offline region created: " + regionName);
-                        OfflineManagerActivity.this.offlineRegion = offlineRegion;
-                        launchDownload();
+                        RegionMapper.put(offlineRegion.getID(), metadata);
+                        OfflineDownloadService.enqueue(OfflineManagerActivity.this,
+                                offlineRegion.getID(), regionName);
+                        Toast.makeText(OfflineManagerActivity.this,
+                                getString(R.string.toast_region_queued, regionName),
+                                Toast.LENGTH_SHORT).show();
                     }
 
                     @Override
@@ -409,82 +603,52 @@ public class OfflineManagerActivity extends AppCompatActivity {
                 });
     }
 
-    private void launchDownload() {
-        // Set up an observer to handle download progress and
-        // notify the user when the region is finished downloading
-        offlineRegion.setObserver(new OfflineRegion.OfflineRegionObserver() {
-            @Override
-            public void onStatusChanged(OfflineRegionStatus status) {
-                // Compute a percentage
-                double percentage = status.getRequiredResourceCount() >= 0
-                        ?
-                        (100.0 * status.getCompletedResourceCount() / status
-                                .getRequiredResourceCount()) :
-                        0.0;
-
-                if (status.isComplete()) {
-                    // Download complete
-                    endProgress(getString(R.string.end_progress_success));
-                    return;
-                } else if (status.isRequiredResourceCountPrecise()) {
-                    // Switch to determinate state
-                    setPercentage((int) Math.round(percentage));
-                }
-
-                // Log what is being currently downloaded
-                Log.d(TAG, String.format("%s/%s resources; %s bytes downloaded.",
-                        String.valueOf(status.getCompletedResourceCount()),
-                        String.valueOf(status.getRequiredResourceCount()),
-                        String.valueOf(status.getCompletedResourceSize())));
-            }
-
-            @Override
-            public void onError(OfflineRegionError error) {
-                Log.e(TAG, "onError reason: " + error.getReason());
-                Log.e(TAG, "onError message: " + error.getMessage());
-            }
-
-            @Override
-            public void mapboxTileCountLimitExceeded(long limit) {
-                Log.e(TAG, "Mapbox tile count limit exceeded: " + limit);
-            }
-        });
-
-        // Change the region state
-        offlineRegion.setDownloadState(OfflineRegion.STATE_ACTIVE);
-    }
-
     // Progress bar methods
-    private void startProgress() {
-        // Disable buttons
-        downloadButton.setEnabled(false);
 
-        // Start and show the progress bar
-        isEndNotified = false;
-        progressBar.setIndeterminate(true);
+    /**
+     * Shows the overall progress of the active downloads, and tells when one completes.
+     */
+    private void showDownloads(@NonNull DownloadQueue queue) {
+        shownQueue = queue;
+        int completeCount = queue.count(DownloadQueue.State.COMPLETE);
+        if (lastCompleteCount >= 0 && completeCount > lastCompleteCount) {
+            Toast.makeText(OfflineManagerActivity.this, getString(R.string.end_progress_success),
+                    Toast.LENGTH_LONG).show();
+        }
+        lastCompleteCount = completeCount;
+
+        pauseButton.setVisibility(queue.hasPendingWork() || queue.hasPaused()
+                ? View.VISIBLE : View.GONE);
+        pauseButton.setText(queue.hasPendingWork() ? R.string.pause_downloads
+                : R.string.resume_downloads);
+        if (!queue.hasPendingWork()) {
+            progressBar.setVisibility(View.GONE);
+            return;
+        }
+        long completed = 0;
+        long required = 0;
+        for (DownloadQueue.Entry entry : queue.getEntries()) {
+            if (entry.state == DownloadQueue.State.ACTIVE) {
+                completed += entry.completedResources;
+                required += entry.requiredResources;
+            }
+        }
         progressBar.setVisibility(View.VISIBLE);
+        progressBar.setIndeterminate(required == 0);
+        if (required > 0) {
+            progressBar.setProgress((int) Math.round(100.0 * completed / required));
+        }
     }
 
-    private void setPercentage(final int percentage) {
-        progressBar.setIndeterminate(false);
-        progressBar.setProgress(percentage);
-    }
-
-    private void endProgress(final String message) {
-        // Don't notify more than once
-        if (isEndNotified) {
+    private void onPauseButtonClick() {
+        if (shownQueue == null) {
             return;
         }
-
-        // Enable buttons
-        downloadButton.setEnabled(true);
-
-        // Stop and hide the progress bar
-        isEndNotified = true;
-        progressBar.setIndeterminate(false);
-        progressBar.setVisibility(View.GONE);
-
-        // Show a toast
-        Toast.makeText(OfflineManagerActivity.this, message, Toast.LENGTH_LONG).show();
+        // either command starts the service if needed
+        if (shownQueue.hasPendingWork()) {
+            OfflineDownloadService.pause(this, null);
+        } else {
+            OfflineDownloadService.resume(this, null);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,276 @@
+package org.akvo.mapexperiments;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Append only file holding the points of the recording in progress, so that a process kill does
+ * not lose the walk. Every accepted point is written as a fixed size record; the file is only
+ * synced to disk every few records or seconds. All file access happens on a single worker thread.
+ * <p/>
+ * Record layout: latitude (double), longitude (double), accuracy (float), time (long) and a CRC32
+ * of those 28 bytes (int). A record which was cut short or fails its checksum ends the recovery.
+ */
+class RecordingJournal {
+
+    private static final String TAG = "RecordingJournal";
+
+    private static final String FILE_NAME = "recording.journal";
+    private static final int MAGIC = 0x4D45524A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int PAYLOAD_SIZE = 28;
+    static final int RECORD_SIZE = PAYLOAD_SIZE + 4;
+
+    private static final int SYNC_EVERY_RECORDS = 10;
+    private static final long SYNC_INTERVAL_MS = 15000;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched from the executor
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    @Nullable
+    private RandomAccessFile output;
+    private int unsyncedRecords;
+    private long lastSyncTime;
+
+    RecordingJournal(@NonNull File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * @return true if a previous recording was neither finished nor compacted, most likely
+     * because the process was killed.
+     */
+    boolean hasPendingRecording() {
+        return file.length() > HEADER_SIZE;
+    }
+
+    /**
+     * Discards any previous journal and starts a new one.
+     */
+    void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeOutput();
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    raf.setLength(0);
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    raf.getChannel().write(header);
+                    raf.getFD().sync();
+                    output = raf;
+                    unsyncedRecords = 0;
+                    lastSyncTime = SystemClock.elapsedRealtime();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not start journal: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Continues appending to an existing journal, typically after {@link #recover}.
+     */
+    void resume() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeOutput();
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    raf.seek(raf.length());
+                    output = raf;
+                    lastSyncTime = SystemClock.elapsedRealtime();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not resume journal: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    void append(final double latitude, final double longitude, final float accuracy,
+            final long time) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(latitude, longitude, accuracy, time);
+            }
+        });
+    }
+
+    /**
+     * Reads back the points of an unfinished recording on the journal thread, dropping a torn or
+     * corrupt tail, and delivers them on the main thread.
+     */
+    void recover(@NonNull final RecoveryCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TrackBuffer track = readRecords();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onRecovered(track);
+                    }
+                });
+            }
+        });
+    }
+
+    @NonNull
+    private TrackBuffer readRecords() {
+        TrackBuffer track = new TrackBuffer();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            long length = raf.length();
+            if (length < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                return track;
+            }
+            int count = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+            ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+            FileChannel channel = raf.getChannel();
+            channel.position(HEADER_SIZE);
+            while (records.hasRemaining() && channel.read(records) > 0) {
+                // keep reading
+            }
+            records.flip();
+            CRC32 checksum = new CRC32();
+            while (records.remaining() >= RECORD_SIZE) {
+                int start = records.position();
+                checksum.reset();
+                checksum.update(records.array(), start, PAYLOAD_SIZE);
+                double latitude = records.getDouble();
+                double longitude = records.getDouble();
+                float accuracy = records.getFloat();
+                long time = records.getLong();
+                if (records.getInt() != (int) checksum.getValue()) {
+                    Log.w(TAG, "Corrupt record at " + track.size() + ", dropping the rest");
+                    break;
+                }
+                track.add(latitude, longitude, accuracy, time);
+            }
+            // cut off anything after the last good record so appends continue from there
+            raf.setLength(HEADER_SIZE + (long) track.size() * RECORD_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not recover journal: " + e.getMessage());
+        } finally {
+            closeQuietly(raf);
+        }
+        return track;
+    }
+
+    /**
+     * Runs {@code persistShape} on the journal thread and deletes the journal once it returns
+     * true, so there is no window in which the points are neither in the journal nor saved.
+     */
+    void compact(@NonNull final Compaction persistShape) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+                if (persistShape.persist()) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "Could not delete journal");
+                    }
+                } else {
+                    Log.e(TAG, "Shape could not be saved, keeping the journal");
+                }
+            }
+        });
+    }
+
+    /**
+     * Syncs and closes the file but keeps it for a later {@link #recover}. The journal cannot be
+     * used afterwards.
+     */
+    void close() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void write(double latitude, double longitude, float accuracy, long time) {
+        if (output == null) {
+            return;
+        }
+        record.clear();
+        record.putDouble(latitude).putDouble(longitude).putFloat(accuracy).putLong(time);
+        crc.reset();
+        crc.update(record.array(), 0, PAYLOAD_SIZE);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        try {
+            output.getChannel().write(record);
+            unsyncedRecords++;
+            long now = SystemClock.elapsedRealtime();
+            if (unsyncedRecords >= SYNC_EVERY_RECORDS || now - lastSyncTime >= SYNC_INTERVAL_MS) {
+                output.getFD().sync();
+                unsyncedRecords = 0;
+                lastSyncTime = now;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not append to journal: " + e.getMessage());
+        }
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not sync journal: " + e.getMessage());
+            }
+            closeQuietly(output);
+            output = null;
+        }
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    interface RecoveryCallback {
+
+        void onRecovered(@NonNull TrackBuffer track);
+    }
+
+    interface Compaction {
+
+        /**
+         * @return true if the recorded shape was durably stored elsewhere.
+         */
+        boolean persist();
+    }
+}
@@ -1,13 +1,27 @@
 package org.akvo.mapexperiments;
 
 import android.util.Log;
+import androidx.annotation.NonNull;
 
 import com.mapbox.mapboxsdk.offline.OfflineRegion;
 
-import org.json.JSONObject;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Reads the {@link RegionMetadata} of offline regions, decoding the metadata of each region once
+ * per process: the decoded metadata is cached by region id, and updated through here.
+ */
 class RegionMapper {
     private static final String TAG = "RegionMapper";
+
+    /**
+     * Stands for metadata that could not be decoded, so it is not decoded again.
+     */
+    private static final RegionMetadata UNREADABLE = new RegionMetadata(null, -1, -1, -1, -1);
+
+    private static final Map<Long, RegionMetadata> cache = new HashMap<>();
+
     private String defaultRegionName;
 
     RegionMapper(String defaultRegionName) {
@@ -16,17 +30,75 @@ class RegionMapper {
 
     String getRegionName(OfflineRegion offlineRegion) {
         // Get the region name from the offline region metadata
-        String regionName;
-        try {
-            byte[] metadata = offlineRegion.getMetadata();
-            String json = new String(metadata, OfflineManagerActivity.JSON_CHARSET);
-            JSONObject jsonObject = new JSONObject(json);
-            regionName = jsonObject.getString(OfflineManagerActivity.JSON_FIELD_REGION_NAME);
-        } catch (Exception exception) {
-            Log.e(TAG,
-                    "Failed to decode metadata: " + exception.getMessage());
+        String regionName = getMetadata(offlineRegion).name;
+        if (regionName == null) {
             regionName = String.format(defaultRegionName, offlineRegion.getID());
         }
         return regionName;
     }
-}
\ No newline at end of file
+
+    @NonNull
+    static synchronized RegionMetadata getMetadata(@NonNull OfflineRegion offlineRegion) {
+        RegionMetadata metadata = cache.get(offlineRegion.getID());
+        if (metadata == null) {
+            metadata = RegionMetadata.decode(offlineRegion.getMetadata());
+            if (metadata == null) {
+                Log.e(TAG, "Failed to decode metadata of region " + offlineRegion.getID());
+                metadata = UNREADABLE;
+            }
+            cache.put(offlineRegion.getID(), metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Caches the metadata a region was just created with.
+     */
+    static synchronized void put(long regionId, @NonNull RegionMetadata metadata) {
+        cache.put(regionId, metadata);
+    }
+
+    static synchronized void remove(long regionId) {
+        cache.remove(regionId);
+    }
+
+    /**
+     * Records that the region was opened. Regions of older versions get their metadata rewritten
+     * in the current format on the way.
+     */
+    static void markUsed(@NonNull OfflineRegion offlineRegion) {
+        RegionMetadata metadata = getMetadata(offlineRegion);
+        if (metadata != UNREADABLE) {
+            update(offlineRegion, metadata.withLastUsedTime(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return false if the region metadata is unreadable and cannot be changed.
+     */
+    static boolean setPinned(@NonNull OfflineRegion offlineRegion, boolean pinned) {
+        RegionMetadata metadata = getMetadata(offlineRegion);
+        if (metadata == UNREADABLE) {
+            return false;
+        }
+        update(offlineRegion, metadata.withPinned(pinned));
+        return true;
+    }
+
+    private static void update(@NonNull OfflineRegion offlineRegion,
+            @NonNull RegionMetadata metadata) {
+        put(offlineRegion.getID(), metadata);
+        offlineRegion.updateMetadata(metadata.encode(),
+                new OfflineRegion.OfflineRegionUpdateMetadataCallback() {
+                    @Override
+                    public void onUpdate(byte[] metadata) {
+                        // already cached
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        Log.e(TAG, "Failed to update metadata: " + error);
+                    }
+                });
+    }
+}
@@ -0,0 +1,132 @@
+package org.akvo.mapexperiments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * What the app keeps about an offline region in its Mapbox metadata.
+ * <p/>
+ * Layout: magic and version (ints), created and last used wall clock times, estimated size in
+ * bytes and tile count (longs, -1 when unknown), then the name as UTF-8 prefixed by its length
+ * (unsigned short); version 2 appends flags (int). Later versions only append fields, so a reader
+ * skips what it does not know.
+ * Regions of older versions of the app have a JSON object with only the name, which is still
+ * read.
+ */
+class RegionMetadata {
+
+    private static final int MAGIC = 0x4D45524D;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 2 + 8 * 4 + 2;
+    private static final int FLAGS_SIZE = 4;
+    private static final int FLAG_PINNED = 1;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Nullable
+    final String name;
+    final long createdTime;
+    final long lastUsedTime;
+    final long estimatedBytes;
+    final long tileCount;
+    /**
+     * Pinned regions are never evicted by the {@link RegionStorageManager}.
+     */
+    final boolean pinned;
+
+    RegionMetadata(@Nullable String name, long createdTime, long lastUsedTime,
+            long estimatedBytes, long tileCount) {
+        this(name, createdTime, lastUsedTime, estimatedBytes, tileCount, false);
+    }
+
+    RegionMetadata(@Nullable String name, long createdTime, long lastUsedTime,
+            long estimatedBytes, long tileCount, boolean pinned) {
+        this.name = name;
+        this.createdTime = createdTime;
+        this.lastUsedTime = lastUsedTime;
+        this.estimatedBytes = estimatedBytes;
+        this.tileCount = tileCount;
+        this.pinned = pinned;
+    }
+
+    @NonNull
+    RegionMetadata withLastUsedTime(long time) {
+        return new RegionMetadata(name, createdTime, time, estimatedBytes, tileCount, pinned);
+    }
+
+    @NonNull
+    RegionMetadata withPinned(boolean pinned) {
+        return new RegionMetadata(name, createdTime, lastUsedTime, estimatedBytes, tileCount,
+                pinned);
+    }
+
+    @NonNull
+    byte[] encode() {
+        byte[] nameBytes = name == null ? new byte[0] : name.getBytes(UTF_8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + nameLength + FLAGS_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putLong(createdTime).putLong(lastUsedTime).putLong(estimatedBytes)
+                .putLong(tileCount);
+        buffer.putShort((short) nameLength).put(nameBytes, 0, nameLength);
+        buffer.putInt(pinned ? FLAG_PINNED : 0);
+        return buffer.array();
+    }
+
+    /**
+     * @return the metadata, or null if the bytes are neither format or are corrupt.
+     */
+    @Nullable
+    static RegionMetadata decode(@Nullable byte[] bytes) {
+        if (bytes == null || bytes.length < 4) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            return decodeJson(bytes);
+        }
+        try {
+            int version = buffer.getInt();
+            if (version < 1) {
+                return null;
+            }
+            long createdTime = buffer.getLong();
+            long lastUsedTime = buffer.getLong();
+            long estimatedBytes = buffer.getLong();
+            long tileCount = buffer.getLong();
+            byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(nameBytes);
+            int flags = version >= 2 ? buffer.getInt() : 0;
+            return new RegionMetadata(new String(nameBytes, UTF_8), createdTime, lastUsedTime,
+                    estimatedBytes, tileCount, (flags & FLAG_PINNED) != 0);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static RegionMetadata decodeJson(byte[] bytes) {
+        try {
+            JsonElement json = JsonParser.parseString(new String(bytes, UTF_8));
+            if (!json.isJsonObject()) {
+                return null;
+            }
+            JsonElement name = json.getAsJsonObject()
+                    .get(OfflineManagerActivity.JSON_FIELD_REGION_NAME);
+            if (name == null || !name.isJsonPrimitive()) {
+                return null;
+            }
+            return new RegionMetadata(name.getAsString(), -1, -1, -1, -1);
+        } catch (JsonParseException | IllegalStateException e) {
+            return null;
+        }
+    }
+}
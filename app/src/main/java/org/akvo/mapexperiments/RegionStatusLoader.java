@@ -0,0 +1,152 @@
+package org.akvo.mapexperiments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fetches the download status of offline regions for the rows being shown, at most
+ * {@link #MAX_IN_FLIGHT} at a time, most recently requested first so that after a fast scroll
+ * the rows on screen come before the ones scrolled past. Rows leaving the screen cancel their
+ * request if it has not started.
+ * <p/>
+ * Statuses are kept in the cache given to the constructor, which can outlive the loader: a list
+ * opened again shows them at once. Statuses of incomplete regions are fetched again once older
+ * than {@link #STALE_MILLIS}, they may still be downloading. Main thread only.
+ */
+class RegionStatusLoader {
+
+    static final int MAX_IN_FLIGHT = 4;
+    static final long STALE_MILLIS = 30000;
+
+    static final class Status {
+
+        final long completedBytes;
+        final long completedResources;
+        final long requiredResources;
+        final boolean complete;
+        /**
+         * Elapsed realtime of the fetch.
+         */
+        final long fetchedAt;
+
+        Status(long completedBytes, long completedResources, long requiredResources,
+                boolean complete, long fetchedAt) {
+            this.completedBytes = completedBytes;
+            this.completedResources = completedResources;
+            this.requiredResources = requiredResources;
+            this.complete = complete;
+            this.fetchedAt = fetchedAt;
+        }
+
+        /**
+         * @return the completion between 0 and 100, or -1 if the total is not known yet.
+         */
+        int getPercentage() {
+            if (complete) {
+                return 100;
+            }
+            return requiredResources > 0
+                    ? (int) (100 * completedResources / requiredResources) : -1;
+        }
+    }
+
+    interface Source {
+
+        /**
+         * Fetches the status of a region, calling back on the main thread with null on errors.
+         */
+        void getStatus(long regionId, @NonNull Callback callback);
+    }
+
+    interface Callback {
+
+        void onStatus(long regionId, @Nullable Status status);
+    }
+
+    interface Listener {
+
+        void onStatusLoaded(long regionId, @NonNull Status status);
+    }
+
+    private final Map<Long, Status> cache;
+    private final Source source;
+    @Nullable
+    private Listener listener;
+
+    private final ArrayDeque<Long> pending = new ArrayDeque<>();
+    private final Set<Long> inFlight = new HashSet<>();
+
+    private final Callback callback = new Callback() {
+        @Override
+        public void onStatus(long regionId, @Nullable Status status) {
+            inFlight.remove(regionId);
+            if (status != null) {
+                cache.put(regionId, status);
+                if (listener != null) {
+                    listener.onStatusLoaded(regionId, status);
+                }
+            }
+            startPending();
+        }
+    };
+
+    RegionStatusLoader(@NonNull Map<Long, Status> cache, @NonNull Source source,
+            @Nullable Listener listener) {
+        this.cache = cache;
+        this.source = source;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the last status fetched for the region, however old, or null.
+     */
+    @Nullable
+    Status getCached(long regionId) {
+        return cache.get(regionId);
+    }
+
+    /**
+     * Fetches the status of a region unless a recent enough one is cached.
+     */
+    void request(long regionId, long nowMillis) {
+        Status cached = cache.get(regionId);
+        if (cached != null && (cached.complete || nowMillis - cached.fetchedAt < STALE_MILLIS)) {
+            return;
+        }
+        if (inFlight.contains(regionId)) {
+            return;
+        }
+        pending.remove(regionId);
+        pending.addFirst(regionId);
+        startPending();
+    }
+
+    /**
+     * Drops the request of a region that is no longer shown, unless it already started.
+     */
+    void cancel(long regionId) {
+        pending.remove(regionId);
+    }
+
+    /**
+     * Drops the pending requests and stops telling the listener; the ones in flight still fill
+     * the cache.
+     */
+    void release() {
+        pending.clear();
+        listener = null;
+    }
+
+    private void startPending() {
+        while (inFlight.size() < MAX_IN_FLIGHT && !pending.isEmpty()) {
+            long regionId = pending.removeFirst();
+            inFlight.add(regionId);
+            source.getStatus(regionId, callback);
+        }
+    }
+}
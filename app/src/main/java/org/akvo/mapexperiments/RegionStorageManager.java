@@ -0,0 +1,325 @@
+package org.akvo.mapexperiments;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.NonNull;
+
+import com.mapbox.mapboxsdk.offline.OfflineManager;
+import com.mapbox.mapboxsdk.offline.OfflineRegion;
+import com.mapbox.mapboxsdk.offline.OfflineRegionStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the offline regions within a disk budget by deleting the least recently used ones, as
+ * recorded in their {@link RegionMetadata}. Pinned regions and regions queued, downloading or
+ * paused in the {@link DownloadQueue} are never deleted; regions that were never opened count as
+ * used when they were created, or as the oldest of all for regions of older versions.
+ * <p/>
+ * Sizes are the completed resource sizes Mapbox reports. Regions share their style, sprites and
+ * glyphs, so the bytes reclaimed are an upper bound. The Mapbox calls do their disk work on the
+ * Mapbox worker thread and the regions are chosen on a worker thread of our own, the main
+ * thread only dispatches.
+ * <p/>
+ * It also counts the tiles the regions take from the Mapbox tile count limit, which holds for
+ * all the regions together.
+ */
+class RegionStorageManager {
+
+    private static final String TAG = "RegionStorageManager";
+
+    static final long DEFAULT_BUDGET_BYTES = 2L * 1024 * 1024 * 1024;
+    private static final String PREF_BUDGET_BYTES = "offline_storage_budget";
+
+    interface Callback {
+
+        /**
+         * Called on the main thread once the regions over budget are deleted.
+         */
+        void onEvicted(int regionCount, long bytesReclaimed);
+    }
+
+    interface TileCountCallback {
+
+        /**
+         * Called on the main thread with the tiles the regions hold or will hold once downloaded.
+         */
+        void onTilesCounted(long tiles);
+    }
+
+    /**
+     * Called on the main thread with the regions and the statuses that could be fetched.
+     */
+    private interface RegionsCallback {
+
+        void onRegions(@NonNull OfflineRegion[] regions,
+                @NonNull Map<Long, OfflineRegionStatus> statuses);
+    }
+
+    /**
+     * What the eviction policy knows about a region.
+     */
+    static final class Candidate {
+
+        final long regionId;
+        final long bytes;
+        final long lastUsedTime;
+        final boolean evictable;
+
+        Candidate(long regionId, long bytes, long lastUsedTime, boolean evictable) {
+            this.regionId = regionId;
+            this.bytes = bytes;
+            this.lastUsedTime = lastUsedTime;
+            this.evictable = evictable;
+        }
+    }
+
+    private static RegionStorageManager instance;
+
+    private final Context context;
+    private final OfflineManager offlineManager;
+    private final SharedPreferences preferences;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    static synchronized RegionStorageManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new RegionStorageManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private RegionStorageManager(Context context) {
+        this.context = context;
+        this.offlineManager = OfflineManager.getInstance(context);
+        this.preferences = context.getSharedPreferences(MapBoxActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    long getBudgetBytes() {
+        return preferences.getLong(PREF_BUDGET_BYTES, DEFAULT_BUDGET_BYTES);
+    }
+
+    void setBudgetBytes(long budgetBytes) {
+        preferences.edit().putLong(PREF_BUDGET_BYTES, budgetBytes).apply();
+    }
+
+    /**
+     * Deletes least recently used regions until the regions and {@code reserveBytes} more fit in
+     * the budget. Main thread only.
+     */
+    void enforceBudget(final long reserveBytes, @NonNull final Callback callback) {
+        OfflineDownloadService.readSavedQueue(context, new OfflineDownloadService.Listener() {
+            @Override
+            public void onQueueChanged(@NonNull DownloadQueue queue) {
+                Set<Long> downloads = new HashSet<>();
+                for (DownloadQueue.Entry entry : queue.getEntries()) {
+                    if (entry.isPending() || entry.state == DownloadQueue.State.PAUSED) {
+                        downloads.add(entry.regionId);
+                    }
+                }
+                listRegions(new RegionsCallback() {
+                    @Override
+                    public void onRegions(@NonNull OfflineRegion[] regions,
+                            @NonNull Map<Long, OfflineRegionStatus> statuses) {
+                        if (regions.length == 0) {
+                            callback.onEvicted(0, 0);
+                        } else {
+                            chooseEvictions(regions, statuses, downloads, reserveBytes,
+                                    callback);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Counts the tiles of all the regions towards the Mapbox tile count limit: the tiles
+     * downloaded so far, or the estimate the region was created with if larger, the rest being
+     * still to come. Regions share the tiles where they overlap, so this is an upper bound. Main
+     * thread only.
+     */
+    void countTiles(@NonNull final TileCountCallback callback) {
+        listRegions(new RegionsCallback() {
+            @Override
+            public void onRegions(@NonNull OfflineRegion[] regions,
+                    @NonNull Map<Long, OfflineRegionStatus> statuses) {
+                long tiles = 0;
+                for (OfflineRegion region : regions) {
+                    OfflineRegionStatus status = statuses.get(region.getID());
+                    long completed = status == null ? 0 : status.getCompletedTileCount();
+                    tiles += Math.max(completed, RegionMapper.getMetadata(region).tileCount);
+                }
+                callback.onTilesCounted(tiles);
+            }
+        });
+    }
+
+    private void listRegions(final RegionsCallback callback) {
+        offlineManager.listOfflineRegions(new OfflineManager.ListOfflineRegionsCallback() {
+            @Override
+            public void onList(OfflineRegion[] offlineRegions) {
+                if (offlineRegions == null || offlineRegions.length == 0) {
+                    callback.onRegions(new OfflineRegion[0],
+                            new HashMap<Long, OfflineRegionStatus>());
+                } else {
+                    collectStatuses(offlineRegions, callback);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Could not list offline regions: " + error);
+                callback.onRegions(new OfflineRegion[0],
+                        new HashMap<Long, OfflineRegionStatus>());
+            }
+        });
+    }
+
+    private void collectStatuses(final OfflineRegion[] regions,
+            final RegionsCallback callback) {
+        final Map<Long, OfflineRegionStatus> statuses = new HashMap<>();
+        final int[] remaining = { regions.length };
+        for (final OfflineRegion region : regions) {
+            region.getStatus(new OfflineRegion.OfflineRegionStatusCallback() {
+                @Override
+                public void onStatus(OfflineRegionStatus status) {
+                    statuses.put(region.getID(), status);
+                    onStatusCollected();
+                }
+
+                @Override
+                public void onError(String error) {
+                    // a region of unknown size is kept
+                    Log.e(TAG, "Could not get region status: " + error);
+                    onStatusCollected();
+                }
+
+                private void onStatusCollected() {
+                    if (--remaining[0] == 0) {
+                        callback.onRegions(regions, statuses);
+                    }
+                }
+            });
+        }
+    }
+
+    private void chooseEvictions(final OfflineRegion[] regions,
+            final Map<Long, OfflineRegionStatus> statuses, final Set<Long> downloads,
+            final long reserveBytes, final Callback callback) {
+        final long budgetBytes = getBudgetBytes() - reserveBytes;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Candidate> candidates = new ArrayList<>();
+                for (OfflineRegion region : regions) {
+                    OfflineRegionStatus status = statuses.get(region.getID());
+                    RegionMetadata metadata = RegionMapper.getMetadata(region);
+                    long lastUsed = metadata.lastUsedTime >= 0 ? metadata.lastUsedTime
+                            : metadata.createdTime;
+                    boolean evictable = status != null && !metadata.pinned
+                            && status.getDownloadState() != OfflineRegion.STATE_ACTIVE
+                            && !downloads.contains(region.getID());
+                    candidates.add(new Candidate(region.getID(),
+                            status == null ? 0 : status.getCompletedResourceSize(), lastUsed,
+                            evictable));
+                }
+                final List<Candidate> evictions = selectEvictions(candidates, budgetBytes);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        delete(regions, evictions, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    private void delete(OfflineRegion[] regions, final List<Candidate> evictions,
+            final Callback callback) {
+        if (evictions.isEmpty()) {
+            callback.onEvicted(0, 0);
+            return;
+        }
+        Map<Long, OfflineRegion> regionsById = new HashMap<>();
+        for (OfflineRegion region : regions) {
+            regionsById.put(region.getID(), region);
+        }
+        final long[] reclaimed = { 0 };
+        final int[] deleted = { 0 };
+        final int[] remaining = { evictions.size() };
+        for (final Candidate candidate : evictions) {
+            regionsById.get(candidate.regionId).delete(
+                    new OfflineRegion.OfflineRegionDeleteCallback() {
+                        @Override
+                        public void onDelete() {
+                            RegionMapper.remove(candidate.regionId);
+                            RegionsListDialogFragment.forgetRegion(candidate.regionId);
+                            reclaimed[0] += candidate.bytes;
+                            deleted[0]++;
+                            onDeleteDone();
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            Log.e(TAG, "Could not delete region: " + error);
+                            onDeleteDone();
+                        }
+
+                        private void onDeleteDone() {
+                            if (--remaining[0] == 0) {
+                                Log.i(TAG, "Evicted " + deleted[0] + " regions, "
+                                        + reclaimed[0] + " bytes");
+                                callback.onEvicted(deleted[0], reclaimed[0]);
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Chooses the evictable regions to delete, least recently used first, until the total size
+     * of the regions fits in the budget, or nothing evictable is left. Empty regions are left
+     * alone, deleting them reclaims nothing.
+     */
+    @NonNull
+    static List<Candidate> selectEvictions(@NonNull List<Candidate> regions, long budgetBytes) {
+        long total = 0;
+        List<Candidate> evictable = new ArrayList<>();
+        for (Candidate candidate : regions) {
+            total += candidate.bytes;
+            if (candidate.evictable && candidate.bytes > 0) {
+                evictable.add(candidate);
+            }
+        }
+        Collections.sort(evictable, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return a.lastUsedTime < b.lastUsedTime ? -1
+                        : a.lastUsedTime == b.lastUsedTime ? 0 : 1;
+            }
+        });
+        List<Candidate> evictions = new ArrayList<>();
+        for (Candidate candidate : evictable) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            evictions.add(candidate);
+            total -= candidate.bytes;
+        }
+        return evictions;
+    }
+}
@@ -7,29 +7,56 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.format.Formatter;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.DialogFragment;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.mapbox.mapboxsdk.offline.OfflineManager;
 import com.mapbox.mapboxsdk.offline.OfflineRegion;
+import com.mapbox.mapboxsdk.offline.OfflineRegionStatus;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Lists the offline regions with their size and completion. The list of the previous opening is
+ * shown at once and updated with {@link DiffUtil} when Mapbox lists the regions again. Names are
+ * decoded, and statuses fetched by a {@link RegionStatusLoader}, only for the rows bound on
+ * screen, so the dialog stays responsive with hundreds of regions. A long press pins a region, or
+ * unpins it, so that the {@link RegionStorageManager} never deletes it.
+ */
 public class RegionsListDialogFragment extends DialogFragment {
 
     static final String TAG = "RegionsListDialogFragment";
 
+    /**
+     * Survive the dialog, so opening it again needs no status and shows the last list meanwhile.
+     */
+    private static final Map<Long, RegionStatusLoader.Status> statusCache = new HashMap<>();
+    private static List<OfflineRegion> lastRegions = new ArrayList<>();
+
+    /**
+     * Rebinds only the status of a row.
+     */
+    private static final Object PAYLOAD_STATUS = new Object();
+    private static final long NO_REGION = -1;
+
     private RegionsAdapter adapter;
-    private OfflineRegion[] offlineRegions;
-    private RegionMapper regionMapper;
+    private RegionStatusLoader statusLoader;
     private RegionsSelectionListener listener;
 
     public RegionsListDialogFragment() {
@@ -39,6 +66,20 @@ public class RegionsListDialogFragment extends DialogFragment {
         return new RegionsListDialogFragment();
     }
 
+    /**
+     * Drops what the list remembers of a deleted region. Main thread only.
+     */
+    static void forgetRegion(long regionId) {
+        statusCache.remove(regionId);
+        List<OfflineRegion> regions = new ArrayList<>(lastRegions.size());
+        for (OfflineRegion region : lastRegions) {
+            if (region.getID() != regionId) {
+                regions.add(region);
+            }
+        }
+        lastRegions = regions;
+    }
+
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
@@ -54,13 +95,14 @@ public class RegionsListDialogFragment extends DialogFragment {
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         adapter = new RegionsAdapter(getActivity());
+        statusLoader = new RegionStatusLoader(statusCache, adapter, adapter);
+        adapter.setOfflineRegions(lastRegions);
     }
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         OfflineManager offlineManager = OfflineManager.getInstance(getActivity());
-        regionMapper = new RegionMapper(getString(R.string.region_name));
 
         // Query the DB asynchronously
         offlineManager.listOfflineRegions(new OfflineManager.ListOfflineRegionsCallback() {
@@ -77,38 +119,33 @@ public class RegionsListDialogFragment extends DialogFragment {
         });
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        statusLoader.release();
+    }
+
     @Override
     public void onDetach() {
         super.onDetach();
         listener = null;
     }
 
-    private void setOfflineRegions(OfflineRegion[] offlineRegions) {
-        if (offlineRegions != null && offlineRegions.length > 0) {
-            this.offlineRegions = offlineRegions;
-            ArrayList<String> offlineRegionsNames = new ArrayList<>();
-            for (OfflineRegion offlineRegion : offlineRegions) {
-                offlineRegionsNames.add(regionMapper.getRegionName(offlineRegion));
-            }
-            adapter.setOfflineRegions(offlineRegionsNames);
-        } else {
-            this.offlineRegions = new OfflineRegion[0];
-        }
+    private void setOfflineRegions(@Nullable OfflineRegion[] offlineRegions) {
+        lastRegions = offlineRegions == null ? new ArrayList<OfflineRegion>()
+                : new ArrayList<>(Arrays.asList(offlineRegions));
+        adapter.setOfflineRegions(lastRegions);
     }
 
     @NonNull
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
+        RecyclerView recyclerView = new RecyclerView(getActivity());
+        recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        recyclerView.setAdapter(adapter);
         AlertDialog.Builder dialog = new AlertDialog.Builder(getActivity())
                 .setTitle(getString(R.string.navigate_title))
-                .setSingleChoiceItems(adapter, 0, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        OfflineRegion region = offlineRegions[which];
-                        listener.onRegionSelected(region);
-                        dialog.dismiss();
-                    }
-                })
+                .setView(recyclerView)
                 .setPositiveButton(getString(R.string.navigate_positive_button),
                         new DialogInterface.OnClickListener() {
                             @Override
@@ -126,47 +163,217 @@ public class RegionsListDialogFragment extends DialogFragment {
         return dialog.create();
     }
 
-    private static class RegionsAdapter extends ArrayAdapter<String> {
+    private void onRegionClicked(OfflineRegion region) {
+        if (listener != null) {
+            listener.onRegionSelected(region);
+        }
+        dismiss();
+    }
+
+    private void togglePinned(OfflineRegion region) {
+        boolean pinned = !RegionMapper.getMetadata(region).pinned;
+        if (RegionMapper.setPinned(region, pinned)) {
+            adapter.rebindStatus(region.getID());
+            Toast.makeText(getActivity(), pinned ? R.string.toast_region_pinned
+                    : R.string.toast_region_unpinned, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private static boolean sameIds(List<OfflineRegion> oldRegions, int oldPosition,
+            List<OfflineRegion> newRegions, int newPosition) {
+        return oldRegions.get(oldPosition).getID() == newRegions.get(newPosition).getID();
+    }
+
+    private class RegionsAdapter extends RecyclerView.Adapter<RegionViewHolder>
+            implements RegionStatusLoader.Source, RegionStatusLoader.Listener {
 
-        private final ArrayList<String> offlineRegionsNames = new ArrayList<>();
         private final LayoutInflater inflater;
+        private final RegionMapper regionMapper;
+        private final Context context;
+        private List<OfflineRegion> offlineRegions = new ArrayList<>();
+        private final Map<Long, OfflineRegion> regionsById = new HashMap<>();
 
         RegionsAdapter(Context context) {
-            super(context, 0);
+            this.context = context;
             this.inflater = LayoutInflater.from(context);
+            this.regionMapper = new RegionMapper(context.getString(R.string.region_name));
+            setHasStableIds(true);
         }
 
-        void setOfflineRegions(List<String> items) {
-            offlineRegionsNames.addAll(items);
-            notifyDataSetChanged();
+        void setOfflineRegions(final List<OfflineRegion> regions) {
+            final List<OfflineRegion> previous = offlineRegions;
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return previous.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return regions.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return sameIds(previous, oldPosition, regions, newPosition);
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    // names and statuses are looked up by id when bound
+                    return sameIds(previous, oldPosition, regions, newPosition);
+                }
+            });
+            offlineRegions = regions;
+            regionsById.clear();
+            for (OfflineRegion region : regions) {
+                regionsById.put(region.getID(), region);
+            }
+            diff.dispatchUpdatesTo(this);
         }
 
         @Override
-        public int getCount() {
-            return offlineRegionsNames.size();
+        public int getItemCount() {
+            return offlineRegions.size();
         }
 
         @Override
-        public String getItem(int i) {
-            return offlineRegionsNames.get(i);
+        public long getItemId(int position) {
+            return offlineRegions.get(position).getID();
         }
 
+        @NonNull
         @Override
-        public long getItemId(int i) {
-            return i;
+        public RegionViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            return new RegionViewHolder(inflater.inflate(R.layout.region_item, parent, false));
         }
 
-        @NonNull
         @Override
-        public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-            View view;
-            if (convertView == null) {
-                view = inflater.inflate(R.layout.region_item, parent, false);
+        public void onBindViewHolder(@NonNull RegionViewHolder holder, int position) {
+            OfflineRegion region = offlineRegions.get(position);
+            holder.regionId = region.getID();
+            holder.nameView.setText(regionMapper.getRegionName(region));
+            bindStatus(holder);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull RegionViewHolder holder, int position,
+                @NonNull List<Object> payloads) {
+            if (payloads.contains(PAYLOAD_STATUS) && holder.regionId != NO_REGION) {
+                bindStatus(holder);
+            } else {
+                onBindViewHolder(holder, position);
+            }
+        }
+
+        @Override
+        public void onViewRecycled(@NonNull RegionViewHolder holder) {
+            if (holder.regionId != NO_REGION) {
+                statusLoader.cancel(holder.regionId);
+                holder.regionId = NO_REGION;
+            }
+        }
+
+        private void bindStatus(RegionViewHolder holder) {
+            long regionId = holder.regionId;
+            RegionStatusLoader.Status status = statusLoader.getCached(regionId);
+            String text;
+            if (status == null) {
+                text = context.getString(R.string.region_status_loading);
+            } else if (status.getPercentage() < 0) {
+                text = Formatter.formatShortFileSize(context, status.completedBytes);
             } else {
-                view = convertView;
+                text = context.getString(R.string.region_status,
+                        Formatter.formatShortFileSize(context, status.completedBytes),
+                        status.getPercentage());
+            }
+            OfflineRegion region = regionsById.get(regionId);
+            if (region != null && RegionMapper.getMetadata(region).pinned) {
+                text = context.getString(R.string.region_pinned, text);
+            }
+            holder.statusView.setText(text);
+            holder.statusView.setVisibility(View.VISIBLE);
+            statusLoader.request(regionId, SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public void getStatus(final long regionId,
+                @NonNull final RegionStatusLoader.Callback callback) {
+            OfflineRegion region = regionsById.get(regionId);
+            if (region == null) {
+                callback.onStatus(regionId, null);
+                return;
             }
-            ((TextView) view.findViewById(R.id.region_tv)).setText(getItem(position));
-            return view;
+            region.getStatus(new OfflineRegion.OfflineRegionStatusCallback() {
+                @Override
+                public void onStatus(OfflineRegionStatus status) {
+                    callback.onStatus(regionId, new RegionStatusLoader.Status(
+                            status.getCompletedResourceSize(),
+                            status.getCompletedResourceCount(),
+                            status.isRequiredResourceCountPrecise()
+                                    ? status.getRequiredResourceCount() : 0,
+                            status.isComplete(), SystemClock.elapsedRealtime()));
+                }
+
+                @SuppressLint("LongLogTag")
+                @Override
+                public void onError(String error) {
+                    Log.e(TAG, "Could not get status: " + error);
+                    callback.onStatus(regionId, null);
+                }
+            });
+        }
+
+        @Override
+        public void onStatusLoaded(long regionId, @NonNull RegionStatusLoader.Status status) {
+            rebindStatus(regionId);
+        }
+
+        /**
+         * Rebinds the status line of a region, also shown when it is pinned.
+         */
+        void rebindStatus(long regionId) {
+            for (int i = 0; i < offlineRegions.size(); i++) {
+                if (offlineRegions.get(i).getID() == regionId) {
+                    notifyItemChanged(i, PAYLOAD_STATUS);
+                    return;
+                }
+            }
+        }
+    }
+
+    private class RegionViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView nameView;
+        final TextView statusView;
+        /**
+         * Regions are looked up by id when clicked: listing them again makes new instances.
+         */
+        long regionId = NO_REGION;
+
+        RegionViewHolder(@NonNull View itemView) {
+            super(itemView);
+            nameView = itemView.findViewById(R.id.region_tv);
+            statusView = itemView.findViewById(R.id.region_status_tv);
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    OfflineRegion region = adapter.regionsById.get(regionId);
+                    if (region != null) {
+                        onRegionClicked(region);
+                    }
+                }
+            });
+            itemView.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View view) {
+                    OfflineRegion region = adapter.regionsById.get(regionId);
+                    if (region != null) {
+                        togglePinned(region);
+                    }
+                    return true;
+                }
+            });
         }
     }
 
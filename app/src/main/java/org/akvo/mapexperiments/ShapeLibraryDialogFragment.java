@@ -0,0 +1,332 @@
+package org.akvo.mapexperiments;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.DialogFragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lists the shapes of the {@link ShapeStore}, either all of them, the ones in a viewport or the
+ * ones near a point. Shapes are fetched one page at a time while scrolling and only their summary
+ * is read, so the dialog opens instantly whatever the size of the library.
+ */
+public class ShapeLibraryDialogFragment extends DialogFragment {
+
+    static final String TAG = "ShapeLibraryDialogFragment";
+
+    private static final String ARG_MODE = "mode";
+    private static final String ARG_COORDINATES = "coordinates";
+
+    private static final int MODE_ALL = 0;
+    private static final int MODE_IN_BOUNDS = 1;
+    private static final int MODE_NEAR = 2;
+
+    private static final int PAGE_SIZE = 50;
+    /**
+     * Next page is requested when fewer than this many rows are left below the visible ones.
+     */
+    private static final int PREFETCH_DISTANCE = 10;
+    private static final double NEAR_RADIUS_METERS = 2000;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private ShapeStore store;
+    private ShapesAdapter adapter;
+    private ShapeSelectionListener listener;
+    private int mode;
+    private double[] coordinates;
+    private boolean loading;
+    private boolean endReached;
+
+    public ShapeLibraryDialogFragment() {
+    }
+
+    public static ShapeLibraryDialogFragment newInstance() {
+        return create(MODE_ALL, null);
+    }
+
+    /**
+     * Only the shapes whose bounding box intersects the given one.
+     */
+    public static ShapeLibraryDialogFragment newInstanceInBounds(double south, double west,
+            double north, double east) {
+        return create(MODE_IN_BOUNDS, new double[] { south, west, north, east });
+    }
+
+    /**
+     * Only the shapes close to the given point, closest first.
+     */
+    public static ShapeLibraryDialogFragment newInstanceNear(double latitude, double longitude) {
+        return create(MODE_NEAR, new double[] { latitude, longitude });
+    }
+
+    private static ShapeLibraryDialogFragment create(int mode, @Nullable double[] coordinates) {
+        ShapeLibraryDialogFragment fragment = new ShapeLibraryDialogFragment();
+        Bundle arguments = new Bundle();
+        arguments.putInt(ARG_MODE, mode);
+        arguments.putDoubleArray(ARG_COORDINATES, coordinates);
+        fragment.setArguments(arguments);
+        return fragment;
+    }
+
+    @Override
+    public void onAttach(Context context) {
+        super.onAttach(context);
+        Activity activity = getActivity();
+        if (activity instanceof ShapeSelectionListener) {
+            listener = (ShapeSelectionListener) activity;
+        } else {
+            throw new IllegalArgumentException("activity must implement ShapeSelectionListener");
+        }
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Bundle arguments = getArguments();
+        mode = arguments == null ? MODE_ALL : arguments.getInt(ARG_MODE);
+        coordinates = arguments == null ? null : arguments.getDoubleArray(ARG_COORDINATES);
+        store = ShapeStore.getInstance(getActivity());
+        adapter = new ShapesAdapter(getActivity());
+        loadNextPage();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        ListView listView = ((AlertDialog) getDialog()).getListView();
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // EMPTY
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount + PREFETCH_DISTANCE >= totalItemCount) {
+                    loadNextPage();
+                }
+            }
+        });
+        listView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position,
+                    long id) {
+                confirmDelete(adapter.getItem(position));
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        listener = null;
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder dialog = new AlertDialog.Builder(getActivity())
+                .setTitle(getString(titleFor(mode)))
+                .setAdapter(adapter, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (listener != null) {
+                            listener.onShapeSelected(adapter.getItem(which).id);
+                        }
+                        dialog.dismiss();
+                    }
+                })
+                .setNegativeButton(getString(R.string.navigate_negative_button_title),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int id) {
+                                // EMPTY
+                            }
+                        });
+        return dialog.create();
+    }
+
+    private static int titleFor(int mode) {
+        switch (mode) {
+            case MODE_IN_BOUNDS:
+                return R.string.shapes_in_view;
+            case MODE_NEAR:
+                return R.string.shapes_near_me;
+            default:
+                return R.string.shape_library;
+        }
+    }
+
+    private void loadNextPage() {
+        if (loading || endReached) {
+            return;
+        }
+        loading = true;
+        final ShapeStore.Summary last = adapter.getCount() == 0 ? null
+                : adapter.getItem(adapter.getCount() - 1);
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<ShapeStore.Summary> page = queryPage(last);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param last the last shape of the previous page, null for the first page.
+     */
+    @NonNull
+    private List<ShapeStore.Summary> queryPage(@Nullable ShapeStore.Summary last) {
+        long beforeId = last == null ? Long.MAX_VALUE : last.id;
+        switch (mode) {
+            case MODE_IN_BOUNDS:
+                return store.listInBounds(coordinates[0], coordinates[1], coordinates[2],
+                        coordinates[3], beforeId, PAGE_SIZE);
+            case MODE_NEAR:
+                return store.listNear(coordinates[0], coordinates[1], NEAR_RADIUS_METERS,
+                        last == null ? -1 : last.distance, last == null ? -1 : last.id,
+                        PAGE_SIZE);
+            default:
+                return store.list(beforeId, PAGE_SIZE);
+        }
+    }
+
+    private void onPageLoaded(List<ShapeStore.Summary> page) {
+        loading = false;
+        endReached = page.size() < PAGE_SIZE;
+        adapter.addShapes(page);
+        if (adapter.getCount() == 0 && getActivity() != null) {
+            Toast.makeText(getActivity(), R.string.toast_no_shapes_yet, Toast.LENGTH_SHORT)
+                    .show();
+            dismissAllowingStateLoss();
+        }
+    }
+
+    /**
+     * Field shapes cannot be walked again: deleting one asks first.
+     */
+    private void confirmDelete(final ShapeStore.Summary shape) {
+        new AlertDialog.Builder(getActivity())
+                .setMessage(getString(R.string.confirm_delete_shape, shape.name))
+                .setPositiveButton(R.string.navigate_neutral_button_title,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                deleteShape(shape);
+                            }
+                        })
+                .setNegativeButton(R.string.navigate_negative_button_title, null)
+                .show();
+    }
+
+    private void deleteShape(final ShapeStore.Summary shape) {
+        if (getActivity() == null) {
+            return;
+        }
+        adapter.remove(shape);
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.delete(shape.id);
+            }
+        });
+        Toast.makeText(getActivity(), R.string.toast_shape_deleted, Toast.LENGTH_SHORT).show();
+    }
+
+    private static class ShapesAdapter extends ArrayAdapter<ShapeStore.Summary> {
+
+        private final ArrayList<ShapeStore.Summary> shapes = new ArrayList<>();
+        private final LayoutInflater inflater;
+        private final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                DateFormat.SHORT);
+        private final String pointsFormat;
+
+        ShapesAdapter(Context context) {
+            super(context, 0);
+            this.inflater = LayoutInflater.from(context);
+            this.pointsFormat = context.getString(R.string.shape_summary);
+        }
+
+        void addShapes(List<ShapeStore.Summary> items) {
+            shapes.addAll(items);
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void remove(@Nullable ShapeStore.Summary shape) {
+            shapes.remove(shape);
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return shapes.size();
+        }
+
+        @Override
+        public ShapeStore.Summary getItem(int i) {
+            return shapes.get(i);
+        }
+
+        @Override
+        public long getItemId(int i) {
+            return shapes.get(i).id;
+        }
+
+        @NonNull
+        @Override
+        public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
+            View view;
+            if (convertView == null) {
+                view = inflater.inflate(R.layout.region_item, parent, false);
+            } else {
+                view = convertView;
+            }
+            ShapeStore.Summary shape = getItem(position);
+            ((TextView) view.findViewById(R.id.region_tv)).setText(String.format(pointsFormat,
+                    shape.name, dateFormat.format(new Date(shape.createdAt)), shape.pointCount));
+            return view;
+        }
+    }
+
+    public interface ShapeSelectionListener {
+
+        void onShapeSelected(long shapeId);
+    }
+}
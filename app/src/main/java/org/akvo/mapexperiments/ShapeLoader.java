@@ -0,0 +1,153 @@
+package org.akvo.mapexperiments;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.NonNull;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads a saved shape on a worker thread and hands it to the main thread in chunks, one chunk
+ * per looper pass, so that frames keep being drawn while a large shape appears. A loader is used
+ * once; {@link #cancel()} stops both the parsing and the delivery of pending chunks.
+ */
+class ShapeLoader {
+
+    private static final String TAG = "ShapeLoader";
+
+    static final int CHUNK_SIZE = 500;
+
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Queue<TrackBuffer> chunks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean cancelled;
+    private volatile boolean sourceFinished;
+    private volatile String error;
+    private int delivered;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainOneChunk();
+        }
+    };
+
+    ShapeLoader(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    void load(@NonNull final Source source) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.read(new Sink());
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Could not load shape: " + e.getMessage());
+                    error = String.valueOf(e.getMessage());
+                }
+                sourceFinished = true;
+                scheduleDrain();
+            }
+        });
+        executor.shutdown();
+    }
+
+    void cancel() {
+        cancelled = true;
+        mainHandler.removeCallbacks(drainRunnable);
+        chunks.clear();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void scheduleDrain() {
+        mainHandler.removeCallbacks(drainRunnable);
+        mainHandler.post(drainRunnable);
+    }
+
+    private void drainOneChunk() {
+        if (cancelled) {
+            return;
+        }
+        // read before polling: the last chunk is queued before the source is marked finished
+        boolean finished = sourceFinished;
+        TrackBuffer chunk = chunks.poll();
+        if (chunk != null) {
+            delivered += chunk.size();
+            listener.onChunk(chunk);
+            scheduleDrain();
+        } else if (finished) {
+            cancelled = true;
+            if (error == null) {
+                listener.onFinished(delivered);
+            } else {
+                listener.onError(error);
+            }
+        }
+    }
+
+    /**
+     * Where the points come from, read on the worker thread.
+     */
+    interface Source {
+
+        void read(@NonNull Sink sink) throws IOException;
+    }
+
+    /**
+     * Collects points into chunks for the main thread.
+     */
+    class Sink {
+
+        private TrackBuffer chunk = new TrackBuffer(CHUNK_SIZE);
+
+        /**
+         * @return the buffer to add the next point to.
+         */
+        @NonNull
+        TrackBuffer buffer() {
+            return chunk;
+        }
+
+        /**
+         * Must be called after each point added to {@link #buffer()}.
+         *
+         * @return false once the load was cancelled and reading should stop.
+         */
+        boolean pointAdded() {
+            if (chunk.size() >= CHUNK_SIZE) {
+                flush();
+            }
+            return !cancelled;
+        }
+
+        void flush() {
+            if (!chunk.isEmpty()) {
+                chunks.add(chunk);
+                chunk = new TrackBuffer(CHUNK_SIZE);
+                scheduleDrain();
+            }
+        }
+    }
+
+    interface Listener {
+
+        void onChunk(@NonNull TrackBuffer chunk);
+
+        void onFinished(int pointCount);
+
+        void onError(@NonNull String message);
+    }
+}
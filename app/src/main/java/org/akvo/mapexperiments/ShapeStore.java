@@ -0,0 +1,455 @@
+package org.akvo.mapexperiments;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.google.gson.stream.JsonReader;
+
+import org.akvo.mapexperiments.geometry.ShapeJson;
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local library of saved shapes. Each shape is one row of {@code shapes} holding its name, point
+ * count and bounding box, its points live in {@code vertices}. The bounding box columns are
+ * indexed so viewport and proximity queries only touch candidate rows, and listing never reads a
+ * vertex: points are streamed through a {@link VertexSource} once a shape is opened.
+ * <p/>
+ * SQLite's R-tree module is not available on every Android version, so the index is a plain
+ * B-tree over the box edges, which is enough at the few thousand shapes of one device.
+ * <p/>
+ * All queries hit the disk: call them from {@link #execute} or another worker thread.
+ */
+class ShapeStore extends SQLiteOpenHelper {
+
+    private static final String TAG = "ShapeStore";
+
+    private static final String DATABASE_NAME = "shapes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_SHAPES = "shapes";
+    private static final String TABLE_VERTICES = "vertices";
+
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_CREATED_AT = "created_at";
+    private static final String COLUMN_POINT_COUNT = "point_count";
+    private static final String COLUMN_MIN_LAT = "min_lat";
+    private static final String COLUMN_MAX_LAT = "max_lat";
+    private static final String COLUMN_MIN_LON = "min_lon";
+    private static final String COLUMN_MAX_LON = "max_lon";
+
+    private static final String COLUMN_SHAPE_ID = "shape_id";
+    private static final String COLUMN_POSITION = "position";
+    private static final String COLUMN_LATITUDE = "latitude";
+    private static final String COLUMN_LONGITUDE = "longitude";
+    private static final String COLUMN_ACCURACY = "accuracy";
+    private static final String COLUMN_TIME = "time";
+
+    private static final String[] SUMMARY_COLUMNS = {
+            COLUMN_ID, COLUMN_NAME, COLUMN_CREATED_AT, COLUMN_POINT_COUNT,
+            COLUMN_MIN_LAT, COLUMN_MIN_LON, COLUMN_MAX_LAT, COLUMN_MAX_LON
+    };
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    private static ShapeStore instance;
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private ShapeStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    static synchronized ShapeStore getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new ShapeStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SHAPES + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_NAME + " TEXT NOT NULL, "
+                + COLUMN_CREATED_AT + " INTEGER NOT NULL, "
+                + COLUMN_POINT_COUNT + " INTEGER NOT NULL, "
+                + COLUMN_MIN_LAT + " REAL NOT NULL, "
+                + COLUMN_MIN_LON + " REAL NOT NULL, "
+                + COLUMN_MAX_LAT + " REAL NOT NULL, "
+                + COLUMN_MAX_LON + " REAL NOT NULL)");
+        db.execSQL("CREATE INDEX shapes_lat ON " + TABLE_SHAPES
+                + " (" + COLUMN_MIN_LAT + ", " + COLUMN_MAX_LAT + ")");
+        db.execSQL("CREATE INDEX shapes_lon ON " + TABLE_SHAPES
+                + " (" + COLUMN_MIN_LON + ", " + COLUMN_MAX_LON + ")");
+        db.execSQL("CREATE TABLE " + TABLE_VERTICES + " ("
+                + COLUMN_SHAPE_ID + " INTEGER NOT NULL REFERENCES " + TABLE_SHAPES
+                + " ON DELETE CASCADE, "
+                + COLUMN_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_LATITUDE + " REAL NOT NULL, "
+                + COLUMN_LONGITUDE + " REAL NOT NULL, "
+                + COLUMN_ACCURACY + " REAL NOT NULL, "
+                + COLUMN_TIME + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_SHAPE_ID + ", " + COLUMN_POSITION + "))");
+        importLegacyShape(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // only one version so far
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // setForeignKeyConstraintsEnabled() needs API 16
+        if (!db.isReadOnly()) {
+            db.execSQL("PRAGMA foreign_keys = ON");
+        }
+    }
+
+    /**
+     * Runs {@code task} on the store's worker thread.
+     */
+    void execute(@NonNull Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Replaces the points of shape {@code shapeId} with a copy of {@code track}, keeping its name
+     * and creation time, or stores a new shape if {@code shapeId} is -1 or was deleted meanwhile.
+     * All in a single transaction. Used to save a recording again as it grows without adding a
+     * shape each time.
+     *
+     * @return the id of the shape or -1 if it could not be stored.
+     */
+    @WorkerThread
+    long save(long shapeId, @NonNull String name, @NonNull TrackBuffer track) {
+        if (track.isEmpty()) {
+            return -1;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = shapeId == -1 ? -1 : replaceShape(db, shapeId, track);
+            if (id == -1) {
+                id = insertShape(db, name, System.currentTimeMillis(), track);
+            }
+            if (id != -1) {
+                db.setTransactionSuccessful();
+            }
+            return id;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not store shape: " + e.getMessage());
+            return -1;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @WorkerThread
+    boolean delete(long shapeId) {
+        return getWritableDatabase().delete(TABLE_SHAPES, COLUMN_ID + " = ?",
+                new String[] { String.valueOf(shapeId) }) > 0;
+    }
+
+    /**
+     * Newest shapes first, {@code limit} at a time. Pass the id of the last shape of the previous
+     * page as {@code beforeId}, or {@link Long#MAX_VALUE} for the first page.
+     */
+    @NonNull
+    @WorkerThread
+    List<Summary> list(long beforeId, int limit) {
+        return querySummaries(COLUMN_ID + " < ?", new String[] { String.valueOf(beforeId) },
+                COLUMN_ID + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Shapes whose bounding box intersects the given one, newest first and paged like
+     * {@link #list}. A box with {@code west > east} crosses the antimeridian.
+     */
+    @NonNull
+    @WorkerThread
+    List<Summary> listInBounds(double south, double west, double north, double east,
+            long beforeId, int limit) {
+        String lonCondition = west <= east
+                ? "(" + COLUMN_MIN_LON + " <= ? AND " + COLUMN_MAX_LON + " >= ?)"
+                : "(" + COLUMN_MIN_LON + " <= ? OR " + COLUMN_MAX_LON + " >= ?)";
+        String selection = COLUMN_MIN_LAT + " <= ? AND " + COLUMN_MAX_LAT + " >= ? AND "
+                + lonCondition + " AND " + COLUMN_ID + " < ?";
+        String[] args = {
+                String.valueOf(north), String.valueOf(south),
+                String.valueOf(east), String.valueOf(west),
+                String.valueOf(beforeId)
+        };
+        return querySummaries(selection, args, COLUMN_ID + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Shapes whose bounding box is within {@code radiusMeters} of the given point, closest box
+     * centre first and by id among equally close ones. Pass the {@link Summary#distance} and id
+     * of the last shape of the previous page, or -1 and -1 for the first page: unlike an offset,
+     * this key does not skip a shape when one of the previous pages was deleted meanwhile.
+     */
+    @NonNull
+    @WorkerThread
+    List<Summary> listNear(double latitude, double longitude, double radiusMeters,
+            double afterDistance, long afterId, int limit) {
+        double latDelta = radiusMeters / METERS_PER_DEGREE;
+        double lonScale = Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        double lonDelta = Math.min(latDelta / lonScale, 180.0);
+        String selection = COLUMN_MIN_LAT + " <= ? AND " + COLUMN_MAX_LAT + " >= ? AND "
+                + COLUMN_MIN_LON + " <= ? AND " + COLUMN_MAX_LON + " >= ?";
+        String[] args = {
+                String.valueOf(latitude + latDelta), String.valueOf(latitude - latDelta),
+                String.valueOf(longitude + lonDelta), String.valueOf(longitude - lonDelta)
+        };
+        // equirectangular distance to the box centre, good enough to order nearby shapes
+        String dLat = "((" + COLUMN_MIN_LAT + " + " + COLUMN_MAX_LAT + ") / 2 - " + latitude + ")";
+        String dLon = "(((" + COLUMN_MIN_LON + " + " + COLUMN_MAX_LON + ") / 2 - " + longitude
+                + ") * " + lonScale + ")";
+        String distance = "(" + dLat + " * " + dLat + " + " + dLon + " * " + dLon + ")";
+        // inlined: a bound argument would be compared as text
+        selection += " AND (" + distance + " > " + afterDistance + " OR (" + distance + " = "
+                + afterDistance + " AND " + COLUMN_ID + " > " + afterId + "))";
+        String[] columns = new String[SUMMARY_COLUMNS.length + 1];
+        System.arraycopy(SUMMARY_COLUMNS, 0, columns, 0, SUMMARY_COLUMNS.length);
+        columns[SUMMARY_COLUMNS.length] = distance;
+        return querySummaries(columns, selection, args, distance + ", " + COLUMN_ID,
+                String.valueOf(limit));
+    }
+
+    @NonNull
+    private List<Summary> querySummaries(String selection, String[] args, String orderBy,
+            String limit) {
+        return querySummaries(SUMMARY_COLUMNS, selection, args, orderBy, limit);
+    }
+
+    /**
+     * @param columns the {@link #SUMMARY_COLUMNS}, optionally followed by the distance.
+     */
+    @NonNull
+    private List<Summary> querySummaries(String[] columns, String selection, String[] args,
+            String orderBy, String limit) {
+        List<Summary> summaries = new ArrayList<>();
+        boolean hasDistance = columns.length > SUMMARY_COLUMNS.length;
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE_SHAPES, columns, selection, args,
+                    null, null, orderBy, limit);
+            while (cursor.moveToNext()) {
+                summaries.add(new Summary(cursor.getLong(0), cursor.getString(1),
+                        cursor.getLong(2), cursor.getInt(3), cursor.getDouble(4),
+                        cursor.getDouble(5), cursor.getDouble(6), cursor.getDouble(7),
+                        hasDistance ? cursor.getDouble(8) : -1));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not list shapes: " + e.getMessage());
+        } finally {
+            closeQuietly(cursor);
+        }
+        return summaries;
+    }
+
+    private static long insertShape(SQLiteDatabase db, String name, long createdAt,
+            TrackBuffer track) {
+        ContentValues values = boundsOf(track);
+        values.put(COLUMN_NAME, name);
+        values.put(COLUMN_CREATED_AT, createdAt);
+        long id = db.insert(TABLE_SHAPES, null, values);
+        if (id == -1) {
+            return -1;
+        }
+        insertVertices(db, id, track);
+        return id;
+    }
+
+    /**
+     * @return {@code shapeId}, or -1 if there is no such shape.
+     */
+    private static long replaceShape(SQLiteDatabase db, long shapeId, TrackBuffer track) {
+        String[] idArgs = { String.valueOf(shapeId) };
+        if (db.update(TABLE_SHAPES, boundsOf(track), COLUMN_ID + " = ?", idArgs) == 0) {
+            return -1;
+        }
+        db.delete(TABLE_VERTICES, COLUMN_SHAPE_ID + " = ?", idArgs);
+        insertVertices(db, shapeId, track);
+        return shapeId;
+    }
+
+    /**
+     * The point count and bounding box columns of a shape.
+     */
+    private static ContentValues boundsOf(TrackBuffer track) {
+        double minLat = Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        int size = track.size();
+        for (int i = 0; i < size; i++) {
+            double latitude = track.getLatitude(i);
+            double longitude = track.getLongitude(i);
+            minLat = Math.min(minLat, latitude);
+            maxLat = Math.max(maxLat, latitude);
+            minLon = Math.min(minLon, longitude);
+            maxLon = Math.max(maxLon, longitude);
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_POINT_COUNT, size);
+        values.put(COLUMN_MIN_LAT, minLat);
+        values.put(COLUMN_MIN_LON, minLon);
+        values.put(COLUMN_MAX_LAT, maxLat);
+        values.put(COLUMN_MAX_LON, maxLon);
+        return values;
+    }
+
+    private static void insertVertices(SQLiteDatabase db, long id, TrackBuffer track) {
+        int size = track.size();
+        SQLiteStatement statement = db.compileStatement("INSERT INTO " + TABLE_VERTICES + " ("
+                + COLUMN_SHAPE_ID + ", " + COLUMN_POSITION + ", " + COLUMN_LATITUDE + ", "
+                + COLUMN_LONGITUDE + ", " + COLUMN_ACCURACY + ", " + COLUMN_TIME
+                + ") VALUES (?, ?, ?, ?, ?, ?)");
+        try {
+            for (int i = 0; i < size; i++) {
+                statement.bindLong(1, id);
+                statement.bindLong(2, i);
+                statement.bindDouble(3, track.getLatitude(i));
+                statement.bindDouble(4, track.getLongitude(i));
+                statement.bindDouble(5, track.getAccuracy(i));
+                statement.bindLong(6, track.getTime(i));
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Moves the single shape the app used to keep in {@link MapBoxActivity#PREF_SHAPE} into the
+     * library when the database is first created.
+     */
+    private void importLegacyShape(SQLiteDatabase db) {
+        SharedPreferences preferences = context.getSharedPreferences(
+                MapBoxActivity.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        String json = preferences.getString(MapBoxActivity.PREF_SHAPE, null);
+        if (json == null || json.isEmpty()) {
+            return;
+        }
+        TrackBuffer track = new TrackBuffer();
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                ShapeJson.readPoint(reader, track);
+            }
+            reader.endArray();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not read legacy shape: " + e.getMessage());
+            return;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        if (!track.isEmpty()) {
+            insertShape(db, context.getString(R.string.legacy_shape_name),
+                    System.currentTimeMillis(), track);
+        }
+        preferences.edit().remove(MapBoxActivity.PREF_SHAPE).apply();
+    }
+
+    /**
+     * A library entry without its vertices.
+     */
+    static final class Summary {
+
+        final long id;
+        @NonNull
+        final String name;
+        final long createdAt;
+        final int pointCount;
+        final double south;
+        final double west;
+        final double north;
+        final double east;
+        /**
+         * Squared distance in degrees to the point of {@link #listNear}, -1 for other lists.
+         */
+        final double distance;
+
+        Summary(long id, @NonNull String name, long createdAt, int pointCount, double south,
+                double west, double north, double east, double distance) {
+            this.id = id;
+            this.name = name;
+            this.createdAt = createdAt;
+            this.pointCount = pointCount;
+            this.south = south;
+            this.west = west;
+            this.north = north;
+            this.east = east;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Streams the vertices of one shape in order.
+     */
+    static class VertexSource implements ShapeLoader.Source {
+
+        private final ShapeStore store;
+        private final long shapeId;
+
+        VertexSource(@NonNull ShapeStore store, long shapeId) {
+            this.store = store;
+            this.shapeId = shapeId;
+        }
+
+        @Override
+        public void read(@NonNull ShapeLoader.Sink sink) {
+            Cursor cursor = null;
+            try {
+                cursor = store.getReadableDatabase().query(TABLE_VERTICES,
+                        new String[] { COLUMN_LATITUDE, COLUMN_LONGITUDE, COLUMN_ACCURACY,
+                                COLUMN_TIME },
+                        COLUMN_SHAPE_ID + " = ?", new String[] { String.valueOf(shapeId) },
+                        null, null, COLUMN_POSITION);
+                while (cursor.moveToNext()) {
+                    sink.buffer().add(cursor.getDouble(0), cursor.getDouble(1),
+                            cursor.getFloat(2), cursor.getLong(3));
+                    if (!sink.pointAdded()) {
+                        return;
+                    }
+                }
+                sink.flush();
+            } finally {
+                closeQuietly(cursor);
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable Cursor cursor) {
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+}
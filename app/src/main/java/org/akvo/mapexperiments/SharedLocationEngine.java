@@ -0,0 +1,350 @@
+package org.akvo.mapexperiments;
+
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.LocationSettingsRequest;
+import com.google.android.gms.location.LocationSettingsResponse;
+import com.google.android.gms.location.SettingsClient;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The one connection of the app to the fused location provider, owned by {@link MapApp}.
+ * <p/>
+ * Screens subscribe with the request they would have made themselves and unsubscribe when they
+ * stop needing fixes. The provider is asked for the most demanding of those requests, once, and
+ * every delivery goes to all subscribers. When the last one leaves the subscription is kept for
+ * {@link #LINGER_MILLIS}, so going from one map screen to the next does not start GPS cold again.
+ * <p/>
+ * The last fix is kept and handed to new subscribers straight away while it is recent, and a
+ * successful settings check is remembered until the location providers change. Everything
+ * happens on the main thread.
+ */
+class SharedLocationEngine {
+
+    private static final String TAG = "SharedLocationEngine";
+
+    /**
+     * How long the provider subscription survives its last subscriber.
+     */
+    static final long LINGER_MILLIS = 15000;
+    /**
+     * Cached fixes older than this are not handed to new subscribers.
+     */
+    static final long MAX_CACHED_FIX_AGE_MILLIS = 30000;
+
+    interface Subscriber {
+
+        /**
+         * Fixes of one delivery, oldest first.
+         */
+        void onLocations(@NonNull List<Location> batch);
+    }
+
+    interface SettingsCallback {
+
+        void onSettingsSatisfied();
+
+        /**
+         * @param e usually an {@link com.google.android.gms.common.api.ApiException}, resolvable
+         *          or not, as reported by the {@link SettingsClient}.
+         */
+        void onSettingsFailure(@NonNull Exception e);
+    }
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<Subscriber, LocationRequest> subscribers = new LinkedHashMap<>();
+    private FusedLocationProviderClient fusedLocationClient;
+    private SettingsClient settingsClient;
+    private LocationCallback locationCallback;
+
+    /**
+     * What the provider is currently asked for, null when there is no subscription.
+     */
+    @Nullable
+    private LocationRequest activeRequest;
+    @Nullable
+    private Location lastLocation;
+    private long lastLocationElapsedMillis;
+
+    /**
+     * Priority of the most demanding request the settings were found good enough for, or -1.
+     * Lower priority constants are more demanding.
+     */
+    private int satisfiedPriority = -1;
+    private boolean providersReceiverRegistered;
+
+    private final Runnable lingerExpired = new Runnable() {
+        @Override
+        public void run() {
+            if (subscribers.isEmpty()) {
+                removeUpdates();
+            }
+        }
+    };
+
+    private final BroadcastReceiver providersChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // the user may just have switched GPS off: check again next time
+            satisfiedPriority = -1;
+        }
+    };
+
+    SharedLocationEngine(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    static SharedLocationEngine get(Context context) {
+        return ((MapApp) context.getApplicationContext()).getLocationEngine();
+    }
+
+    private FusedLocationProviderClient getFusedLocationClient() {
+        if (fusedLocationClient == null) {
+            fusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
+            locationCallback = new LocationCallback() {
+                @Override
+                public void onLocationResult(LocationResult locationResult) {
+                    super.onLocationResult(locationResult);
+                    onLocations(locationResult.getLocations());
+                }
+            };
+        }
+        return fusedLocationClient;
+    }
+
+    /**
+     * Checks the device settings for the given request, or answers at once if a check for a
+     * request at least as demanding already succeeded. Callbacks run on the main thread and may
+     * arrive after the caller is gone.
+     */
+    void checkSettings(@NonNull LocationRequest request, @NonNull final SettingsCallback callback) {
+        final int priority = request.getPriority();
+        if (satisfiedPriority != -1 && satisfiedPriority <= priority) {
+            callback.onSettingsSatisfied();
+            return;
+        }
+        if (settingsClient == null) {
+            settingsClient = LocationServices.getSettingsClient(context);
+        }
+        LocationSettingsRequest settingsRequest = new LocationSettingsRequest.Builder()
+                .addLocationRequest(request)
+                .build();
+        settingsClient.checkLocationSettings(settingsRequest)
+                .addOnSuccessListener(new OnSuccessListener<LocationSettingsResponse>() {
+                    @Override
+                    public void onSuccess(LocationSettingsResponse locationSettingsResponse) {
+                        Log.i(TAG, "All location settings are satisfied.");
+                        if (satisfiedPriority == -1 || priority < satisfiedPriority) {
+                            satisfiedPriority = priority;
+                        }
+                        registerProvidersReceiver();
+                        callback.onSettingsSatisfied();
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        satisfiedPriority = -1;
+                        callback.onSettingsFailure(e);
+                    }
+                });
+    }
+
+    private void registerProvidersReceiver() {
+        if (!providersReceiverRegistered) {
+            context.registerReceiver(providersChangedReceiver,
+                    new IntentFilter(LocationManager.PROVIDERS_CHANGED_ACTION));
+            providersReceiverRegistered = true;
+        }
+    }
+
+    /**
+     * Starts delivering fixes to the subscriber, or changes what it asks for if it is already
+     * subscribed. A recent cached fix is delivered right away. Call only once the location
+     * permission has been granted.
+     */
+    void subscribe(@NonNull final Subscriber subscriber, @NonNull LocationRequest request) {
+        boolean added = !subscribers.containsKey(subscriber);
+        subscribers.put(subscriber, request);
+        handler.removeCallbacks(lingerExpired);
+        updateRequest();
+        final Location cached = getRecentLocation();
+        if (added && cached != null) {
+            // posted, so the subscriber is called back the same way as for a real delivery
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (subscribers.containsKey(subscriber)) {
+                        subscriber.onLocations(Collections.singletonList(cached));
+                    }
+                }
+            });
+        }
+    }
+
+    void unsubscribe(@NonNull Subscriber subscriber) {
+        if (subscribers.remove(subscriber) == null) {
+            return;
+        }
+        if (subscribers.isEmpty()) {
+            handler.removeCallbacks(lingerExpired);
+            handler.postDelayed(lingerExpired, LINGER_MILLIS);
+        } else {
+            updateRequest();
+        }
+    }
+
+    /**
+     * The last fix the engine received if it is recent enough to stand for the current location.
+     */
+    @Nullable
+    Location getRecentLocation() {
+        if (lastLocation != null && SystemClock.elapsedRealtime() - lastLocationElapsedMillis
+                <= MAX_CACHED_FIX_AGE_MILLIS) {
+            return lastLocation;
+        }
+        return null;
+    }
+
+    /**
+     * The last known location, possibly old: the engine's own if it has one, the provider's
+     * otherwise. The listener gets null if there is none.
+     */
+    @SuppressLint("MissingPermission")
+    void getLastLocation(@NonNull final OnSuccessListener<Location> listener) {
+        if (lastLocation != null) {
+            listener.onSuccess(lastLocation);
+            return;
+        }
+        try {
+            getFusedLocationClient().getLastLocation()
+                    .addOnCompleteListener(new OnCompleteListener<Location>() {
+                        @Override
+                        public void onComplete(@NonNull Task<Location> task) {
+                            if (task.isSuccessful()) {
+                                listener.onSuccess(task.getResult());
+                            } else {
+                                Log.e(TAG, "Last location unavailable", task.getException());
+                                listener.onSuccess(null);
+                            }
+                        }
+                    });
+        } catch (SecurityException e) {
+            Log.e(TAG, "Last location unavailable", e);
+            listener.onSuccess(null);
+        }
+    }
+
+    private void onLocations(List<Location> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        lastLocation = batch.get(batch.size() - 1);
+        lastLocationElapsedMillis = SystemClock.elapsedRealtime();
+        LastPositionStore.getInstance(context).setFix(lastLocation);
+        // a subscriber may unsubscribe from its callback
+        for (Subscriber subscriber : new ArrayList<>(subscribers.keySet())) {
+            if (subscribers.containsKey(subscriber)) {
+                subscriber.onLocations(batch);
+            }
+        }
+    }
+
+    /**
+     * Asks the provider for the most demanding of the subscribers' requests, if it is not what
+     * it is already asked for.
+     */
+    @SuppressLint("MissingPermission")
+    private void updateRequest() {
+        LocationRequest merged = merge(subscribers.values());
+        if (merged == null || sameRequest(merged, activeRequest)) {
+            return;
+        }
+        Log.i(TAG, "Location request for " + subscribers.size() + " subscribers: priority "
+                + merged.getPriority() + ", every " + merged.getInterval() + " ms, max wait "
+                + merged.getMaxWaitTime() + " ms");
+        try {
+            // requesting with the same callback replaces the previous request
+            getFusedLocationClient().requestLocationUpdates(merged, locationCallback,
+                    Looper.getMainLooper());
+            activeRequest = merged;
+        } catch (SecurityException e) {
+            Log.e(TAG, "Location permission missing", e);
+        }
+    }
+
+    private void removeUpdates() {
+        if (activeRequest != null) {
+            Log.i(TAG, "No subscribers left, removing location updates");
+            fusedLocationClient.removeLocationUpdates(locationCallback);
+            activeRequest = null;
+        }
+    }
+
+    /**
+     * Highest priority, shortest intervals. Fixes are only batched if every subscriber accepts
+     * it, and then no longer than the most impatient one accepts.
+     */
+    @Nullable
+    private static LocationRequest merge(Iterable<LocationRequest> requests) {
+        LocationRequest merged = null;
+        boolean batched = true;
+        long maxWait = Long.MAX_VALUE;
+        for (LocationRequest request : requests) {
+            if (merged == null) {
+                merged = new LocationRequest();
+                merged.setPriority(request.getPriority());
+                merged.setInterval(request.getInterval());
+                merged.setFastestInterval(request.getFastestInterval());
+            } else {
+                merged.setPriority(Math.min(merged.getPriority(), request.getPriority()));
+                merged.setInterval(Math.min(merged.getInterval(), request.getInterval()));
+                merged.setFastestInterval(Math.min(merged.getFastestInterval(),
+                        request.getFastestInterval()));
+            }
+            if (request.getMaxWaitTime() <= request.getInterval()) {
+                batched = false;
+            } else {
+                maxWait = Math.min(maxWait, request.getMaxWaitTime());
+            }
+        }
+        if (merged != null) {
+            merged.setMaxWaitTime(batched ? maxWait : 0);
+        }
+        return merged;
+    }
+
+    private static boolean sameRequest(LocationRequest a, @Nullable LocationRequest b) {
+        return b != null && a.getPriority() == b.getPriority()
+                && a.getInterval() == b.getInterval()
+                && a.getFastestInterval() == b.getFastestInterval()
+                && a.getMaxWaitTime() == b.getMaxWaitTime();
+    }
+}
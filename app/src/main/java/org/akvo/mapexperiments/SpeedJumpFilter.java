@@ -0,0 +1,74 @@
+package org.akvo.mapexperiments;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.akvo.mapexperiments.geometry.GeoDistance;
+
+/**
+ * Drops fixes that are out of order or would mean moving faster than a limit since the last
+ * accepted fix, the typical multipath or cell tower jump. The accuracy radii of both fixes are
+ * subtracted from the distance so that imprecise but plausible fixes go through. After a few
+ * rejections in a row the new position is trusted, so a genuine jump, e.g. after a tunnel, does
+ * not block the filter forever.
+ */
+class SpeedJumpFilter implements LocationFilter {
+
+    private static final int MAX_CONSECUTIVE_REJECTIONS = 3;
+
+    private final float maxSpeedMetersPerSecond;
+
+    private boolean hasLast;
+    private double lastLatitude;
+    private double lastLongitude;
+    private float lastAccuracy;
+    private long lastTime;
+    private int consecutiveRejections;
+
+    SpeedJumpFilter(float maxSpeedMetersPerSecond) {
+        this.maxSpeedMetersPerSecond = maxSpeedMetersPerSecond;
+    }
+
+    @Nullable
+    @Override
+    public Location filter(@NonNull Location location) {
+        return accepts(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getTime()) ? location : null;
+    }
+
+    boolean accepts(double latitude, double longitude, float accuracy, long time) {
+        if (hasLast) {
+            long elapsedMillis = time - lastTime;
+            if (elapsedMillis <= 0) {
+                return false;
+            }
+            double distance = GeoDistance.haversine(lastLatitude, lastLongitude, latitude,
+                    longitude);
+            double travelled = distance - lastAccuracy - accuracy;
+            double speed = travelled * 1000 / elapsedMillis;
+            if (speed > maxSpeedMetersPerSecond
+                    && ++consecutiveRejections < MAX_CONSECUTIVE_REJECTIONS) {
+                return false;
+            }
+        }
+        consecutiveRejections = 0;
+        hasLast = true;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastAccuracy = accuracy;
+        lastTime = time;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        hasLast = false;
+        consecutiveRejections = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "speed";
+    }
+}
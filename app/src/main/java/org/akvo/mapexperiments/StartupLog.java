@@ -0,0 +1,190 @@
+package org.akvo.mapexperiments;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Ring of the last {@link #CAPACITY} launch summaries written by {@link StartupTracer}, oldest
+ * overwritten first. Launches are appended on a single worker thread.
+ * <p/>
+ * Layout: magic, version and the number of launches ever written (ints), then fixed size slots
+ * of wall clock time (long), cold start flag (int) and the milliseconds from the start of the
+ * launch to the end of each {@link StartupTracer.Phase} (ints, -1 when the phase was not reached).
+ */
+class StartupLog {
+
+    private static final String TAG = "StartupLog";
+
+    private static final String FILE_NAME = "startup.log";
+    private static final int MAGIC = 0x4D455354;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    static final int CAPACITY = 50;
+    static final int RECORD_SIZE = 8 + 4 + 4 * StartupTracer.Phase.values().length;
+
+    private static StartupLog instance;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    static synchronized StartupLog getInstance(Context context) {
+        if (instance == null) {
+            instance = new StartupLog(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+
+    StartupLog(@NonNull File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    static class Launch {
+
+        final long wallTime;
+        final boolean cold;
+        /**
+         * Milliseconds to the end of each phase, by ordinal, -1 if not reached.
+         */
+        final int[] phaseMillis;
+
+        Launch(long wallTime, boolean cold, int[] phaseMillis) {
+            this.wallTime = wallTime;
+            this.cold = cold;
+            this.phaseMillis = phaseMillis;
+        }
+
+        int getMillis(StartupTracer.Phase phase) {
+            return phaseMillis[phase.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            return (cold ? "cold" : "warm") + " " + Arrays.toString(phaseMillis);
+        }
+    }
+
+    void append(@NonNull final Launch launch) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(launch);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not log launch: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the logged launches on the calling thread, oldest first.
+     */
+    @NonNull
+    List<Launch> readAll() {
+        List<Launch> launches = new ArrayList<>();
+        RandomAccessFile raf = null;
+        try {
+            if (file.length() < HEADER_SIZE) {
+                return launches;
+            }
+            raf = new RandomAccessFile(file, "r");
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                return launches;
+            }
+            int written = raf.readInt();
+            int count = Math.min(written, CAPACITY);
+            ByteBuffer slots = ByteBuffer.allocate(count * RECORD_SIZE);
+            raf.readFully(slots.array());
+            // the oldest record is the one the next write will replace
+            int first = written > CAPACITY ? written % CAPACITY : 0;
+            for (int i = 0; i < count; i++) {
+                slots.position(((first + i) % CAPACITY) * RECORD_SIZE);
+                long wallTime = slots.getLong();
+                boolean cold = slots.getInt() != 0;
+                int[] phaseMillis = new int[StartupTracer.Phase.values().length];
+                for (int p = 0; p < phaseMillis.length; p++) {
+                    phaseMillis[p] = slots.getInt();
+                }
+                launches.add(new Launch(wallTime, cold, phaseMillis));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read startup log: " + e.getMessage());
+        } finally {
+            closeQuietly(raf);
+        }
+        return launches;
+    }
+
+    /**
+     * Writes on the calling thread, {@link #append} is the asynchronous version.
+     */
+    void write(@NonNull Launch launch) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            int written = 0;
+            if (raf.length() >= HEADER_SIZE && raf.readInt() == MAGIC
+                    && raf.readInt() == VERSION) {
+                written = raf.readInt();
+            } else {
+                raf.setLength(0);
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putLong(launch.wallTime).putInt(launch.cold ? 1 : 0);
+            for (int millis : launch.phaseMillis) {
+                record.putInt(millis);
+            }
+            raf.seek(HEADER_SIZE + (long) (written % CAPACITY) * RECORD_SIZE);
+            raf.write(record.array());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(written + 1);
+            raf.seek(0);
+            raf.write(header.array());
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Nearest rank percentile of the values that are not negative, or -1 if there are none.
+     *
+     * @param percent between 0 and 100
+     */
+    static int percentile(@NonNull int[] values, double percent) {
+        int[] reached = new int[values.length];
+        int count = 0;
+        for (int value : values) {
+            if (value >= 0) {
+                reached[count++] = value;
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(reached, 0, count);
+        int rank = (int) Math.ceil(percent / 100 * count);
+        return reached[Math.max(rank, 1) - 1];
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
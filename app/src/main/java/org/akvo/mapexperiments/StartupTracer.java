@@ -0,0 +1,207 @@
+package org.akvo.mapexperiments;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.core.os.TraceCompat;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Times the phases of a launch, from the process start or the activity creation to the first
+ * location fix, so a slow start can be put down to SDK initialisation, map, style or GPS. Each
+ * phase also shows up as an {@code android.os.Trace} section in systrace and Perfetto.
+ * <p/>
+ * Times are taken with {@link SystemClock#elapsedRealtime()} and kept relative to the start of
+ * the launch. A launch ends with the first fix, or when the map screen is left before one
+ * arrives; its summary then goes to the {@link StartupLog}. A cold launch is only kept when
+ * the process was started to show the map: it is dropped when another screen comes first, or
+ * when the map is created too long after the process start, e.g. after the download service
+ * restarted the process. Main thread only.
+ */
+final class StartupTracer {
+
+    private static final String TAG = "StartupTracer";
+
+    /**
+     * Longer than any cold start to the map: the process was started for something else.
+     */
+    static final long MAX_COLD_ACTIVITY_CREATE_MILLIS = 10000;
+
+    enum Phase {
+        /**
+         * Until {@code MapApp.onCreate} is done, which includes the Mapbox initialisation.
+         */
+        APP_CREATE("startup:app_create"),
+        /**
+         * Until the map activity {@code onCreate} is done.
+         */
+        ACTIVITY_CREATE("startup:activity_create"),
+        MAP_READY("startup:map_ready"),
+        STYLE_LOADED("startup:style_loaded"),
+        FIRST_FIX("startup:first_fix");
+
+        final String sectionName;
+
+        Phase(String sectionName) {
+            this.sectionName = sectionName;
+        }
+    }
+
+    private static StartupLog log;
+    private static boolean inProgress;
+    private static boolean cold;
+    private static long origin;
+    private static final int[] phaseMillis = new int[Phase.values().length];
+
+    private StartupTracer() {
+    }
+
+    /**
+     * Starts timing the cold launch, as early as possible in {@code Application.onCreate}.
+     */
+    static void install(@NonNull final Application application) {
+        log = StartupLog.getInstance(application);
+        long now = SystemClock.elapsedRealtime();
+        // the process start also counts the zygote fork and class loading before we get here
+        origin = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Math.min(Process.getStartElapsedRealtime(), now) : now;
+        cold = true;
+        inProgress = true;
+        Arrays.fill(phaseMillis, -1);
+        application.registerActivityLifecycleCallbacks(new FirstActivityCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                application.unregisterActivityLifecycleCallbacks(this);
+                if (!(activity instanceof MapBoxActivity)) {
+                    discardColdLaunch(activity.getClass().getSimpleName() + " created first");
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the trace section of a phase that runs synchronously. A phase begun while no launch
+     * is being timed starts a warm launch, the process being already there.
+     */
+    static void beginSection(@NonNull Phase phase) {
+        if (phase == Phase.ACTIVITY_CREATE && inProgress && cold
+                && SystemClock.elapsedRealtime() - origin > MAX_COLD_ACTIVITY_CREATE_MILLIS) {
+            discardColdLaunch("map created " + (SystemClock.elapsedRealtime() - origin)
+                    + " ms after the process start");
+        }
+        if (!inProgress && log != null) {
+            origin = SystemClock.elapsedRealtime();
+            cold = false;
+            inProgress = true;
+            Arrays.fill(phaseMillis, -1);
+        }
+        TraceCompat.beginSection(phase.sectionName);
+    }
+
+    static void endSection(@NonNull Phase phase) {
+        TraceCompat.endSection();
+        record(phase);
+    }
+
+    /**
+     * Records a phase completed by a callback, such as the map being ready. Only the first mark
+     * of each phase in a launch counts; the first fix ends the launch.
+     */
+    static void mark(@NonNull Phase phase) {
+        // zero length section, as a marker in the trace
+        TraceCompat.beginSection(phase.sectionName);
+        TraceCompat.endSection();
+        record(phase);
+        if (phase == Phase.FIRST_FIX) {
+            finish();
+        }
+    }
+
+    /**
+     * Ends the launch being timed, if any, and logs it with the phases reached so far.
+     */
+    static void finish() {
+        if (!inProgress) {
+            return;
+        }
+        inProgress = false;
+        StartupLog.Launch launch = new StartupLog.Launch(System.currentTimeMillis(), cold,
+                phaseMillis.clone());
+        Log.i(TAG, "Launch: " + describe(launch));
+        if (log != null) {
+            log.append(launch);
+        }
+    }
+
+    /**
+     * Drops the cold launch being timed without logging it: the process was not started for the
+     * map, so its phases would not measure a cold start. The map screen then times a warm launch.
+     */
+    private static void discardColdLaunch(String reason) {
+        if (inProgress && cold) {
+            inProgress = false;
+            Log.i(TAG, "Cold launch discarded: " + reason);
+        }
+    }
+
+    private static void record(Phase phase) {
+        if (inProgress && phaseMillis[phase.ordinal()] < 0) {
+            phaseMillis[phase.ordinal()] = (int) (SystemClock.elapsedRealtime() - origin);
+        }
+    }
+
+    /**
+     * Only {@code onActivityCreated} is of interest.
+     */
+    private abstract static class FirstActivityCallbacks
+            implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            // EMPTY
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            // EMPTY
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            // EMPTY
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            // EMPTY
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            // EMPTY
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            // EMPTY
+        }
+    }
+
+    @NonNull
+    static String describe(@NonNull StartupLog.Launch launch) {
+        StringBuilder text = new StringBuilder(launch.cold ? "cold" : "warm");
+        for (Phase phase : Phase.values()) {
+            int millis = launch.getMillis(phase);
+            text.append(", ").append(phase.name().toLowerCase(Locale.US)).append(' ')
+                    .append(millis < 0 ? "-" : millis + " ms");
+        }
+        return text.toString();
+    }
+}
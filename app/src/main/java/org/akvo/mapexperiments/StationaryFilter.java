@@ -0,0 +1,52 @@
+package org.akvo.mapexperiments;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.akvo.mapexperiments.geometry.GeoDistance;
+
+/**
+ * Drops the jitter of a device standing still: a fix is dropped while it stays within its own
+ * accuracy radius of the last accepted fix and the reported speed, if any, is close to zero.
+ */
+class StationaryFilter implements LocationFilter {
+
+    private static final float STATIONARY_SPEED_METERS_PER_SECOND = 0.3f;
+
+    private boolean hasLast;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    @Nullable
+    @Override
+    public Location filter(@NonNull Location location) {
+        return accepts(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.hasSpeed() ? location.getSpeed() : -1) ? location : null;
+    }
+
+    /**
+     * @param speed negative if unknown.
+     */
+    boolean accepts(double latitude, double longitude, float accuracy, float speed) {
+        if (hasLast && speed < STATIONARY_SPEED_METERS_PER_SECOND
+                && GeoDistance.isWithin(lastLatitude, lastLongitude, latitude, longitude,
+                accuracy)) {
+            return false;
+        }
+        hasLast = true;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        hasLast = false;
+    }
+
+    @Override
+    public String toString() {
+        return "stationary";
+    }
+}
@@ -0,0 +1,38 @@
+package org.akvo.mapexperiments;
+
+import androidx.annotation.NonNull;
+
+import com.mapbox.mapboxsdk.geometry.LatLng;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.akvo.mapexperiments.geometry.TrackSimplifier;
+
+/**
+ * Draws the track being recorded on a Mapbox map, using the vertices of a
+ * {@link TrackSimplifier.Level} rather than every recorded point.
+ */
+interface TrackRenderer {
+
+    TrackBuffer.PointFactory<LatLng> LAT_LNG_FACTORY = new TrackBuffer.PointFactory<LatLng>() {
+        @Override
+        public LatLng create(double latitude, double longitude, float accuracy) {
+            return new LatLng(latitude, longitude);
+        }
+    };
+
+    /**
+     * Called every time points were added at the end of the track.
+     *
+     * @param fromPosition first position in {@code level} whose vertex changed; everything drawn
+     *                     before it is still valid
+     */
+    void append(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level,
+            int fromPosition);
+
+    /**
+     * Replaces whatever is drawn with the vertices of {@code level}.
+     */
+    void rebuild(@NonNull TrackBuffer track, @NonNull TrackSimplifier.Level level);
+
+    void clear();
+}
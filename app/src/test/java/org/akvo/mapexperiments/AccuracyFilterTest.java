@@ -0,0 +1,19 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccuracyFilterTest {
+
+    @Test
+    public void dropsFixesWithoutOrWithPoorAccuracy() {
+        AccuracyFilter filter = new AccuracyFilter(30f);
+
+        assertTrue(filter.accepts(true, 5f));
+        assertTrue(filter.accepts(true, 30f));
+        assertFalse(filter.accepts(true, 31f));
+        assertFalse(filter.accepts(false, 0f));
+    }
+}
@@ -0,0 +1,65 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadProgressTest {
+
+    @Test
+    public void samplesAtMostEveryInterval() {
+        DownloadProgress progress = new DownloadProgress();
+        assertEquals(0, progress.getSampleDelayMillis(1000));
+
+        progress.sample(1000);
+        assertEquals(DownloadProgress.SAMPLE_INTERVAL_MILLIS, progress.getSampleDelayMillis(1000));
+        assertEquals(100, progress.getSampleDelayMillis(
+                1000 + DownloadProgress.SAMPLE_INTERVAL_MILLIS - 100));
+        assertEquals(0, progress.getSampleDelayMillis(5000));
+    }
+
+    @Test
+    public void ratesAndEtaOverTheWindow() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.sample(0);
+        for (long time = 500; time <= 4000; time += 500) {
+            // 10 resources of 2 kB every half second
+            progress.record(10, 20000);
+            progress.sample(time);
+        }
+
+        assertEquals(20, progress.getResourcesPerSecond(), 1e-9);
+        assertEquals(40000, progress.getBytesPerSecond(), 1e-9);
+        assertEquals(5000, progress.getEtaMillis(100));
+        assertEquals(-1, progress.getEtaMillis(-1));
+    }
+
+    @Test
+    public void forgetsSamplesOlderThanTheWindow() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.sample(0);
+        progress.record(1000, 1000);
+        progress.sample(500);
+
+        // nothing for a while, then slowly
+        long time = 500 + DownloadProgress.WINDOW_MILLIS + 1;
+        progress.sample(time);
+        progress.record(1, 1);
+        progress.sample(time + 1000);
+
+        assertEquals(1, progress.getResourcesPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void unknownRateWithoutSamples() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.record(10, 10);
+        assertEquals(0, progress.getBytesPerSecond(), 0);
+        assertEquals(-1, progress.getEtaMillis(10));
+
+        progress.sample(0);
+        progress.sample(500);
+        progress.reset();
+        assertEquals(-1, progress.getEtaMillis(10));
+    }
+}
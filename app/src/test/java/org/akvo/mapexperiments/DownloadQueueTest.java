@@ -0,0 +1,102 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueTest {
+
+    @Test
+    public void activatesInQueueOrderUpToTheCap() {
+        DownloadQueue queue = new DownloadQueue();
+        for (long id = 1; id <= 5; id++) {
+            queue.add(id, "District " + id);
+        }
+
+        List<DownloadQueue.Entry> activated = queue.activate(2);
+        assertEquals(2, activated.size());
+        assertEquals(1, activated.get(0).regionId);
+        assertEquals(2, activated.get(1).regionId);
+        assertTrue(queue.activate(2).isEmpty());
+
+        queue.get(1).state = DownloadQueue.State.COMPLETE;
+        activated = queue.activate(2);
+        assertEquals(1, activated.size());
+        assertEquals(3, activated.get(0).regionId);
+    }
+
+    @Test
+    public void pausedEntriesResumeInTheirOriginalOrder() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(1, "a");
+        queue.add(2, "b");
+        queue.add(3, "c");
+        queue.activate(1);
+
+        assertEquals(3, queue.pause(null).size());
+        assertFalse(queue.hasPendingWork());
+        assertTrue(queue.hasPaused());
+
+        queue.add(4, "d");
+        queue.resume(null);
+        List<DownloadQueue.Entry> activated = queue.activate(1);
+        assertEquals(1, activated.get(0).regionId);
+    }
+
+    @Test
+    public void pausesASingleRegion() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(1, "a");
+        queue.add(2, "b");
+        queue.activate(2);
+
+        assertEquals(1, queue.pause(2L).size());
+        assertEquals(DownloadQueue.State.ACTIVE, queue.get(1).state);
+        assertEquals(DownloadQueue.State.PAUSED, queue.get(2).state);
+    }
+
+    @Test
+    public void survivesSavingButNotItsProgress() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(7, "Kisumu");
+        queue.add(8, "Siaya");
+        queue.activate(1);
+        queue.get(7).completedResources = 100;
+
+        DownloadQueue restored = DownloadQueue.fromJson(queue.toJson());
+        assertEquals(2, restored.getEntries().size());
+        assertEquals("Kisumu", restored.get(7).name);
+        assertEquals(DownloadQueue.State.ACTIVE, restored.get(7).state);
+        assertEquals(DownloadQueue.State.QUEUED, restored.get(8).state);
+        assertEquals(0, restored.get(7).completedResources);
+    }
+
+    @Test
+    public void removesCompleteEntriesOnly() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(1, "a");
+        queue.add(2, "b");
+        queue.add(3, "c");
+        queue.activate(3);
+        queue.get(1).state = DownloadQueue.State.COMPLETE;
+        queue.pause(2L);
+
+        queue.removeComplete();
+
+        assertNull(queue.get(1));
+        assertEquals(DownloadQueue.State.PAUSED, queue.get(2).state);
+        assertEquals(DownloadQueue.State.ACTIVE, queue.get(3).state);
+    }
+
+    @Test
+    public void damagedFileGivesAnEmptyQueue() {
+        assertTrue(DownloadQueue.fromJson("[{\"regionId\": 1, ").getEntries().isEmpty());
+        assertTrue(DownloadQueue.fromJson(null).getEntries().isEmpty());
+        assertNull(DownloadQueue.fromJson("[]").get(1));
+    }
+}
@@ -0,0 +1,54 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KalmanLocationSmootherTest {
+
+    private static final double LATITUDE = 41.39;
+    private static final double LONGITUDE = 2.17;
+    // about 1 meter
+    private static final double METER = 1 / 111195.0;
+
+    @Test
+    public void firstFixIsTheEstimate() {
+        KalmanLocationSmoother smoother = new KalmanLocationSmoother(3f);
+
+        smoother.update(LATITUDE, LONGITUDE, 8f, 0);
+
+        assertEquals(LATITUDE, smoother.getLatitude(), 0);
+        assertEquals(LONGITUDE, smoother.getLongitude(), 0);
+        assertEquals(8f, smoother.getAccuracy(), 1e-4);
+    }
+
+    @Test
+    public void impreciseFixMovesTheEstimateLess() {
+        KalmanLocationSmoother precise = new KalmanLocationSmoother(3f);
+        KalmanLocationSmoother imprecise = new KalmanLocationSmoother(3f);
+        precise.update(LATITUDE, LONGITUDE, 5f, 0);
+        imprecise.update(LATITUDE, LONGITUDE, 5f, 0);
+
+        precise.update(LATITUDE + 10 * METER, LONGITUDE, 5f, 1000);
+        imprecise.update(LATITUDE + 10 * METER, LONGITUDE, 25f, 1000);
+
+        double preciseMove = precise.getLatitude() - LATITUDE;
+        double impreciseMove = imprecise.getLatitude() - LATITUDE;
+        assertTrue(impreciseMove > 0);
+        assertTrue(preciseMove > impreciseMove);
+        assertTrue(preciseMove < 10 * METER);
+        assertTrue(precise.getAccuracy() < 5f);
+    }
+
+    @Test
+    public void resetStartsOverFromTheNextFix() {
+        KalmanLocationSmoother smoother = new KalmanLocationSmoother(3f);
+        smoother.update(LATITUDE, LONGITUDE, 5f, 0);
+
+        smoother.reset();
+        smoother.update(LATITUDE + 100 * METER, LONGITUDE, 5f, 1000);
+
+        assertEquals(LATITUDE + 100 * METER, smoother.getLatitude(), 0);
+    }
+}
@@ -0,0 +1,54 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LastPositionStoreTest {
+
+    @Test
+    public void snapshotSurvivesEncoding() {
+        LastPositionStore.Snapshot snapshot = LastPositionStore.Snapshot.EMPTY
+                .withCamera(41.39, 2.17, 15.5, 30, 10)
+                .withFix(41.391, 2.171, 4.5f, 1234567890L);
+        byte[] bytes = LastPositionStore.encode(snapshot);
+        assertEquals(LastPositionStore.FILE_SIZE, bytes.length);
+
+        LastPositionStore.Snapshot decoded = LastPositionStore.decode(bytes);
+        assertTrue(decoded.hasCamera);
+        assertEquals(41.39, decoded.cameraLatitude, 0);
+        assertEquals(2.17, decoded.cameraLongitude, 0);
+        assertEquals(15.5, decoded.zoom, 0);
+        assertEquals(30, decoded.bearing, 0);
+        assertEquals(10, decoded.tilt, 0);
+        assertTrue(decoded.hasFix);
+        assertEquals(41.391, decoded.fixLatitude, 0);
+        assertEquals(2.171, decoded.fixLongitude, 0);
+        assertEquals(4.5f, decoded.fixAccuracy, 0);
+        assertEquals(1234567890L, decoded.fixTime);
+    }
+
+    @Test
+    public void missingPartsStayMissing() {
+        LastPositionStore.Snapshot decoded = LastPositionStore.decode(LastPositionStore.encode(
+                LastPositionStore.Snapshot.EMPTY.withFix(1, 2, 3f, 4L)));
+        assertFalse(decoded.hasCamera);
+        assertTrue(decoded.hasFix);
+    }
+
+    @Test
+    public void corruptOrTruncatedBytesAreRejected() {
+        byte[] bytes = LastPositionStore.encode(
+                LastPositionStore.Snapshot.EMPTY.withCamera(41.39, 2.17, 15, 0, 0));
+        byte[] corrupt = bytes.clone();
+        corrupt[20] ^= 1;
+        assertNull(LastPositionStore.decode(corrupt));
+
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertNull(LastPositionStore.decode(truncated));
+    }
+}
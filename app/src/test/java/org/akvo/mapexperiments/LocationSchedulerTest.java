@@ -0,0 +1,83 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocationSchedulerTest {
+
+    private static final double LATITUDE = 41.39;
+    private static final double LONGITUDE = 2.17;
+    // about 1 meter
+    private static final double METER = 1 / 111320.0;
+
+    @Test
+    public void walkingKeepsHighAccuracy() {
+        LocationScheduler scheduler = new LocationScheduler();
+        for (int i = 0; i < 50; i++) {
+            assertFalse(scheduler.onFix(LATITUDE + i * 6 * METER, LONGITUDE, 5f, 1.2f, i * 5000L,
+                    i * 5000L));
+        }
+        assertEquals(LocationScheduler.Policy.MOVING, scheduler.getPolicy());
+    }
+
+    @Test
+    public void standingStillTurnsGpsOffAndWalkingTurnsItOn() {
+        LocationScheduler scheduler = new LocationScheduler();
+        long time = 0;
+        int changes = 0;
+        for (int i = 0; i < 30; i++, time += 5000) {
+            if (scheduler.onFix(LATITUDE + (i % 3) * METER, LONGITUDE, 5f, 0f, time, time)) {
+                changes++;
+            }
+        }
+        assertEquals(LocationScheduler.Policy.STATIONARY, scheduler.getPolicy());
+        // moving to slow, then to stationary
+        assertEquals(2, changes);
+
+        // a coarse fix within its accuracy radius does not wake GPS up
+        assertFalse(scheduler.onFix(LATITUDE + 40 * METER, LONGITUDE, 60f, -1f, time, time));
+        time += 30000;
+        assertTrue(scheduler.onFix(LATITUDE + 200 * METER, LONGITUDE, 60f, -1f, time, time));
+        assertTrue(scheduler.getPolicy().usesGps);
+    }
+
+    @Test
+    public void resetGoesBackToMoving() {
+        LocationScheduler scheduler = new LocationScheduler();
+        long time = 0;
+        for (int i = 0; i < 30; i++, time += 5000) {
+            scheduler.onFix(LATITUDE, LONGITUDE, 5f, 0f, time, time);
+        }
+        assertEquals(LocationScheduler.Policy.STATIONARY, scheduler.getPolicy());
+
+        assertTrue(scheduler.reset(time));
+        assertEquals(LocationScheduler.Policy.MOVING, scheduler.getPolicy());
+        assertFalse(scheduler.reset(time));
+
+        // the stationary anchor is forgotten: a coarse fix does not turn GPS off again
+        time += 5000;
+        assertFalse(scheduler.onFix(LATITUDE + 40 * METER, LONGITUDE, 60f, -1f, time, time));
+        assertEquals(LocationScheduler.Policy.MOVING, scheduler.getPolicy());
+    }
+
+    @Test
+    public void savingsCountTimeWithoutGps() {
+        LocationScheduler scheduler = new LocationScheduler();
+        scheduler.start(0);
+        long time = 0;
+        for (int i = 0; i < 30; i++, time += 5000) {
+            scheduler.onFix(LATITUDE, LONGITUDE, 5f, 0f, time, time);
+        }
+        // still for the delay, then confirmed by the following fixes
+        long stationarySince = LocationScheduler.STILL_DELAY_MILLIS
+                + (LocationScheduler.DOWNGRADE_CONFIRMATIONS - 1) * 5000;
+        time += 60000;
+        scheduler.stop(time);
+        String savings = scheduler.describeSavings(time);
+        assertTrue(savings, savings.startsWith(
+                "GPS off " + (time - stationarySince) / 1000 + " of " + time / 1000 + " s"));
+    }
+}
@@ -0,0 +1,81 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionMetadataTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void roundTrip() {
+        RegionMetadata metadata = new RegionMetadata("Kisumu \u2013 Ahero", 1000, 2000,
+                35 * 1024 * 1024, 4321, true);
+
+        RegionMetadata decoded = RegionMetadata.decode(metadata.encode());
+
+        assertNotNull(decoded);
+        assertEquals("Kisumu \u2013 Ahero", decoded.name);
+        assertEquals(1000, decoded.createdTime);
+        assertEquals(2000, decoded.lastUsedTime);
+        assertEquals(35 * 1024 * 1024, decoded.estimatedBytes);
+        assertEquals(4321, decoded.tileCount);
+        assertTrue(decoded.pinned);
+    }
+
+    @Test
+    public void readsTheFirstVersion() {
+        byte[] encoded = new RegionMetadata("Eldoret", 1, 2, 3, 4, true).encode();
+        byte[] first = Arrays.copyOf(encoded, encoded.length - 4);
+        first[7] = 1;
+
+        RegionMetadata decoded = RegionMetadata.decode(first);
+
+        assertNotNull(decoded);
+        assertEquals("Eldoret", decoded.name);
+        assertFalse(decoded.pinned);
+    }
+
+    @Test
+    public void readsTheJsonOfOlderVersions() {
+        byte[] json = "{\"FIELD_REGION_NAME\":\"Nakuru\"}".getBytes(UTF_8);
+
+        RegionMetadata decoded = RegionMetadata.decode(json);
+
+        assertNotNull(decoded);
+        assertEquals("Nakuru", decoded.name);
+        assertEquals(-1, decoded.createdTime);
+        assertEquals(-1, decoded.tileCount);
+    }
+
+    @Test
+    public void skipsFieldsOfLaterVersions() {
+        byte[] encoded = new RegionMetadata("Eldoret", 1, 2, 3, 4).encode();
+        byte[] later = Arrays.copyOf(encoded, encoded.length + 8);
+        later[7] = 3;
+
+        RegionMetadata decoded = RegionMetadata.decode(later);
+
+        assertNotNull(decoded);
+        assertEquals("Eldoret", decoded.name);
+        assertEquals(4, decoded.tileCount);
+    }
+
+    @Test
+    public void rejectsGarbage() {
+        assertNull(RegionMetadata.decode(null));
+        assertNull(RegionMetadata.decode(new byte[0]));
+        assertNull(RegionMetadata.decode("[1, 2]".getBytes(UTF_8)));
+        assertNull(RegionMetadata.decode("{\"other\":1}".getBytes(UTF_8)));
+        byte[] encoded = new RegionMetadata("Eldoret", 1, 2, 3, 4).encode();
+        assertNull(RegionMetadata.decode(Arrays.copyOf(encoded, encoded.length - 1)));
+    }
+}
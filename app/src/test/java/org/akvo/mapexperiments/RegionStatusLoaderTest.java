@@ -0,0 +1,107 @@
+package org.akvo.mapexperiments;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionStatusLoaderTest {
+
+    /**
+     * Holds the fetches until the test completes them.
+     */
+    private static class FakeSource implements RegionStatusLoader.Source {
+
+        final Map<Long, RegionStatusLoader.Callback> started = new LinkedHashMap<>();
+
+        @Override
+        public void getStatus(long regionId, @NonNull RegionStatusLoader.Callback callback) {
+            started.put(regionId, callback);
+        }
+
+        void complete(long regionId, boolean complete, long now) {
+            started.remove(regionId).onStatus(regionId,
+                    new RegionStatusLoader.Status(1000, 10, 20, complete, now));
+        }
+    }
+
+    private final Map<Long, RegionStatusLoader.Status> cache = new HashMap<>();
+    private final FakeSource source = new FakeSource();
+    private final List<Long> loaded = new ArrayList<>();
+    private final RegionStatusLoader loader = new RegionStatusLoader(cache, source,
+            new RegionStatusLoader.Listener() {
+                @Override
+                public void onStatusLoaded(long regionId,
+                        @NonNull RegionStatusLoader.Status status) {
+                    loaded.add(regionId);
+                }
+            });
+
+    @Test
+    public void boundsTheFetchesInFlightNewestFirst() {
+        for (long id = 1; id <= 10; id++) {
+            loader.request(id, 0);
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), new ArrayList<>(source.started.keySet()));
+
+        source.complete(2, true, 0);
+
+        assertEquals(Arrays.asList(2L), loaded);
+        assertEquals(RegionStatusLoader.MAX_IN_FLIGHT, source.started.size());
+        assertTrue(source.started.containsKey(10L));
+    }
+
+    @Test
+    public void cancelledRequestsDoNotStart() {
+        for (long id = 1; id <= 6; id++) {
+            loader.request(id, 0);
+        }
+        loader.cancel(6);
+        loader.cancel(1);
+
+        source.complete(1, true, 0);
+
+        assertTrue(source.started.containsKey(5L));
+        assertFalse(source.started.containsKey(6L));
+    }
+
+    @Test
+    public void cachedStatusesAreReusedUntilStale() {
+        loader.request(1, 0);
+        loader.request(2, 0);
+        source.complete(1, true, 0);
+        source.complete(2, false, 0);
+
+        RegionStatusLoader other = new RegionStatusLoader(cache, source, null);
+        assertNotNull(other.getCached(1));
+        other.request(1, RegionStatusLoader.STALE_MILLIS * 10);
+        other.request(2, RegionStatusLoader.STALE_MILLIS - 1);
+        assertTrue(source.started.isEmpty());
+
+        other.request(2, RegionStatusLoader.STALE_MILLIS);
+        assertEquals(Arrays.asList(2L), new ArrayList<>(source.started.keySet()));
+    }
+
+    @Test
+    public void errorsAreNotCached() {
+        loader.request(1, 0);
+        source.started.remove(1L).onStatus(1, null);
+
+        assertNull(loader.getCached(1));
+        assertTrue(loaded.isEmpty());
+        loader.request(1, 0);
+        assertTrue(source.started.containsKey(1L));
+    }
+}
@@ -0,0 +1,70 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegionStorageManagerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void evictsLeastRecentlyUsedFirstUntilWithinBudget() {
+        List<RegionStorageManager.Candidate> regions = Arrays.asList(
+                candidate(1, 100 * MB, 3000, true),
+                candidate(2, 100 * MB, 1000, true),
+                candidate(3, 100 * MB, 2000, true),
+                candidate(4, 100 * MB, 4000, true));
+
+        List<RegionStorageManager.Candidate> evictions =
+                RegionStorageManager.selectEvictions(regions, 250 * MB);
+
+        assertEquals(2, evictions.size());
+        assertEquals(2, evictions.get(0).regionId);
+        assertEquals(3, evictions.get(1).regionId);
+    }
+
+    @Test
+    public void neverEvictsPinnedRegions() {
+        List<RegionStorageManager.Candidate> regions = Arrays.asList(
+                candidate(1, 500 * MB, 1000, false),
+                candidate(2, 100 * MB, 2000, true));
+
+        List<RegionStorageManager.Candidate> evictions =
+                RegionStorageManager.selectEvictions(regions, 100 * MB);
+
+        assertEquals(1, evictions.size());
+        assertEquals(2, evictions.get(0).regionId);
+    }
+
+    @Test
+    public void nothingToEvictWithinBudget() {
+        List<RegionStorageManager.Candidate> regions = Arrays.asList(
+                candidate(1, 100 * MB, 1000, true),
+                candidate(2, 100 * MB, 2000, true));
+
+        assertTrue(RegionStorageManager.selectEvictions(regions, 200 * MB).isEmpty());
+    }
+
+    @Test
+    public void skipsEmptyRegions() {
+        List<RegionStorageManager.Candidate> regions = Arrays.asList(
+                candidate(1, 0, 1000, true),
+                candidate(2, 300 * MB, 2000, true));
+
+        List<RegionStorageManager.Candidate> evictions =
+                RegionStorageManager.selectEvictions(regions, 100 * MB);
+
+        assertEquals(1, evictions.size());
+        assertEquals(2, evictions.get(0).regionId);
+    }
+
+    private static RegionStorageManager.Candidate candidate(long id, long bytes, long lastUsed,
+            boolean evictable) {
+        return new RegionStorageManager.Candidate(id, bytes, lastUsed, evictable);
+    }
+}
@@ -0,0 +1,66 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpeedJumpFilterTest {
+
+    private static final double LATITUDE = 41.39;
+    private static final double LONGITUDE = 2.17;
+    // about 1 meter
+    private static final double METER = 1 / 111195.0;
+
+    @Test
+    public void acceptsWalking() {
+        SpeedJumpFilter filter = new SpeedJumpFilter(15f);
+
+        assertTrue(filter.accepts(LATITUDE, LONGITUDE, 5f, 0));
+        assertTrue(filter.accepts(LATITUDE + 7 * METER, LONGITUDE, 5f, 5000));
+        assertTrue(filter.accepts(LATITUDE + 14 * METER, LONGITUDE, 5f, 10000));
+    }
+
+    @Test
+    public void dropsJumpsAndOutOfOrderFixes() {
+        SpeedJumpFilter filter = new SpeedJumpFilter(15f);
+        filter.accepts(LATITUDE, LONGITUDE, 5f, 10000);
+
+        // 500 m in 5 s
+        assertFalse(filter.accepts(LATITUDE + 500 * METER, LONGITUDE, 5f, 15000));
+        assertFalse(filter.accepts(LATITUDE, LONGITUDE, 5f, 10000));
+        assertTrue(filter.accepts(LATITUDE + 10 * METER, LONGITUDE, 5f, 20000));
+    }
+
+    @Test
+    public void accuracyRadiiAreSubtracted() {
+        SpeedJumpFilter filter = new SpeedJumpFilter(15f);
+        filter.accepts(LATITUDE, LONGITUDE, 30f, 0);
+
+        // 120 m in 5 s, but only 60 m beyond both radii
+        assertTrue(filter.accepts(LATITUDE + 120 * METER, LONGITUDE, 30f, 5000));
+    }
+
+    @Test
+    public void trustsTheNewPositionAfterThreeRejections() {
+        SpeedJumpFilter filter = new SpeedJumpFilter(15f);
+        filter.accepts(LATITUDE, LONGITUDE, 5f, 0);
+
+        double jumped = LATITUDE + 2000 * METER;
+        assertFalse(filter.accepts(jumped, LONGITUDE, 5f, 5000));
+        assertFalse(filter.accepts(jumped, LONGITUDE, 5f, 10000));
+        assertTrue(filter.accepts(jumped, LONGITUDE, 5f, 15000));
+        // measured from the trusted position from now on
+        assertTrue(filter.accepts(jumped + 7 * METER, LONGITUDE, 5f, 20000));
+    }
+
+    @Test
+    public void resetForgetsTheLastFix() {
+        SpeedJumpFilter filter = new SpeedJumpFilter(15f);
+        filter.accepts(LATITUDE, LONGITUDE, 5f, 0);
+
+        filter.reset();
+
+        assertTrue(filter.accepts(LATITUDE + 2000 * METER, LONGITUDE, 5f, 5000));
+    }
+}
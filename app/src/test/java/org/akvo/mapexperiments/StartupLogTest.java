@@ -0,0 +1,68 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsTheLastLaunchesInOrder() throws IOException {
+        StartupLog log = new StartupLog(folder.getRoot());
+        int total = StartupLog.CAPACITY + 7;
+        for (int i = 0; i < total; i++) {
+            log.write(launch(i, i % 2 == 0));
+        }
+
+        List<StartupLog.Launch> launches = log.readAll();
+        assertEquals(StartupLog.CAPACITY, launches.size());
+        for (int i = 0; i < launches.size(); i++) {
+            int expected = total - StartupLog.CAPACITY + i;
+            assertEquals(expected, launches.get(i).wallTime);
+            assertEquals(expected, launches.get(i).getMillis(StartupTracer.Phase.FIRST_FIX));
+            assertEquals(expected % 2 == 0, launches.get(i).cold);
+        }
+    }
+
+    @Test
+    public void readsNothingWithoutFile() {
+        assertTrue(new StartupLog(folder.getRoot()).readAll().isEmpty());
+    }
+
+    @Test
+    public void unreachedPhasesStayUnreached() throws IOException {
+        StartupLog log = new StartupLog(folder.getRoot());
+        int[] millis = { 120, 300, 900, -1, -1 };
+        log.write(new StartupLog.Launch(1, false, millis));
+
+        StartupLog.Launch launch = log.readAll().get(0);
+        assertFalse(launch.cold);
+        assertEquals(900, launch.getMillis(StartupTracer.Phase.MAP_READY));
+        assertEquals(-1, launch.getMillis(StartupTracer.Phase.STYLE_LOADED));
+    }
+
+    @Test
+    public void percentilesSkipUnreachedPhases() {
+        int[] values = { 40, -1, 10, 30, 20, -1 };
+        assertEquals(20, StartupLog.percentile(values, 50));
+        assertEquals(40, StartupLog.percentile(values, 90));
+        assertEquals(10, StartupLog.percentile(values, 0));
+        assertEquals(-1, StartupLog.percentile(new int[] { -1, -1 }, 50));
+    }
+
+    private static StartupLog.Launch launch(int index, boolean cold) {
+        int[] millis = new int[StartupTracer.Phase.values().length];
+        millis[StartupTracer.Phase.FIRST_FIX.ordinal()] = index;
+        return new StartupLog.Launch(index, cold, millis);
+    }
+}
@@ -0,0 +1,44 @@
+package org.akvo.mapexperiments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StationaryFilterTest {
+
+    private static final double LATITUDE = 41.39;
+    private static final double LONGITUDE = 2.17;
+    // about 1 meter
+    private static final double METER = 1 / 111195.0;
+
+    @Test
+    public void dropsJitterWithinTheAccuracyRadius() {
+        StationaryFilter filter = new StationaryFilter();
+
+        assertTrue(filter.accepts(LATITUDE, LONGITUDE, 10f, 0f));
+        assertFalse(filter.accepts(LATITUDE + 4 * METER, LONGITUDE, 10f, 0f));
+        // no speed reported
+        assertFalse(filter.accepts(LATITUDE - 6 * METER, LONGITUDE, 10f, -1f));
+        assertTrue(filter.accepts(LATITUDE + 15 * METER, LONGITUDE, 10f, 0f));
+    }
+
+    @Test
+    public void acceptsCloseFixesWhenMoving() {
+        StationaryFilter filter = new StationaryFilter();
+        filter.accepts(LATITUDE, LONGITUDE, 10f, 1.2f);
+
+        assertTrue(filter.accepts(LATITUDE + 4 * METER, LONGITUDE, 10f, 1.2f));
+    }
+
+    @Test
+    public void resetAcceptsTheFirstFixAgain() {
+        StationaryFilter filter = new StationaryFilter();
+        filter.accepts(LATITUDE, LONGITUDE, 10f, 0f);
+
+        filter.reset();
+
+        // e.g. a new recording started on the same corner
+        assertTrue(filter.accepts(LATITUDE + METER, LONGITUDE, 10f, 0f));
+    }
+}
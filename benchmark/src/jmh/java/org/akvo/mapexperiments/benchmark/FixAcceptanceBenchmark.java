@@ -0,0 +1,70 @@
+package org.akvo.mapexperiments.benchmark;
+
+import com.mapbox.geojson.Point;
+import com.mapbox.turf.TurfConstants;
+import com.mapbox.turf.TurfMeasurement;
+
+import org.akvo.mapexperiments.geometry.GeoDistance;
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Feeding a whole walk through the minimum distance check of {@code updateNewLocation}, keeping
+ * the accepted fixes.
+ */
+@State(Scope.Thread)
+public class FixAcceptanceBenchmark {
+
+    private static final double MINIMUM_DISTANCE = 5;
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int trackSize;
+
+    private TrackBuffer fixes;
+    private TrackBuffer accepted;
+
+    @Setup
+    public void setUp() {
+        fixes = Tracks.walk(trackSize);
+        accepted = new TrackBuffer(trackSize);
+    }
+
+    @Benchmark
+    public TrackBuffer isWithin() {
+        accepted.clear();
+        for (int i = 0; i < fixes.size(); i++) {
+            double latitude = fixes.getLatitude(i);
+            double longitude = fixes.getLongitude(i);
+            int last = accepted.size() - 1;
+            if (last < 0 || !GeoDistance.isWithin(accepted.getLatitude(last),
+                    accepted.getLongitude(last), latitude, longitude, MINIMUM_DISTANCE)) {
+                accepted.add(latitude, longitude, fixes.getAccuracy(i), fixes.getTime(i));
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * The check as it was written before: two point objects per fix and a full distance.
+     */
+    @Benchmark
+    public TrackBuffer pointObjects() {
+        accepted.clear();
+        for (int i = 0; i < fixes.size(); i++) {
+            double latitude = fixes.getLatitude(i);
+            double longitude = fixes.getLongitude(i);
+            int last = accepted.size() - 1;
+            if (last < 0 || TurfMeasurement.distance(
+                    Point.fromLngLat(accepted.getLongitude(last), accepted.getLatitude(last)),
+                    Point.fromLngLat(longitude, latitude),
+                    TurfConstants.UNIT_METERS) > MINIMUM_DISTANCE) {
+                accepted.add(latitude, longitude, fixes.getAccuracy(i), fixes.getTime(i));
+            }
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,89 @@
+package org.akvo.mapexperiments.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.akvo.mapexperiments.geometry.ShapeJson;
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The shape JSON older versions saved in preferences: reflective Gson over a list of point
+ * objects, as the save and load menu used to do, against the streaming reader the shape library
+ * imports it with.
+ */
+@State(Scope.Thread)
+public class ShapeJsonBenchmark {
+
+    private static final Type LIST_TYPE = new TypeToken<List<LegacyPoint>>() {
+    }.getType();
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int trackSize;
+
+    private final Gson gson = new Gson();
+    private List<LegacyPoint> points;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        TrackBuffer track = Tracks.walk(trackSize);
+        points = new ArrayList<>(trackSize);
+        for (int i = 0; i < trackSize; i++) {
+            points.add(new LegacyPoint(track.getLatitude(i), track.getLongitude(i),
+                    track.getAccuracy(i)));
+        }
+        json = gson.toJson(points);
+    }
+
+    @Benchmark
+    public String gsonSerialize() {
+        return gson.toJson(points);
+    }
+
+    @Benchmark
+    public List<LegacyPoint> gsonDeserialize() {
+        return gson.fromJson(json, LIST_TYPE);
+    }
+
+    @Benchmark
+    public TrackBuffer streamingRead() throws IOException {
+        TrackBuffer track = new TrackBuffer();
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ShapeJson.readPoint(reader, track);
+        }
+        reader.endArray();
+        reader.close();
+        return track;
+    }
+
+    /**
+     * Same fields as the {@code LatLngAcc} class Gson used to serialize.
+     */
+    static class LegacyPoint {
+
+        double latitude;
+        double longitude;
+        double altitude;
+        float accuracy;
+
+        LegacyPoint(double latitude, double longitude, float accuracy) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.akvo.mapexperiments.benchmark;
+
+import com.mapbox.geojson.Point;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+import org.akvo.mapexperiments.geometry.TrackSimplifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Work done on the main thread to draw a track: building one SDK object per drawn vertex, with
+ * and without the level of detail, simplifying a freshly loaded track and closing the polygon
+ * when saving. GeoJSON points stand in for the Android only annotation options.
+ */
+@State(Scope.Thread)
+public class TrackRenderingBenchmark {
+
+    private static final double MAPBOX_WORLD_SIZE = 512.0;
+    private static final double ZOOM = 16;
+
+    private static final TrackBuffer.PointFactory<Point> POINT_FACTORY =
+            new TrackBuffer.PointFactory<Point>() {
+                @Override
+                public Point create(double latitude, double longitude, float accuracy) {
+                    return Point.fromLngLat(longitude, latitude);
+                }
+            };
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int trackSize;
+
+    private TrackBuffer track;
+    private TrackSimplifier.Level level;
+
+    @Setup
+    public void setUp() {
+        track = Tracks.walk(trackSize);
+        TrackSimplifier simplifier = new TrackSimplifier(track, MAPBOX_WORLD_SIZE);
+        simplifier.update();
+        level = simplifier.levelFor(ZOOM);
+    }
+
+    @Benchmark
+    public List<Point> allVertexOptions() {
+        return track.copyTo(new ArrayList<Point>(track.size()), POINT_FACTORY);
+    }
+
+    @Benchmark
+    public List<Point> simplifiedVertexOptions() {
+        return new ArrayList<>(level.view(POINT_FACTORY));
+    }
+
+    @Benchmark
+    public TrackSimplifier.Level simplifyWholeTrack() {
+        TrackSimplifier simplifier = new TrackSimplifier(track, MAPBOX_WORLD_SIZE);
+        simplifier.update();
+        return simplifier.levelFor(ZOOM);
+    }
+
+    @Benchmark
+    public TrackBuffer closeRing() {
+        TrackBuffer shape = track.copy();
+        shape.closeRing();
+        return shape;
+    }
+}
@@ -0,0 +1,45 @@
+package org.akvo.mapexperiments.benchmark;
+
+import org.akvo.mapexperiments.geometry.TrackBuffer;
+
+import java.util.Random;
+
+/**
+ * Synthetic walks shared by the benchmarks.
+ */
+final class Tracks {
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    private Tracks() {
+    }
+
+    /**
+     * A walk of {@code size} fixes around Barcelona: mostly steps of 5 to 10 meters, with one fix
+     * in three being jitter of a couple of meters around the previous one.
+     */
+    static TrackBuffer walk(int size) {
+        Random random = new Random(42);
+        TrackBuffer track = new TrackBuffer(size);
+        double latitude = 41.39;
+        double longitude = 2.17;
+        double heading = 0;
+        double lonScale = Math.cos(Math.toRadians(latitude));
+        for (int i = 0; i < size; i++) {
+            double step;
+            double direction;
+            if (random.nextInt(3) == 0) {
+                step = random.nextDouble() * 3;
+                direction = random.nextDouble() * 2 * Math.PI;
+            } else {
+                heading += random.nextGaussian() * 0.3;
+                step = 5 + random.nextDouble() * 5;
+                direction = heading;
+            }
+            latitude += Math.cos(direction) * step / METERS_PER_DEGREE;
+            longitude += Math.sin(direction) * step / (METERS_PER_DEGREE * lonScale);
+            track.add(latitude, longitude, 3 + random.nextFloat() * 10, i * 1000L);
+        }
+        return track;
+    }
+}
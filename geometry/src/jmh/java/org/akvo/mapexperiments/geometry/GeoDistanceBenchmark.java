@@ -0,0 +1,90 @@
+package org.akvo.mapexperiments.geometry;
+
+import com.mapbox.geojson.Point;
+import com.mapbox.turf.TurfConstants;
+import com.mapbox.turf.TurfMeasurement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Distance between two consecutive fixes, the per fix computation of the recording screens.
+ * <p/>
+ * The Android SDK calls ({@code Location.distanceTo}, Mapbox {@code LatLng.distanceTo}) cannot run
+ * on the JVM. {@link #turfPoints} stands in for them: like the SDK calls it creates two point
+ * objects per fix before measuring, and {@link #vincenty} is the algorithm
+ * {@code Location.distanceTo} uses.
+ */
+@State(Scope.Thread)
+public class GeoDistanceBenchmark {
+
+    private static final int PAIRS = 1024;
+    private static final double THRESHOLD_METERS = 5;
+
+    private final double[] latitudes = new double[PAIRS + 1];
+    private final double[] longitudes = new double[PAIRS + 1];
+    private int index;
+
+    @Setup
+    public void setUp() {
+        // a walk with a few meters between fixes
+        Random random = new Random(42);
+        latitudes[0] = 41.39;
+        longitudes[0] = 2.17;
+        for (int i = 1; i <= PAIRS; i++) {
+            latitudes[i] = latitudes[i - 1] + (random.nextDouble() - 0.5) * 1e-4;
+            longitudes[i] = longitudes[i - 1] + (random.nextDouble() - 0.5) * 1e-4;
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (PAIRS - 1);
+        return index;
+    }
+
+    @Benchmark
+    public double haversine() {
+        int i = next();
+        return GeoDistance.haversine(latitudes[i], longitudes[i], latitudes[i + 1],
+                longitudes[i + 1]);
+    }
+
+    @Benchmark
+    public double equirectangular() {
+        int i = next();
+        return GeoDistance.equirectangular(latitudes[i], longitudes[i], latitudes[i + 1],
+                longitudes[i + 1]);
+    }
+
+    @Benchmark
+    public double vincenty() {
+        int i = next();
+        return GeoDistance.vincenty(latitudes[i], longitudes[i], latitudes[i + 1],
+                longitudes[i + 1]);
+    }
+
+    @Benchmark
+    public boolean isWithin() {
+        int i = next();
+        return GeoDistance.isWithin(latitudes[i], longitudes[i], latitudes[i + 1],
+                longitudes[i + 1], THRESHOLD_METERS);
+    }
+
+    @Benchmark
+    public boolean vincentyThreshold() {
+        int i = next();
+        return GeoDistance.vincenty(latitudes[i], longitudes[i], latitudes[i + 1],
+                longitudes[i + 1]) <= THRESHOLD_METERS;
+    }
+
+    @Benchmark
+    public double turfPoints() {
+        int i = next();
+        return TurfMeasurement.distance(Point.fromLngLat(longitudes[i], latitudes[i]),
+                Point.fromLngLat(longitudes[i + 1], latitudes[i + 1]), TurfConstants.UNIT_METERS);
+    }
+}
@@ -0,0 +1,122 @@
+package org.akvo.mapexperiments.geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers a stretch of a track into a corridor: one rectangle per segment, as wide as the
+ * corridor and extended by its half width at both ends, so that the rectangles of consecutive
+ * segments overlap at the joints whatever the turn. Tile covers take the union of the
+ * rectangles, which saves computing the outline of the corridor.
+ * <p/>
+ * Rectangles are computed in a local equirectangular projection, exact enough for the few
+ * hundred meters of a segment. Rings are closed arrays of longitude, latitude pairs.
+ */
+public final class Corridor {
+
+    private static final double METERS_PER_DEGREE = GeoDistance.EARTH_RADIUS * Math.PI / 180;
+
+    private Corridor() {
+    }
+
+    /**
+     * Rings covering the points {@code fromIndex} to {@code toIndex} of the track, inclusive.
+     * Points closer than half the half width to the previous one are skipped: they stay within
+     * the rectangles around them, and a slow walk does not make a rectangle per fix.
+     */
+    public static List<double[]> buffer(TrackBuffer track, int fromIndex, int toIndex,
+            double halfWidthMeters) {
+        List<double[]> rings = new ArrayList<>();
+        double minSpacing = halfWidthMeters / 2;
+        int previous = fromIndex;
+        for (int i = fromIndex + 1; i <= toIndex; i++) {
+            boolean last = i == toIndex;
+            double distance = GeoDistance.equirectangular(track.getLatitude(previous),
+                    track.getLongitude(previous), track.getLatitude(i), track.getLongitude(i));
+            if (distance >= minSpacing || (last && distance > 0)) {
+                rings.add(segment(track.getLatitude(previous), track.getLongitude(previous),
+                        track.getLatitude(i), track.getLongitude(i), halfWidthMeters));
+                previous = i;
+            }
+        }
+        if (rings.isEmpty()) {
+            rings.add(square(track.getLatitude(toIndex), track.getLongitude(toIndex),
+                    halfWidthMeters));
+        }
+        return rings;
+    }
+
+    /**
+     * The rectangle around a segment, extended by the half width at both ends.
+     */
+    public static double[] segment(double lat1, double lon1, double lat2, double lon2,
+            double halfWidthMeters) {
+        double metersPerDegreeLon = metersPerDegreeLongitude((lat1 + lat2) / 2);
+        double dx = (lon2 - lon1) * metersPerDegreeLon;
+        double dy = (lat2 - lat1) * METERS_PER_DEGREE;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        if (length == 0) {
+            return square(lat1, lon1, halfWidthMeters);
+        }
+        // unit vectors along and across the segment, scaled to the half width
+        double ax = dx / length * halfWidthMeters;
+        double ay = dy / length * halfWidthMeters;
+        double cx = -ay;
+        double cy = ax;
+        return ring(metersPerDegreeLon,
+                lon1, lat1, -ax + cx, -ay + cy,
+                lon1, lat1, -ax - cx, -ay - cy,
+                lon2, lat2, ax - cx, ay - cy,
+                lon2, lat2, ax + cx, ay + cy);
+    }
+
+    /**
+     * The rectangle from the end of a segment to {@code distanceMeters} further in its
+     * direction, where the track is heading.
+     */
+    public static double[] ahead(double lat1, double lon1, double lat2, double lon2,
+            double distanceMeters, double halfWidthMeters) {
+        double metersPerDegreeLon = metersPerDegreeLongitude(lat2);
+        double dx = (lon2 - lon1) * metersPerDegreeLon;
+        double dy = (lat2 - lat1) * METERS_PER_DEGREE;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        if (length == 0) {
+            return square(lat2, lon2, Math.max(distanceMeters, halfWidthMeters));
+        }
+        double lon3 = lon2 + dx / length * distanceMeters / metersPerDegreeLon;
+        double lat3 = lat2 + dy / length * distanceMeters / METERS_PER_DEGREE;
+        return segment(lat2, lon2, lat3, lon3, halfWidthMeters);
+    }
+
+    /**
+     * The square of side twice the half width around a point.
+     */
+    public static double[] square(double lat, double lon, double halfWidthMeters) {
+        double metersPerDegreeLon = metersPerDegreeLongitude(lat);
+        double h = halfWidthMeters;
+        return ring(metersPerDegreeLon,
+                lon, lat, -h, -h,
+                lon, lat, h, -h,
+                lon, lat, h, h,
+                lon, lat, -h, h);
+    }
+
+    private static double metersPerDegreeLongitude(double latitude) {
+        // away from the poles, where nobody maps plots
+        return METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+    }
+
+    /**
+     * Closed ring of four corners, each given as an origin and an offset in meters.
+     */
+    private static double[] ring(double metersPerDegreeLon, double... corners) {
+        double[] ring = new double[10];
+        for (int i = 0; i < 4; i++) {
+            ring[2 * i] = corners[4 * i] + corners[4 * i + 2] / metersPerDegreeLon;
+            ring[2 * i + 1] = corners[4 * i + 1] + corners[4 * i + 3] / METERS_PER_DEGREE;
+        }
+        ring[8] = ring[0];
+        ring[9] = ring[1];
+        return ring;
+    }
+}
@@ -0,0 +1,121 @@
+package org.akvo.mapexperiments.geometry;
+
+/**
+ * Distances in meters between two points given in degrees. All methods take primitives and
+ * allocate nothing, so they can run on every location fix.
+ * <p/>
+ * {@link #haversine} and {@link #equirectangular} use a spherical earth and are within 0.5% of
+ * the ellipsoidal {@link #vincenty}, which matches {@code android.location.Location#distanceTo}.
+ * For the few meters between two consecutive fixes the equirectangular approximation differs from
+ * haversine by far less than GPS noise, and {@link #isWithin} uses it without a square root.
+ */
+public final class GeoDistance {
+
+    /**
+     * Mean earth radius in meters.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    // WGS84 ellipsoid
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_F = 1 / 298.257223563;
+    private static final double WGS84_B = WGS84_A * (1 - WGS84_F);
+
+    private static final int VINCENTY_MAX_ITERATIONS = 20;
+    private static final double VINCENTY_EPSILON = 1e-12;
+
+    private GeoDistance() {
+    }
+
+    public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDLat = Math.sin((phi2 - phi1) / 2);
+        double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinDLat * sinDLat + Math.cos(phi1) * Math.cos(phi2) * sinDLon * sinDLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(Math.min(a, 1)));
+    }
+
+    /**
+     * Flat earth approximation around the mean latitude, accurate for short distances away from
+     * the poles.
+     */
+    public static double equirectangular(double lat1, double lon1, double lat2, double lon2) {
+        return Math.sqrt(squaredEquirectangular(lat1, lon1, lat2, lon2));
+    }
+
+    /**
+     * Vincenty's inverse formula on the WGS84 ellipsoid. For nearly antipodal points, where the
+     * iteration does not converge, the haversine distance is returned instead.
+     */
+    public static double vincenty(double lat1, double lon1, double lat2, double lon2) {
+        double l = Math.toRadians(lon2 - lon1);
+        double u1 = Math.atan((1 - WGS84_F) * Math.tan(Math.toRadians(lat1)));
+        double u2 = Math.atan((1 - WGS84_F) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(u1);
+        double cosU1 = Math.cos(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU2 = Math.cos(u2);
+
+        double lambda = l;
+        for (int i = 0; i < VINCENTY_MAX_ITERATIONS; i++) {
+            double sinLambda = Math.sin(lambda);
+            double cosLambda = Math.cos(lambda);
+            double a = cosU2 * sinLambda;
+            double b = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSigma = Math.sqrt(a * a + b * b);
+            if (sinSigma == 0) {
+                return 0;
+            }
+            double cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            double sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            double cosSqAlpha = 1 - sinAlpha * sinAlpha;
+            // on the equator cos2SigmaM is undefined but multiplied by a zero C below
+            double cos2SigmaM = cosSqAlpha == 0 ? 0 : cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha;
+            double c = WGS84_F / 16 * cosSqAlpha * (4 + WGS84_F * (4 - 3 * cosSqAlpha));
+            double previousLambda = lambda;
+            lambda = l + (1 - c) * WGS84_F * sinAlpha * (sigma + c * sinSigma
+                    * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - previousLambda) < VINCENTY_EPSILON) {
+                double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B)
+                        / (WGS84_B * WGS84_B);
+                double bigA = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+                double bigB = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+                double deltaSigma = bigB * sinSigma * (cos2SigmaM + bigB / 4
+                        * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM) - bigB / 6 * cos2SigmaM
+                        * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+                return WGS84_B * bigA * (sigma - deltaSigma);
+            }
+        }
+        return haversine(lat1, lon1, lat2, lon2);
+    }
+
+    /**
+     * Tells whether two points are closer than {@code meters}, meant for thresholds of up to a
+     * few kilometers like the minimum distance between recorded points. Points further apart in
+     * latitude alone are rejected before any trigonometry, and the rest is compared squared.
+     */
+    public static boolean isWithin(double lat1, double lon1, double lat2, double lon2,
+            double meters) {
+        double maxRadians = meters / EARTH_RADIUS;
+        if (Math.abs(Math.toRadians(lat2 - lat1)) > maxRadians) {
+            return false;
+        }
+        return squaredEquirectangular(lat1, lon1, lat2, lon2) <= meters * meters;
+    }
+
+    private static double squaredEquirectangular(double lat1, double lon1, double lat2,
+            double lon2) {
+        double dLon = lon2 - lon1;
+        // shortest way around the antimeridian
+        if (dLon > 180) {
+            dLon -= 360;
+        } else if (dLon < -180) {
+            dLon += 360;
+        }
+        double x = Math.toRadians(dLon) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return (x * x + y * y) * EARTH_RADIUS * EARTH_RADIUS;
+    }
+}
@@ -0,0 +1,49 @@
+package org.akvo.mapexperiments.geometry;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Hand written reading of the shape JSON older versions saved in preferences, without going
+ * through Gson's reflection. The format is the one Gson used to produce for a list of
+ * {@code LatLngAcc}: an array of objects with latitude, longitude, altitude and accuracy fields.
+ * Shapes are now kept in the app's shape store.
+ */
+public final class ShapeJson {
+
+    private static final String FIELD_LATITUDE = "latitude";
+    private static final String FIELD_LONGITUDE = "longitude";
+    private static final String FIELD_ACCURACY = "accuracy";
+
+    private ShapeJson() {
+    }
+
+    /**
+     * Reads a single point object and adds it to {@code target}. Unknown fields are skipped.
+     */
+    public static void readPoint(JsonReader reader, TrackBuffer target)
+            throws IOException {
+        double latitude = 0;
+        double longitude = 0;
+        float accuracy = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (FIELD_LATITUDE.equals(name)) {
+                latitude = reader.nextDouble();
+            } else if (FIELD_LONGITUDE.equals(name)) {
+                longitude = reader.nextDouble();
+            } else if (FIELD_ACCURACY.equals(name)) {
+                accuracy = (float) reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        target.add(latitude, longitude, accuracy, 0L);
+    }
+}
@@ -0,0 +1,152 @@
+package org.akvo.mapexperiments.geometry;
+
+/**
+ * Counts the tiles of an offline tile pyramid the way Mapbox does before downloading it, so that
+ * a region can be sized, and its max zoom chosen, before it is created.
+ * <p/>
+ * Like the Mapbox offline database, the map zoom range of a region is first turned into the tile
+ * zoom range of every source: map zooms are for 512 pixel tiles, so a 256 pixel raster source
+ * uses tiles one zoom deeper, and raster zooms are rounded while vector zooms are floored. The
+ * range is then clipped to the zooms the source has tiles for, and the tiles of every zoom that
+ * intersect the bounds are counted.
+ */
+public final class TileCover {
+
+    /**
+     * Default number of tiles from Mapbox sources an app can keep offline.
+     */
+    public static final long MAPBOX_TILE_COUNT_LIMIT = 6000;
+
+    /**
+     * Tile size the map zooms refer to.
+     */
+    static final int MAP_TILE_SIZE = 512;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * Tiles and bytes of a region for the zoom range it was computed for.
+     */
+    public static final class Estimate {
+
+        public final double minZoom;
+        public final double maxZoom;
+        public final long tiles;
+        public final long bytes;
+
+        Estimate(double minZoom, double maxZoom, long tiles, long bytes) {
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+            this.tiles = tiles;
+            this.bytes = bytes;
+        }
+    }
+
+    private TileCover() {
+    }
+
+    /**
+     * Number of tiles of zoom {@code z} intersecting the bounds. The bounds cross the
+     * antimeridian when {@code west} is greater than {@code east}.
+     */
+    public static long count(double south, double west, double north, double east, int z) {
+        long worldTiles = 1L << z;
+        double span = east - west;
+        if (span < 0) {
+            span += 360;
+        }
+        long columns = worldTiles;
+        if (span < 360) {
+            double x0 = (west + 180) / 360;
+            x0 -= Math.floor(x0);
+            columns = span(x0 * worldTiles, (x0 + span / 360) * worldTiles);
+        }
+        long rows = span(mercatorY(north) * worldTiles, mercatorY(south) * worldTiles);
+        return Math.min(columns, worldTiles) * rows;
+    }
+
+    /**
+     * The tile zoom a source uses for a map zoom.
+     */
+    public static int coveringZoom(double zoom, TileSizeModel.Source source) {
+        double tileZoom = zoom
+                + Math.log((double) MAP_TILE_SIZE / source.tileSize) / Math.log(2);
+        return (int) (source.raster ? Math.round(tileZoom) : Math.floor(tileZoom));
+    }
+
+    /**
+     * Number of tiles of one source for the map zoom range.
+     */
+    public static long count(double south, double west, double north, double east,
+            double minZoom, double maxZoom, TileSizeModel.Source source) {
+        int first = Math.max(coveringZoom(minZoom, source), source.minZoom);
+        int last = Math.min(coveringZoom(maxZoom, source), source.maxZoom);
+        long tiles = 0;
+        for (int z = first; z <= last; z++) {
+            tiles += count(south, west, north, east, z);
+        }
+        return tiles;
+    }
+
+    public static Estimate estimate(double south, double west, double north, double east,
+            double minZoom, double maxZoom, TileSizeModel model, float pixelRatio) {
+        long tiles = 0;
+        long bytes = model.fixedBytes;
+        for (TileSizeModel.Source source : model.sources) {
+            long sourceTiles = count(south, west, north, east, minZoom, maxZoom, source);
+            tiles += sourceTiles;
+            bytes += sourceTiles * source.bytesPerTile(pixelRatio);
+        }
+        return new Estimate(minZoom, maxZoom, tiles, bytes);
+    }
+
+    /**
+     * Finds the deepest max zoom, from {@code minZoom} up to {@code maxZoomCap} in whole zooms,
+     * whose estimate stays within both the byte budget and the tile limit. The cap itself is
+     * tried first, zooms beyond the deepest source tiles are overzoomed and free.
+     *
+     * @return the estimate for that max zoom, or null if even {@code minZoom} alone does not fit.
+     */
+    public static Estimate fit(double south, double west, double north, double east,
+            double minZoom, double maxZoomCap, TileSizeModel model, float pixelRatio,
+            long byteBudget, long tileLimit) {
+        Estimate capped = estimate(south, west, north, east, minZoom, maxZoomCap, model,
+                pixelRatio);
+        if (fits(capped, byteBudget, tileLimit)) {
+            return capped;
+        }
+        Estimate best = null;
+        // the estimates only grow with the max zoom
+        for (double maxZoom = minZoom; maxZoom < maxZoomCap; maxZoom = Math.floor(maxZoom) + 1) {
+            Estimate estimate = estimate(south, west, north, east, minZoom, maxZoom, model,
+                    pixelRatio);
+            if (!fits(estimate, byteBudget, tileLimit)) {
+                break;
+            }
+            best = estimate;
+        }
+        return best;
+    }
+
+    private static boolean fits(Estimate estimate, long byteBudget, long tileLimit) {
+        return estimate.bytes <= byteBudget && estimate.tiles <= tileLimit;
+    }
+
+    /**
+     * Number of tiles from the one containing {@code from} to the one ending at {@code to}: a
+     * bound on a tile edge does not take the next tile in.
+     */
+    private static long span(double from, double to) {
+        long first = (long) Math.floor(from);
+        long last = (long) Math.ceil(to) - 1;
+        return Math.max(last, first) - first + 1;
+    }
+
+    /**
+     * Web Mercator y in the range 0..1, from the north.
+     */
+    private static double mercatorY(double latitude) {
+        double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        return 0.5 - Math.log(Math.tan(Math.PI / 4 + lat / 2)) / (2 * Math.PI);
+    }
+}
@@ -0,0 +1,91 @@
+package org.akvo.mapexperiments.geometry;
+
+/**
+ * Rough download size of a map style: the tile sources it uses, with the average size of their
+ * tiles, plus the style, sprites and glyphs that are downloaded once per region. The averages are
+ * for the mostly rural areas the app is used in, dense cities have larger vector tiles.
+ */
+public final class TileSizeModel {
+
+    /**
+     * Raster tiles are requested at @2x when the pixel ratio is above 1, about three times the
+     * bytes of the 1x JPEG.
+     */
+    static final double RETINA_RASTER_FACTOR = 3.0;
+
+    /**
+     * A tile source of a style.
+     */
+    public static final class Source {
+
+        /**
+         * Size in pixels of the tiles: 512 for Mapbox vector tiles, 256 for raster tiles.
+         */
+        public final int tileSize;
+        public final boolean raster;
+        public final int minZoom;
+        /**
+         * Deepest zoom the source has tiles for, deeper zooms are overzoomed and cost nothing.
+         */
+        public final int maxZoom;
+        /**
+         * Average bytes of a tile at pixel ratio 1.
+         */
+        public final long bytesPerTile;
+
+        public Source(int tileSize, boolean raster, int minZoom, int maxZoom, long bytesPerTile) {
+            this.tileSize = tileSize;
+            this.raster = raster;
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+            this.bytesPerTile = bytesPerTile;
+        }
+
+        public long bytesPerTile(float pixelRatio) {
+            return raster && pixelRatio > 1
+                    ? Math.round(bytesPerTile * RETINA_RASTER_FACTOR) : bytesPerTile;
+        }
+    }
+
+    private static final Source STREETS = new Source(512, false, 0, 16, 24 * 1024);
+    private static final Source TERRAIN = new Source(512, false, 0, 15, 12 * 1024);
+    private static final Source SATELLITE = new Source(256, true, 0, 22, 20 * 1024);
+
+    public static final TileSizeModel VECTOR = new TileSizeModel(1024 * 1024, STREETS);
+    public static final TileSizeModel OUTDOORS = new TileSizeModel(1024 * 1024, STREETS,
+            TERRAIN);
+    public static final TileSizeModel SATELLITE_ONLY = new TileSizeModel(256 * 1024,
+            SATELLITE);
+    public static final TileSizeModel SATELLITE_STREETS = new TileSizeModel(1024 * 1024,
+            SATELLITE, STREETS);
+
+    final Source[] sources;
+    /**
+     * Style, sprites and glyphs, downloaded once whatever the region.
+     */
+    final long fixedBytes;
+
+    public TileSizeModel(long fixedBytes, Source... sources) {
+        this.fixedBytes = fixedBytes;
+        this.sources = sources.clone();
+    }
+
+    /**
+     * The model of a Mapbox style by its url, the vector one for styles it does not know.
+     */
+    public static TileSizeModel forStyle(String styleUrl) {
+        if (styleUrl == null) {
+            return VECTOR;
+        }
+        if (styleUrl.contains("satellite-streets")) {
+            return SATELLITE_STREETS;
+        }
+        if (styleUrl.contains("satellite")) {
+            return SATELLITE_ONLY;
+        }
+        if (styleUrl.contains("outdoors")) {
+            return OUTDOORS;
+        }
+        return VECTOR;
+    }
+}
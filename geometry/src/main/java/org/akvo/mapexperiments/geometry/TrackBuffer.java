@@ -0,0 +1,190 @@
+package org.akvo.mapexperiments.geometry;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Recorded track stored column by column in growable primitive arrays, so a point costs 28 bytes
+ * instead of a full map SDK object. Map SDK types are only created when rendering, either through
+ * a {@link #view} or a bulk {@link #copyTo}.
+ */
+public class TrackBuffer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] latitudes;
+    private double[] longitudes;
+    private float[] accuracies;
+    private long[] times;
+    private int size;
+
+    public TrackBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public TrackBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        accuracies = new float[capacity];
+        times = new long[capacity];
+    }
+
+    public void add(double latitude, double longitude, float accuracy, long time) {
+        if (size == latitudes.length) {
+            grow(size + 1);
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        accuracies[size] = accuracy;
+        times[size] = time;
+        size++;
+    }
+
+    public void addAll(TrackBuffer other) {
+        int newSize = size + other.size;
+        if (newSize > latitudes.length) {
+            grow(newSize);
+        }
+        System.arraycopy(other.latitudes, 0, latitudes, size, other.size);
+        System.arraycopy(other.longitudes, 0, longitudes, size, other.size);
+        System.arraycopy(other.accuracies, 0, accuracies, size, other.size);
+        System.arraycopy(other.times, 0, times, size, other.size);
+        size = newSize;
+    }
+
+    /**
+     * Appends a copy of the first point so the track forms a closed polygon. Tracks with fewer
+     * than 3 points are left untouched.
+     */
+    public void closeRing() {
+        if (size > 2) {
+            add(latitudes[0], longitudes[0], accuracies[0], times[0]);
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getLatitude(int index) {
+        checkIndex(index);
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        checkIndex(index);
+        return longitudes[index];
+    }
+
+    public float getAccuracy(int index) {
+        checkIndex(index);
+        return accuracies[index];
+    }
+
+    public long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    /**
+     * Visits every point without allocating.
+     */
+    public void forEach(PointVisitor visitor) {
+        for (int i = 0; i < size; i++) {
+            visitor.visit(i, latitudes[i], longitudes[i], accuracies[i], times[i]);
+        }
+    }
+
+    /**
+     * Returns an independent copy, sharing no arrays with this buffer. Useful to hand a snapshot
+     * to another thread.
+     */
+    public TrackBuffer copy() {
+        TrackBuffer copy = new TrackBuffer(size);
+        copy.addAll(this);
+        return copy;
+    }
+
+    /**
+     * Returns a read only list backed by this buffer which creates SDK points on access. The view
+     * reflects later changes to the buffer.
+     */
+    public <T> List<T> view(PointFactory<T> factory) {
+        return new PointView<>(this, factory);
+    }
+
+    /**
+     * Creates SDK points for every point from {@code fromIndex} on and adds them to
+     * {@code target}.
+     */
+    public <T> List<T> copyTo(List<T> target, int fromIndex, PointFactory<T> factory) {
+        for (int i = fromIndex; i < size; i++) {
+            target.add(factory.create(latitudes[i], longitudes[i], accuracies[i]));
+        }
+        return target;
+    }
+
+    public <T> List<T> copyTo(List<T> target, PointFactory<T> factory) {
+        return copyTo(target, 0, factory);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, latitudes.length + (latitudes.length >> 1));
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        accuracies = Arrays.copyOf(accuracies, capacity);
+        times = Arrays.copyOf(times, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    public interface PointVisitor {
+
+        void visit(int index, double latitude, double longitude, float accuracy, long time);
+    }
+
+    /**
+     * Creates the point type of a map SDK.
+     */
+    public interface PointFactory<T> {
+
+        T create(double latitude, double longitude, float accuracy);
+    }
+
+    private static class PointView<T> extends AbstractList<T> implements RandomAccess {
+
+        private final TrackBuffer buffer;
+        private final PointFactory<T> factory;
+
+        PointView(TrackBuffer buffer, PointFactory<T> factory) {
+            this.buffer = buffer;
+            this.factory = factory;
+        }
+
+        @Override
+        public T get(int index) {
+            return factory.create(buffer.getLatitude(index), buffer.getLongitude(index),
+                    buffer.getAccuracy(index));
+        }
+
+        @Override
+        public int size() {
+            return buffer.size;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.akvo.mapexperiments.geometry;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Keeps a level of detail pyramid for a {@link TrackBuffer}: for every integer zoom a
+ * Douglas-Peucker simplification of the track, computed on Web Mercator coordinates with a
+ * tolerance of {@link #PIXEL_TOLERANCE} screen pixels at that zoom. Above {@link #MAX_LEVEL_ZOOM}
+ * all points are used.
+ * <p/>
+ * Levels are updated incrementally by {@link #update()}: only the tail of each level after its
+ * last committed vertex is simplified again, and a tail is committed once it grows beyond
+ * {@link #MAX_TAIL_POINTS}. Every segment of a level therefore stays within tolerance of the
+ * points it replaces, while the work per update does not depend on the track length.
+ */
+public class TrackSimplifier {
+
+    public static final int MAX_LEVEL_ZOOM = 20;
+    public static final double PIXEL_TOLERANCE = 2.0;
+    public static final int MAX_TAIL_POINTS = 256;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * Size in pixels of the whole world at zoom 0: 512 for Mapbox, 256 for Google Maps.
+     */
+    private final double worldSize;
+    private final TrackBuffer track;
+    private final Level[] levels = new Level[MAX_LEVEL_ZOOM + 2];
+
+    // Web Mercator coordinates in the range 0..1 of every processed point
+    private double[] xs = new double[64];
+    private double[] ys = new double[64];
+    private int processed;
+
+    // Scratch space for the Douglas-Peucker runs
+    private boolean[] keep = new boolean[64];
+    private int[] stack = new int[64];
+
+    public TrackSimplifier(TrackBuffer track, double worldSize) {
+        this.track = track;
+        this.worldSize = worldSize;
+        for (int zoom = 0; zoom <= MAX_LEVEL_ZOOM; zoom++) {
+            double tolerance = PIXEL_TOLERANCE / (worldSize * Math.pow(2, zoom));
+            levels[zoom] = new Level(tolerance * tolerance, false);
+        }
+        levels[MAX_LEVEL_ZOOM + 1] = new Level(0, true);
+    }
+
+    /**
+     * Forgets everything, to be called when the track was cleared.
+     */
+    public void reset() {
+        processed = 0;
+        for (Level level : levels) {
+            level.reset();
+        }
+    }
+
+    /**
+     * Brings all levels up to date with the points added to the track since the last call.
+     */
+    public void update() {
+        int size = track.size();
+        if (size < processed) {
+            reset();
+        }
+        if (size == processed) {
+            return;
+        }
+        ensureCapacity(size);
+        for (int i = processed; i < size; i++) {
+            xs[i] = projectX(track.getLongitude(i));
+            ys[i] = projectY(track.getLatitude(i));
+        }
+        int from = processed;
+        processed = size;
+        for (Level level : levels) {
+            level.update(from, size);
+        }
+    }
+
+    /**
+     * @return the level to draw at the given camera zoom. The finer of the two neighbouring
+     * levels is used so that simplification is never visible.
+     */
+    public Level levelFor(double zoom) {
+        int index = (int) Math.ceil(zoom);
+        index = Math.max(0, Math.min(index, MAX_LEVEL_ZOOM + 1));
+        return levels[index];
+    }
+
+    public double getWorldSize() {
+        return worldSize;
+    }
+
+    public static double projectX(double longitude) {
+        return (longitude + 180.0) / 360.0;
+    }
+
+    public static double projectY(double latitude) {
+        latitude = Math.max(-MAX_LATITUDE, Math.min(latitude, MAX_LATITUDE));
+        double sin = Math.sin(Math.toRadians(latitude));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > xs.length) {
+            int capacity = Math.max(size, xs.length + (xs.length >> 1));
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+    }
+
+    /**
+     * Marks in {@link #keep} the points of {@code [first, last]} that Douglas-Peucker retains.
+     */
+    private void simplify(int first, int last, double sqTolerance) {
+        int count = last - first + 1;
+        if (keep.length < count) {
+            keep = new boolean[Math.max(count, keep.length * 2)];
+        }
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        int top = 0;
+        push(top++, first);
+        push(top++, last);
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            double maxSqDistance = 0;
+            int index = -1;
+            for (int i = start + 1; i < end; i++) {
+                double sqDistance = sqSegmentDistance(i, start, end);
+                if (sqDistance > maxSqDistance) {
+                    index = i;
+                    maxSqDistance = sqDistance;
+                }
+            }
+            if (index != -1 && maxSqDistance > sqTolerance) {
+                keep[index - first] = true;
+                push(top++, start);
+                push(top++, index);
+                push(top++, index);
+                push(top++, end);
+            }
+        }
+    }
+
+    private void push(int position, int value) {
+        if (position == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[position] = value;
+    }
+
+    private double sqSegmentDistance(int point, int start, int end) {
+        double x = xs[start];
+        double y = ys[start];
+        double dx = xs[end] - x;
+        double dy = ys[end] - y;
+        if (dx != 0 || dy != 0) {
+            double t = ((xs[point] - x) * dx + (ys[point] - y) * dy) / (dx * dx + dy * dy);
+            if (t > 1) {
+                x = xs[end];
+                y = ys[end];
+            } else if (t > 0) {
+                x += dx * t;
+                y += dy * t;
+            }
+        }
+        dx = xs[point] - x;
+        dy = ys[point] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Indices into the track of the points to draw at one zoom level.
+     */
+    public final class Level {
+
+        private final double sqTolerance;
+        private final boolean allPoints;
+
+        private int[] indices = new int[16];
+        private int size;
+        /**
+         * Position in {@link #indices} up to which vertices are final.
+         */
+        private int committed;
+        private int changedFrom = Integer.MAX_VALUE;
+
+        private Level(double sqTolerance, boolean allPoints) {
+            this.sqTolerance = sqTolerance;
+            this.allPoints = allPoints;
+        }
+
+        public int size() {
+            return allPoints ? processed : size;
+        }
+
+        /**
+         * @return index into the track of the vertex at the given position
+         */
+        public int get(int position) {
+            if (position < 0 || position >= size()) {
+                throw new IndexOutOfBoundsException("Position: " + position + ", size: " + size());
+            }
+            return allPoints ? position : indices[position];
+        }
+
+        /**
+         * Returns the first position whose vertex changed since the previous call, or
+         * {@link #size()} if nothing changed, and starts tracking changes anew.
+         */
+        public int takeChangedFrom() {
+            int from = Math.min(changedFrom, size());
+            changedFrom = Integer.MAX_VALUE;
+            return from;
+        }
+
+        /**
+         * Returns a read only list creating SDK points for the vertices of this level.
+         */
+        public <T> List<T> view(final TrackBuffer.PointFactory<T> factory) {
+            return new LevelView<>(this, factory);
+        }
+
+        private void reset() {
+            size = 0;
+            committed = 0;
+            changedFrom = 0;
+        }
+
+        private void update(int from, int to) {
+            if (allPoints) {
+                changedFrom = Math.min(changedFrom, from);
+                return;
+            }
+            if (size == 0) {
+                add(0);
+                committed = 0;
+                changedFrom = 0;
+                if (to == 1) {
+                    return;
+                }
+            }
+            int anchor = indices[committed];
+            int last = to - 1;
+            simplify(anchor, last, sqTolerance);
+            int position = committed + 1;
+            changedFrom = Math.min(changedFrom, position);
+            size = position;
+            for (int i = anchor + 1; i <= last; i++) {
+                if (keep[i - anchor]) {
+                    add(i);
+                }
+            }
+            // All but the last segment are final; a long straight tail is committed as a whole
+            if (size - 1 > committed + 1) {
+                committed = size - 2;
+            } else if (last - anchor > MAX_TAIL_POINTS) {
+                committed = size - 1;
+            }
+        }
+
+        private void add(int index) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+            }
+            indices[size++] = index;
+        }
+    }
+
+    private class LevelView<T> extends AbstractList<T> implements RandomAccess {
+
+        private final Level level;
+        private final TrackBuffer.PointFactory<T> factory;
+
+        LevelView(Level level, TrackBuffer.PointFactory<T> factory) {
+            this.level = level;
+            this.factory = factory;
+        }
+
+        @Override
+        public T get(int position) {
+            int index = level.get(position);
+            return factory.create(track.getLatitude(index), track.getLongitude(index),
+                    track.getAccuracy(index));
+        }
+
+        @Override
+        public int size() {
+            return level.size();
+        }
+    }
+}
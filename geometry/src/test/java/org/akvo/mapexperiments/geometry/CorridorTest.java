@@ -0,0 +1,82 @@
+package org.akvo.mapexperiments.geometry;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CorridorTest {
+
+    private static final double LAT = -0.1;
+    private static final double LON = 34.75;
+    // about 111 meters
+    private static final double STEP = 0.001;
+
+    @Test
+    public void segmentCoversTheCorridorAndItsEnds() {
+        double[] ring = Corridor.segment(LAT, LON, LAT, LON + STEP, 50);
+
+        assertEquals(10, ring.length);
+        assertEquals(ring[0], ring[8], 0);
+        assertEquals(ring[1], ring[9], 0);
+        // middle of the segment, 40 m north, and 40 m past its end
+        assertTrue(contains(ring, LAT + 40 / 111195.0, LON + STEP / 2));
+        assertTrue(contains(ring, LAT, LON + STEP + 40 / 111195.0));
+        assertFalse(contains(ring, LAT + 60 / 111195.0, LON + STEP / 2));
+        assertFalse(contains(ring, LAT, LON - 60 / 111195.0));
+    }
+
+    @Test
+    public void bufferSkipsPointsCloserThanHalfTheHalfWidth() {
+        TrackBuffer track = new TrackBuffer();
+        for (int i = 0; i <= 10; i++) {
+            // 11 m apart
+            track.add(LAT, LON + i * STEP / 10, 5, i);
+        }
+
+        List<double[]> rings = Corridor.buffer(track, 0, 10, 50);
+
+        // a rectangle every 33 m, and the last one to the end of the track
+        assertEquals(4, rings.size());
+        assertTrue(contains(rings.get(3), LAT, LON + STEP));
+    }
+
+    @Test
+    public void singlePointIsASquare() {
+        TrackBuffer track = new TrackBuffer();
+        track.add(LAT, LON, 5, 0);
+
+        List<double[]> rings = Corridor.buffer(track, 0, 0, 50);
+
+        assertEquals(1, rings.size());
+        assertTrue(contains(rings.get(0), LAT + 40 / 111195.0, LON - 40 / 111195.0));
+    }
+
+    @Test
+    public void aheadExtendsInTheDirectionOfTravel() {
+        double[] ring = Corridor.ahead(LAT, LON, LAT + STEP, LON, 500, 50);
+
+        assertTrue(contains(ring, LAT + STEP + 450 / 111195.0, LON));
+        assertFalse(contains(ring, LAT, LON));
+    }
+
+    /**
+     * Ray casting on longitude, latitude pairs.
+     */
+    private static boolean contains(double[] ring, double lat, double lon) {
+        boolean inside = false;
+        for (int i = 0, j = ring.length - 4; i < ring.length - 2; j = i, i += 2) {
+            double xi = ring[i];
+            double yi = ring[i + 1];
+            double xj = ring[j];
+            double yj = ring[j + 1];
+            if ((yi > lat) != (yj > lat) && lon < (xj - xi) * (lat - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,67 @@
+package org.akvo.mapexperiments.geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeoDistanceTest {
+
+    // Flinders Peak and Buninyong, the example of Vincenty's paper
+    private static final double FLINDERS_LAT = -(37 + 57 / 60.0 + 3.72030 / 3600);
+    private static final double FLINDERS_LON = 144 + 25 / 60.0 + 29.52440 / 3600;
+    private static final double BUNINYONG_LAT = -(37 + 39 / 60.0 + 10.15610 / 3600);
+    private static final double BUNINYONG_LON = 143 + 55 / 60.0 + 35.38390 / 3600;
+
+    @Test
+    public void vincentyMatchesReferenceDistance() {
+        assertEquals(54972.271, GeoDistance.vincenty(FLINDERS_LAT, FLINDERS_LON, BUNINYONG_LAT,
+                BUNINYONG_LON), 0.001);
+    }
+
+    @Test
+    public void haversineOfOneDegreeOfLatitude() {
+        assertEquals(GeoDistance.EARTH_RADIUS * Math.PI / 180,
+                GeoDistance.haversine(10, 20, 11, 20), 1e-6);
+    }
+
+    @Test
+    public void samePointIsZero() {
+        assertEquals(0, GeoDistance.vincenty(41.39, 2.17, 41.39, 2.17), 0);
+        assertEquals(0, GeoDistance.haversine(41.39, 2.17, 41.39, 2.17), 0);
+        assertEquals(0, GeoDistance.equirectangular(41.39, 2.17, 41.39, 2.17), 0);
+    }
+
+    @Test
+    public void approximationsAgreeOverShortDistances() {
+        double haversine = GeoDistance.haversine(41.39, 2.17, 41.39004, 2.17005);
+        assertEquals(haversine, GeoDistance.equirectangular(41.39, 2.17, 41.39004, 2.17005),
+                1e-3);
+        assertEquals(haversine, GeoDistance.vincenty(41.39, 2.17, 41.39004, 2.17005),
+                haversine * 0.005);
+    }
+
+    @Test
+    public void equirectangularWrapsAroundAntimeridian() {
+        assertEquals(GeoDistance.haversine(0, 179.9999, 0, -179.9999),
+                GeoDistance.equirectangular(0, 179.9999, 0, -179.9999), 1e-6);
+    }
+
+    @Test
+    public void isWithinThreshold() {
+        // about 4.4 m north
+        assertTrue(GeoDistance.isWithin(41.39, 2.17, 41.39004, 2.17, 5));
+        // about 5.6 m north
+        assertFalse(GeoDistance.isWithin(41.39, 2.17, 41.39005, 2.17, 5));
+        // about 4.2 m east
+        assertTrue(GeoDistance.isWithin(41.39, 2.17, 41.39, 2.17005, 5));
+        assertFalse(GeoDistance.isWithin(41.39, 2.17, 41.39, 2.17007, 5));
+    }
+
+    @Test
+    public void antipodalPointsFallBackToHaversine() {
+        assertEquals(GeoDistance.haversine(0, 0, 0.5, 179.7),
+                GeoDistance.vincenty(0, 0, 0.5, 179.7), 1e-6);
+    }
+}
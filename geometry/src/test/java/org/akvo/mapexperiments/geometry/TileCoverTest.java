@@ -0,0 +1,97 @@
+package org.akvo.mapexperiments.geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TileCoverTest {
+
+    // a few square kilometers around Nairobi
+    private static final double SOUTH = -1.32;
+    private static final double WEST = 36.78;
+    private static final double NORTH = -1.27;
+    private static final double EAST = 36.85;
+
+    private static final TileSizeModel.Source VECTOR_SOURCE =
+            new TileSizeModel.Source(512, false, 0, 16, 1000);
+    private static final TileSizeModel.Source RASTER_SOURCE =
+            new TileSizeModel.Source(256, true, 0, 22, 1000);
+
+    @Test
+    public void wholeWorldIsOneTileAtZoomZero() {
+        assertEquals(1, TileCover.count(-85, -180, 85, 180, 0));
+        assertEquals(16, TileCover.count(-85, -180, 85, 180, 2));
+    }
+
+    @Test
+    public void boundsOnTileEdgesDoNotTakeTheNextTile() {
+        // the north east quarter of the world at zoom 1
+        assertEquals(1, TileCover.count(0, 0, 85, 180, 1));
+        assertEquals(4, TileCover.count(0, 0, 85, 180, 2));
+    }
+
+    @Test
+    public void boundsAcrossTheAntimeridian() {
+        assertEquals(2, TileCover.count(0, 170, 10, -170, 1));
+        assertEquals(TileCover.count(0, -10, 10, 10, 5), TileCover.count(0, 170, 10, -170, 5));
+    }
+
+    @Test
+    public void rasterSourcesUseTilesOneZoomDeeper() {
+        assertEquals(14, TileCover.coveringZoom(14.7, VECTOR_SOURCE));
+        assertEquals(16, TileCover.coveringZoom(14.7, RASTER_SOURCE));
+        assertEquals(15, TileCover.coveringZoom(14.2, RASTER_SOURCE));
+    }
+
+    @Test
+    public void zoomsBeyondTheSourceAreFree() {
+        long toSourceMax = TileCover.count(SOUTH, WEST, NORTH, EAST, 12, 16, VECTOR_SOURCE);
+        assertEquals(toSourceMax, TileCover.count(SOUTH, WEST, NORTH, EAST, 12, 22,
+                VECTOR_SOURCE));
+    }
+
+    @Test
+    public void retinaRasterTilesCostMore() {
+        TileSizeModel model = new TileSizeModel(0, RASTER_SOURCE);
+        TileCover.Estimate normal = TileCover.estimate(SOUTH, WEST, NORTH, EAST, 12, 14,
+                model, 1f);
+        TileCover.Estimate retina = TileCover.estimate(SOUTH, WEST, NORTH, EAST, 12, 14,
+                model, 2f);
+        assertEquals(normal.tiles, retina.tiles);
+        assertTrue(retina.bytes > normal.bytes);
+    }
+
+    @Test
+    public void fitChoosesTheDeepestZoomWithinTheBudget() {
+        TileSizeModel model = new TileSizeModel(0, VECTOR_SOURCE);
+        long toFourteen = TileCover.estimate(SOUTH, WEST, NORTH, EAST, 12, 14, model, 1f).bytes;
+
+        TileCover.Estimate fit = TileCover.fit(SOUTH, WEST, NORTH, EAST, 12, 22, model, 1f,
+                toFourteen, TileCover.MAPBOX_TILE_COUNT_LIMIT);
+        assertNotNull(fit);
+        assertEquals(14, fit.maxZoom, 0);
+        assertEquals(toFourteen, fit.bytes);
+
+        TileCover.Estimate unlimited = TileCover.fit(SOUTH, WEST, NORTH, EAST, 12, 22, model,
+                1f, Long.MAX_VALUE, TileCover.MAPBOX_TILE_COUNT_LIMIT);
+        assertNotNull(unlimited);
+        assertEquals(22, unlimited.maxZoom, 0);
+    }
+
+    @Test
+    public void fitRespectsTheTileLimit() {
+        TileSizeModel model = new TileSizeModel(0, VECTOR_SOURCE);
+        TileCover.Estimate fit = TileCover.fit(SOUTH, WEST, NORTH, EAST, 10, 22, model, 1f,
+                Long.MAX_VALUE, 20);
+        assertNotNull(fit);
+        assertTrue(fit.tiles <= 20);
+        assertTrue(TileCover.estimate(SOUTH, WEST, NORTH, EAST, 10, fit.maxZoom + 1, model, 1f)
+                .tiles > 20);
+
+        assertNull(TileCover.fit(-85, -180, 85, 180, 10, 22, model, 1f, Long.MAX_VALUE,
+                TileCover.MAPBOX_TILE_COUNT_LIMIT));
+    }
+}
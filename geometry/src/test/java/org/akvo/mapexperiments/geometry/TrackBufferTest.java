@@ -0,0 +1,145 @@
+package org.akvo.mapexperiments.geometry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackBufferTest {
+
+    private static final TrackBuffer.PointFactory<String> FACTORY =
+            new TrackBuffer.PointFactory<String>() {
+                @Override
+                public String create(double latitude, double longitude, float accuracy) {
+                    return latitude + "," + longitude + "," + accuracy;
+                }
+            };
+
+    @Test
+    public void growsPastInitialCapacity() {
+        TrackBuffer track = new TrackBuffer(2);
+        for (int i = 0; i < 100; i++) {
+            track.add(i, -i, i / 2f, i * 1000L);
+        }
+
+        assertEquals(100, track.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, track.getLatitude(i), 0);
+            assertEquals(-i, track.getLongitude(i), 0);
+            assertEquals(i / 2f, track.getAccuracy(i), 0);
+            assertEquals(i * 1000L, track.getTime(i));
+        }
+    }
+
+    @Test
+    public void rejectsIndexBeyondSize() {
+        TrackBuffer track = new TrackBuffer();
+        track.add(1, 2, 3f, 4);
+        try {
+            track.getLatitude(1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            // capacity is larger than the size
+        }
+    }
+
+    @Test
+    public void closeRingAppendsFirstPoint() {
+        TrackBuffer track = points(3);
+        track.closeRing();
+
+        assertEquals(4, track.size());
+        assertEquals(track.getLatitude(0), track.getLatitude(3), 0);
+        assertEquals(track.getLongitude(0), track.getLongitude(3), 0);
+        assertEquals(track.getTime(0), track.getTime(3));
+    }
+
+    @Test
+    public void closeRingLeavesShortTracks() {
+        for (int size = 0; size <= 2; size++) {
+            TrackBuffer track = points(size);
+            track.closeRing();
+            assertEquals(size, track.size());
+        }
+    }
+
+    @Test
+    public void viewCreatesPointsAndFollowsBuffer() {
+        TrackBuffer track = points(2);
+        List<String> view = track.view(FACTORY);
+
+        assertEquals(2, view.size());
+        assertEquals("1.0,10.0,0.5", view.get(1));
+        track.add(5, 50, 2f, 0);
+        assertEquals(3, view.size());
+        assertEquals("5.0,50.0,2.0", view.get(2));
+    }
+
+    @Test
+    public void copyToAppendsFromIndex() {
+        TrackBuffer track = points(4);
+        List<String> target = new ArrayList<>();
+        target.add("existing");
+
+        track.copyTo(target, 2, FACTORY);
+        assertEquals(3, target.size());
+        assertEquals("existing", target.get(0));
+        assertEquals("2.0,20.0,1.0", target.get(1));
+        assertEquals("3.0,30.0,1.5", target.get(2));
+
+        assertEquals(4, track.copyTo(new ArrayList<String>(), FACTORY).size());
+    }
+
+    @Test
+    public void addAllAppendsOtherTrack() {
+        TrackBuffer track = new TrackBuffer(1);
+        track.add(-1, -10, 9f, 99);
+        track.addAll(points(70));
+
+        assertEquals(71, track.size());
+        assertEquals(-1, track.getLatitude(0), 0);
+        assertEquals(0, track.getLatitude(1), 0);
+        assertEquals(690, track.getLongitude(70), 0);
+        assertEquals(69 * 1000L, track.getTime(70));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        TrackBuffer track = points(3);
+        TrackBuffer copy = track.copy();
+        copy.closeRing();
+        track.add(7, 70, 1f, 0);
+
+        assertEquals(4, track.size());
+        assertEquals(4, copy.size());
+        assertEquals(7, track.getLatitude(3), 0);
+        assertEquals(0, copy.getLatitude(3), 0);
+    }
+
+    @Test
+    public void clearEmptiesAndKeepsWorking() {
+        TrackBuffer track = points(10);
+        track.clear();
+
+        assertTrue(track.isEmpty());
+        assertEquals(0, track.view(FACTORY).size());
+        track.add(3, 30, 1f, 5);
+        assertEquals(1, track.size());
+        assertEquals(3, track.getLatitude(0), 0);
+    }
+
+    /**
+     * Point {@code i} is at latitude {@code i}, longitude {@code 10 * i}.
+     */
+    private static TrackBuffer points(int count) {
+        TrackBuffer track = new TrackBuffer();
+        for (int i = 0; i < count; i++) {
+            track.add(i, 10 * i, i / 2f, i * 1000L);
+        }
+        return track;
+    }
+}
@@ -0,0 +1,126 @@
+package org.akvo.mapexperiments.geometry;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrackSimplifierTest {
+
+    private static final double WORLD_SIZE = 512.0;
+
+    @Test
+    public void straightLineKeepsOnlyEndsAtEveryLevel() {
+        TrackBuffer track = new TrackBuffer();
+        TrackSimplifier simplifier = new TrackSimplifier(track, WORLD_SIZE);
+        for (int i = 0; i < 100; i++) {
+            track.add(41.39, 2.17 + i * 0.0001, 5f, i);
+            simplifier.update();
+        }
+
+        TrackSimplifier.Level level = simplifier.levelFor(16);
+        assertEquals(2, level.size());
+        assertEquals(0, level.get(0));
+        assertEquals(99, level.get(1));
+    }
+
+    @Test
+    public void levelsAboveMaxZoomUseAllPoints() {
+        TrackBuffer track = randomWalk(500);
+        TrackSimplifier simplifier = new TrackSimplifier(track, WORLD_SIZE);
+        simplifier.update();
+
+        TrackSimplifier.Level level = simplifier.levelFor(TrackSimplifier.MAX_LEVEL_ZOOM + 1);
+        assertEquals(500, level.size());
+        assertEquals(123, level.get(123));
+    }
+
+    @Test
+    public void incrementalUpdatesStayWithinTolerance() {
+        TrackBuffer walk = randomWalk(5000);
+        TrackBuffer track = new TrackBuffer();
+        TrackSimplifier simplifier = new TrackSimplifier(track, WORLD_SIZE);
+        for (int i = 0; i < walk.size(); i++) {
+            track.add(walk.getLatitude(i), walk.getLongitude(i), 5f, i);
+            if (i % 3 == 0) {
+                simplifier.update();
+            }
+        }
+        simplifier.update();
+
+        for (int zoom = 0; zoom <= TrackSimplifier.MAX_LEVEL_ZOOM; zoom++) {
+            TrackSimplifier.Level level = simplifier.levelFor(zoom);
+            assertEquals(0, level.get(0));
+            assertEquals(track.size() - 1, level.get(level.size() - 1));
+            double pixels = WORLD_SIZE * Math.pow(2, zoom);
+            for (int position = 0; position + 1 < level.size(); position++) {
+                int start = level.get(position);
+                int end = level.get(position + 1);
+                assertTrue(start < end);
+                for (int i = start + 1; i < end; i++) {
+                    double error = segmentDistance(track, i, start, end) * pixels;
+                    assertTrue("zoom " + zoom + " error " + error,
+                            error <= TrackSimplifier.PIXEL_TOLERANCE + 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void changedFromPointsAtFirstModifiedVertex() {
+        TrackBuffer track = randomWalk(50);
+        TrackSimplifier simplifier = new TrackSimplifier(track, WORLD_SIZE);
+        simplifier.update();
+        TrackSimplifier.Level level = simplifier.levelFor(TrackSimplifier.MAX_LEVEL_ZOOM + 1);
+        assertEquals(0, level.takeChangedFrom());
+        assertEquals(50, level.takeChangedFrom());
+
+        track.add(41.5, 2.2, 5f, 50);
+        simplifier.update();
+        assertEquals(50, level.takeChangedFrom());
+    }
+
+    @Test
+    public void resetAfterClear() {
+        TrackBuffer track = randomWalk(200);
+        TrackSimplifier simplifier = new TrackSimplifier(track, WORLD_SIZE);
+        simplifier.update();
+
+        track.clear();
+        simplifier.reset();
+        track.add(1, 1, 5f, 0);
+        simplifier.update();
+        assertEquals(1, simplifier.levelFor(10).size());
+    }
+
+    private static TrackBuffer randomWalk(int size) {
+        Random random = new Random(42);
+        TrackBuffer track = new TrackBuffer();
+        double latitude = 41.39;
+        double longitude = 2.17;
+        double heading = 0;
+        for (int i = 0; i < size; i++) {
+            heading += random.nextGaussian() * 0.3;
+            latitude += Math.cos(heading) * 0.00005;
+            longitude += Math.sin(heading) * 0.00005;
+            track.add(latitude, longitude, 5f, i);
+        }
+        return track;
+    }
+
+    private static double segmentDistance(TrackBuffer track, int point, int start, int end) {
+        double x = TrackSimplifier.projectX(track.getLongitude(start));
+        double y = TrackSimplifier.projectY(track.getLatitude(start));
+        double dx = TrackSimplifier.projectX(track.getLongitude(end)) - x;
+        double dy = TrackSimplifier.projectY(track.getLatitude(end)) - y;
+        double px = TrackSimplifier.projectX(track.getLongitude(point));
+        double py = TrackSimplifier.projectY(track.getLatitude(point));
+        double t = ((px - x) * dx + (py - y) * dy) / (dx * dx + dy * dy);
+        t = Math.max(0, Math.min(1, t));
+        double qx = x + dx * t - px;
+        double qy = y + dy * t - py;
+        return Math.sqrt(qx * qx + qy * qy);
+    }
+}